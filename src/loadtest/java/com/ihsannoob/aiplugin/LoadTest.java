@@ -0,0 +1,275 @@
+package com.ihsannoob.aiplugin;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Offline load test: N simulated players send chat turns at a target rate through the real
+ * RequestScheduler, ContextBuilder, DatabaseManager and CerebrasClient, against {@link MockCerebrasServer}.
+ * The turn is the same chain AiCommand runs, minus the Bukkit main-thread hop.
+ *
+ * mvn -P loadtest verify -Dloadtest.args="--players 200 --rate 40 --duration 120 --stream"
+ */
+public final class LoadTest {
+
+    private static final String PROMPT = "How do I claim land near spawn and add my friends to the claim?";
+
+    private final Map<String, String> args;
+    private final Metrics metrics = new Metrics();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicReference<LatencyHistogram> window = new AtomicReference<>(new LatencyHistogram());
+
+    private LoadTest(Map<String, String> args) {
+        this.args = args;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = parse(argv);
+        if (args.containsKey("help")) {
+            System.out.println("Options: --players N --rate turns/s --duration s --latency-ms ms --jitter-ms ms --error-rate 0..1\n"
+                    + "         --stream --shape choices.message|choices.text|output|generated_text --reply-chars N\n"
+                    + "         --storage per-player|shared|jdbc --jdbc-url url (default: in-memory H2) --write-behind --no-cache --summaries --retrieval\n"
+                    + "         --max-in-flight N --rps N --max-retries N --report-seconds N\n"
+                    + "         --endpoints N (mock endpoints behind the router) --slow-endpoint-ms ms (extra latency on the first) --hedge");
+            return;
+        }
+        new LoadTest(args).run();
+    }
+
+    private void run() throws Exception {
+        int players = intArg("players", 50);
+        double rate = doubleArg("rate", 10);
+        int duration = intArg("duration", 60);
+        boolean stream = args.containsKey("stream");
+        int reportSeconds = intArg("report-seconds", 5);
+
+        MockCerebrasServer.Options mock = new MockCerebrasServer.Options();
+        mock.latencyMs = intArg("latency-ms", 800);
+        mock.jitterMs = intArg("jitter-ms", 200);
+        mock.errorRate = doubleArg("error-rate", 0);
+        mock.shape = args.getOrDefault("shape", "choices.message");
+        mock.replyChars = intArg("reply-chars", 400);
+
+        Logger logger = Logger.getLogger("LoadTest");
+        // 429s and retries are expected under load; only report real failures
+        logger.setLevel(Level.SEVERE);
+        File folder = Files.createTempDirectory("aicerebras-loadtest").toFile();
+
+        int endpointCount = Math.max(1, intArg("endpoints", 1));
+        List<MockCerebrasServer> servers = new ArrayList<>(endpointCount);
+        try {
+            for (int i = 0; i < endpointCount; i++) {
+                MockCerebrasServer.Options o = mock;
+                if (i == 0 && args.containsKey("slow-endpoint-ms")) {
+                    o = mock.copy();
+                    o.latencyMs += intArg("slow-endpoint-ms", 0);
+                }
+                servers.add(new MockCerebrasServer(o));
+            }
+            String storage = args.getOrDefault("storage", "per-player");
+            DatabaseManager db;
+            if ("jdbc".equalsIgnoreCase(storage)) {
+                JdbcConversationStore store = new JdbcConversationStore(args.getOrDefault("jdbc-url", "jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1"),
+                        args.getOrDefault("jdbc-user", ""), args.getOrDefault("jdbc-password", ""), intArg("readers", 4), "aicerebras_", logger);
+                db = new DatabaseManager(store, logger, Math.max(intArg("db-threads", 2), intArg("readers", 4)));
+            } else {
+                db = new DatabaseManager(folder, logger, intArg("db-threads", 2), "shared".equalsIgnoreCase(storage), intArg("readers", 4));
+            }
+            db.enableMetrics(metrics);
+            // as in the plugin, a JDBC store is always written behind
+            if (args.containsKey("write-behind") || "jdbc".equalsIgnoreCase(storage)) db.enableWriteBehind(10000, 256, 200);
+            if (!args.containsKey("no-cache")) db.enableCache(32, 32L * 1024L * 1024L);
+
+            List<EndpointRouter.Route> routes = new ArrayList<>();
+            for (int i = 0; i < servers.size(); i++) {
+                CerebrasClient client = new CerebrasClient("loadtest-key", servers.get(i).endpoint(), "llama-3.3-70b", 512, 30, logger, metrics);
+                routes.add(new EndpointRouter.Route("mock-" + (i + 1), client, 1, new CircuitBreaker(5, 30_000)));
+            }
+            EndpointRouter router = new EndpointRouter(routes, args.containsKey("hedge"), 0.95, 50, metrics, logger);
+            // like the plugin at enable: connections are open before the first turn
+            long warmStart = System.nanoTime();
+            int reached = router.warmUp().join();
+            System.out.printf("Pre-connected to %d endpoint host(s) in %d ms%n", reached, (System.nanoTime() - warmStart) / 1_000_000L);
+            RequestScheduler scheduler = new RequestScheduler(logger);
+            scheduler.configure(intArg("max-in-flight", 16), false, doubleArg("rps", 0), intArg("burst", 10), intArg("max-retries", 3));
+            ContextBuilder contextBuilder = new ContextBuilder(db, scheduler, () -> router, null, logger);
+            contextBuilder.configure(3000, 600, args.containsKey("summaries"), 6, 150, 8);
+            contextBuilder.configureRetrieval(args.containsKey("retrieval") ? 4 : 0, 600, 2000);
+
+            List<UUID> uuids = new ArrayList<>(players);
+            for (int i = 0; i < players; i++) uuids.add(UUID.randomUUID());
+
+            System.out.printf("%d mock endpoint(s), %d players, %.1f turns/s for %ds, latency %d+%dms, 429 rate %.2f, stream=%s, storage=%s%n",
+                    servers.size(), players, rate, duration, mock.latencyMs, mock.jitterMs, mock.errorRate, stream, storage);
+            System.out.println("   t  sent  done  fail  outst   turns/s   p50ms   p95ms   p99ms  threads  fds  heapMB");
+
+            ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, r -> {
+                Thread t = new Thread(r, "LoadTest-Timer");
+                t.setDaemon(true);
+                return t;
+            });
+            long started = System.nanoTime();
+            AtomicLong next = new AtomicLong();
+            // open loop: turns are sent at the target rate whether or not earlier ones finished
+            long periodMicros = Math.max(1, (long) (1_000_000 / Math.max(0.001, rate)));
+            timer.scheduleAtFixedRate(() -> turn(uuids.get((int) (next.getAndIncrement() % players)), db, router, scheduler, contextBuilder, stream),
+                    0, periodMicros, TimeUnit.MICROSECONDS);
+            long[] lastDone = {0};
+            timer.scheduleAtFixedRate(() -> {
+                long done = completed.sum() + failed.sum();
+                report((System.nanoTime() - started) / 1_000_000_000L, (done - lastDone[0]) / (double) reportSeconds);
+                lastDone[0] = done;
+            }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+            Thread.sleep(duration * 1000L);
+            timer.shutdownNow();
+
+            // let outstanding turns finish (bounded)
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (outstanding.get() > 0 && System.nanoTime() < deadline) Thread.sleep(100);
+            double elapsed = (System.nanoTime() - started) / 1e9;
+
+            summary(elapsed, servers, router);
+            scheduler.shutdown();
+            db.flushPending();
+            db.closeAll();
+        } finally {
+            for (MockCerebrasServer server : servers) server.close();
+            delete(folder);
+        }
+    }
+
+    private void turn(UUID uuid, DatabaseManager db, EndpointRouter router, RequestScheduler scheduler, ContextBuilder contextBuilder, boolean stream) {
+        long start = System.nanoTime();
+        sent.increment();
+        outstanding.incrementAndGet();
+        scheduler.submit(uuid, () -> db.getConversationAsync(uuid, 8)
+                .thenCompose(history -> contextBuilder.relevantAsync(uuid, PROMPT, history)
+                        .thenCombine(contextBuilder.summaryAsync(uuid), (relevant, summary) -> contextBuilder.build(history, summary, relevant, PROMPT)))
+                .thenCompose(messages -> db.addMessageAsync(uuid, "user", PROMPT).thenApply(v -> messages))
+                .thenCompose(messages -> stream
+                        ? scheduler.call(() -> router.generateStreamAsync(messages, segment -> { }))
+                        : scheduler.call(() -> router.generateAsync(messages)))
+                .thenCompose(reply -> {
+                    if (reply == null) return CompletableFuture.completedFuture((String) null);
+                    return db.addMessageAsync(uuid, "assistant", reply).thenApply(v -> {
+                        contextBuilder.onTurnCompleted(uuid);
+                        return reply;
+                    });
+                }))
+                .result.whenComplete((reply, ex) -> {
+                    long nanos = System.nanoTime() - start;
+                    total.recordNanos(nanos);
+                    window.get().recordNanos(nanos);
+                    if (ex != null || reply == null) failed.increment();
+                    else completed.increment();
+                    outstanding.decrementAndGet();
+                });
+    }
+
+    private void report(long seconds, double throughput) {
+        LatencyHistogram.Snapshot s = window.getAndSet(new LatencyHistogram()).snapshot();
+        System.out.printf("%4d %5d %5d %5d %6d %9.1f %7.0f %7.0f %7.0f %8d %4s %7d%n",
+                seconds, sent.sum(), completed.sum(), failed.sum(), outstanding.get(), throughput,
+                s.percentile(0.50) / 1000.0, s.percentile(0.95) / 1000.0, s.percentile(0.99) / 1000.0,
+                threads(), fds(), heapMb());
+    }
+
+    private void summary(double elapsed, List<MockCerebrasServer> servers, EndpointRouter router) {
+        LatencyHistogram.Snapshot s = total.snapshot();
+        System.out.println();
+        System.out.printf("Turns: %d sent, %d ok, %d failed, %d unfinished in %.1fs (%.1f ok turns/s)%n",
+                sent.sum(), completed.sum(), failed.sum(), outstanding.get(), elapsed, completed.sum() / elapsed);
+        System.out.printf("Turn latency ms: p50 %.0f  p95 %.0f  p99 %.0f  max %.0f%n",
+                s.percentile(0.50) / 1000.0, s.percentile(0.95) / 1000.0, s.percentile(0.99) / 1000.0, s.maxMicros / 1000.0);
+        for (int i = 0; i < servers.size(); i++) {
+            MockCerebrasServer server = servers.get(i);
+            EndpointRouter.Route route = router.getRoutes().get(i);
+            System.out.printf("Mock %s: %d requests, %d answered 429, %d streamed, breaker %s (opened %d times)%n", route.name,
+                    server.requests.sum(), server.rejected.sum(), server.streamed.sum(), route.breaker.getState(), route.breaker.getOpenCount());
+        }
+        System.out.printf("Threads: %d (peak %d), open fds: %s, heap used: %d MB%n",
+                threads(), ManagementFactory.getThreadMXBean().getPeakThreadCount(), fds(), heapMb());
+        System.out.println("Stages (ms): count p50 / p95 / p99 / max");
+        for (Map.Entry<String, LatencyHistogram.Snapshot> e : metrics.snapshotStages().entrySet()) {
+            LatencyHistogram.Snapshot h = e.getValue();
+            System.out.printf("  %-22s %7d  %8.1f / %8.1f / %8.1f / %8.1f%n", e.getKey(), h.count,
+                    h.percentile(0.50) / 1000.0, h.percentile(0.95) / 1000.0, h.percentile(0.99) / 1000.0, h.maxMicros / 1000.0);
+        }
+        for (Map.Entry<String, Long> e : metrics.snapshotCounters().entrySet()) {
+            System.out.printf("  %-40s %d%n", e.getKey(), e.getValue());
+        }
+    }
+
+    private static int threads() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.getThreadCount();
+    }
+
+    private static String fds() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return Long.toString(((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount());
+        }
+        return "n/a";
+    }
+
+    private static long heapMb() {
+        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        return mem.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+    }
+
+    private int intArg(String name, int def) {
+        String v = args.get(name);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    private double doubleArg(String name, double def) {
+        String v = args.get(name);
+        return v == null ? def : Double.parseDouble(v);
+    }
+
+    // --key value pairs; a --flag followed by another --option (or nothing) is a boolean switch
+    private static Map<String, String> parse(String[] argv) {
+        Map<String, String> out = new HashMap<>();
+        for (int i = 0; i < argv.length; i++) {
+            if (!argv[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + argv[i]);
+            String key = argv[i].substring(2);
+            if (i + 1 < argv.length && !argv[i + 1].startsWith("--")) out.put(key, argv[++i]);
+            else out.put(key, "true");
+        }
+        return out;
+    }
+
+    private static void delete(File folder) throws IOException {
+        try (Stream<java.nio.file.Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+}
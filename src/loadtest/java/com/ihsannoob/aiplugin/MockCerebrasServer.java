@@ -0,0 +1,205 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for the Cerebras endpoint. Answers after a configurable latency with one of the
+ * response shapes CerebrasClient understands, streams SSE chunks when the request asks for it,
+ * and can inject 429s with a Retry-After header.
+ */
+final class MockCerebrasServer implements AutoCloseable {
+
+    static final class Options {
+        long latencyMs = 800;
+        long jitterMs = 200;
+        double errorRate = 0;
+        int retryAfterSeconds = 1;
+        String shape = "choices.message";
+        int replyChars = 400;
+        int streamChunks = 20;
+
+        Options copy() {
+            Options o = new Options();
+            o.latencyMs = latencyMs;
+            o.jitterMs = jitterMs;
+            o.errorRate = errorRate;
+            o.retryAfterSeconds = retryAfterSeconds;
+            o.shape = shape;
+            o.replyChars = replyChars;
+            o.streamChunks = streamChunks;
+            return o;
+        }
+    }
+
+    private final Options options;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Gson gson = new Gson();
+    private final String reply;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder streamed = new LongAdder();
+    final LongAdder warmUps = new LongAdder();
+
+    MockCerebrasServer(Options options) throws IOException {
+        this.options = options;
+        this.reply = sentences(options.replyChars);
+        AtomicInteger n = new AtomicInteger();
+        // one thread per open request: latency is simulated by sleeping
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "MockCerebras-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String endpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if ("HEAD".equals(ex.getRequestMethod())) {
+                // pre-connect probe; like the real API, only POST is served
+                warmUps.increment();
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            String body;
+            try (InputStream in = ex.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            requests.increment();
+
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            if (options.errorRate > 0 && rnd.nextDouble() < options.errorRate) {
+                rejected.increment();
+                ex.getResponseHeaders().add("Retry-After", Integer.toString(options.retryAfterSeconds));
+                send(ex, 429, "{\"error\":{\"message\":\"rate limited (mock)\"}}");
+                return;
+            }
+
+            long latency = options.latencyMs + (options.jitterMs > 0 ? rnd.nextLong(options.jitterMs + 1) : 0);
+            if (body.contains("\"stream\":true")) {
+                streamed.increment();
+                stream(ex, latency);
+            } else {
+                sleep(latency);
+                send(ex, 200, gson.toJson(response(options.shape, reply)));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // first chunk after a third of the latency, the rest spread over the remainder
+    private void stream(HttpExchange ex, long latency) throws IOException, InterruptedException {
+        ex.getResponseHeaders().add("Content-Type", "text/event-stream");
+        ex.sendResponseHeaders(200, 0);
+        int chunks = Math.max(1, options.streamChunks);
+        long gap = (latency - latency / 3) / chunks;
+        sleep(latency / 3);
+        try (OutputStream out = ex.getResponseBody()) {
+            int step = (reply.length() + chunks - 1) / chunks;
+            for (int i = 0; i < reply.length(); i += step) {
+                JsonObject delta = new JsonObject();
+                delta.addProperty("content", reply.substring(i, Math.min(reply.length(), i + step)));
+                JsonObject choice = new JsonObject();
+                choice.add("delta", delta);
+                JsonArray choices = new JsonArray();
+                choices.add(choice);
+                JsonObject chunk = new JsonObject();
+                chunk.add("choices", choices);
+                out.write(("data: " + gson.toJson(chunk) + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sleep(gap);
+            }
+            out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(long ms) throws InterruptedException {
+        if (ms > 0) Thread.sleep(ms);
+    }
+
+    static JsonObject response(String shape, String text) {
+        JsonObject root = new JsonObject();
+        switch (shape) {
+            case "choices.message": {
+                JsonObject msg = new JsonObject();
+                msg.addProperty("role", "assistant");
+                msg.addProperty("content", text);
+                JsonObject choice = new JsonObject();
+                choice.add("message", msg);
+                JsonArray choices = new JsonArray();
+                choices.add(choice);
+                root.add("choices", choices);
+                break;
+            }
+            case "choices.text": {
+                JsonObject choice = new JsonObject();
+                choice.addProperty("text", text);
+                JsonArray choices = new JsonArray();
+                choices.add(choice);
+                root.add("choices", choices);
+                break;
+            }
+            case "output": {
+                JsonObject first = new JsonObject();
+                first.addProperty("content", text);
+                JsonArray output = new JsonArray();
+                output.add(first);
+                root.add("output", output);
+                break;
+            }
+            case "generated_text":
+                root.addProperty("generated_text", text);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown response shape: " + shape);
+        }
+        return root;
+    }
+
+    private static String sentences(int chars) {
+        String s = "You can claim land with a golden shovel. Right click two corners to mark the area. ";
+        StringBuilder sb = new StringBuilder(chars + s.length());
+        while (sb.length() < chars) sb.append(s);
+        return sb.substring(0, chars).trim();
+    }
+}
@@ -1,6 +1,5 @@
 package com.ihsannoob.aiplugin;
 
-import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -8,13 +7,23 @@ import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class AiCommand implements CommandExecutor {
 
+    private static final DateTimeFormatter SEARCH_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
     private final AiPlugin plugin;
 
     public AiCommand(AiPlugin plugin) {
@@ -25,10 +34,194 @@ public class AiCommand implements CommandExecutor {
         sender.sendMessage("§6[AI] §r" + msg);
     }
 
+    // through the MessageDispatcher, so callable from any thread
+    private void queueMsg(Player player, String msg) {
+        plugin.getDispatcher().send(player, "§6[AI] §r" + msg);
+    }
+
+    /**
+     * Chat turn as a chain of futures: history read -> user insert -> HTTP -> assistant insert.
+     * Database steps run on the DatabaseManager executor and the HTTP call on HttpClient's,
+     * so no thread waits on the network; output reaches the player through the MessageDispatcher.
+     * Turns go through the RequestScheduler: serial per player, capped globally, rate limited.
+     * When the response cache is on, repeated prompts are answered from it (fresh = bypass).
+     * The turn is tracked in the InFlightRegistry: if the player quits, its API request is aborted.
+     * Tokens of every API request it makes are counted in the UsageTracker (cache hits cost none);
+     * the quota is checked again when the turn leaves the queue, since turns ahead of it may have used it up.
+     */
+    private void startChat(Player player, UUID uuid, String message, boolean fresh) {
+        DatabaseManager db = plugin.getDatabaseManager();
+        EndpointRouter router = plugin.getRouter();
+        RequestScheduler scheduler = plugin.getRequestScheduler();
+        MessageDispatcher dispatcher = plugin.getDispatcher();
+        ContextBuilder contextBuilder = plugin.getContextBuilder();
+        ResponseCache responseCache = plugin.getResponseCache();
+        boolean contextFreeOnly = plugin.getConfig().getBoolean("response_cache.context_free_only", false);
+        int context = plugin.getConfig().getInt("context_messages", 8);
+        boolean stream = plugin.getConfig().getBoolean("stream", false);
+        Metrics metrics = plugin.getMetrics();
+        UsageTracker usage = plugin.getUsage();
+        String name = player.getName();
+        // read on the main thread; the turn itself runs elsewhere
+        boolean unlimited = player.hasPermission("ai.usage.unlimited");
+        Consumer<CerebrasClient.Usage> onUsage = u -> usage.record(uuid, name, u);
+        InFlightRegistry.Operation op = plugin.getInFlight().begin(uuid, InFlightRegistry.Kind.CHAT);
+        AtomicBoolean streamed = new AtomicBoolean(false);
+        long submitted = System.nanoTime();
+        metrics.increment(Metrics.CHAT_REQUESTS);
+
+        RequestScheduler.Ticket<String> ticket = scheduler.submit(uuid, () -> {
+            metrics.record(Metrics.QUEUE_WAIT, submitted);
+            // the player left while the turn was queued
+            if (op.isCancelled()) return CompletableFuture.failedFuture(new CancellationException());
+            UsageTracker.Limit limit = unlimited ? null : usage.check(uuid);
+            if (limit != null) return CompletableFuture.failedFuture(new UsageTracker.QuotaExceededException(limit));
+            CompletableFuture<DatabaseManager.Summary> summary = contextBuilder.summaryAsync(uuid);
+            return db.getConversationAsync(uuid, context)
+                    // Build messages list for client: summary + relevant older messages + recent history within the token budget
+                    .thenCompose(history -> contextBuilder.relevantAsync(uuid, message, history)
+                            .thenCombine(summary, (relevant, s) -> contextBuilder.build(history, s, relevant, message)))
+                    .thenCompose(messages -> {
+                        op.checkCancelled();
+                        return db.addMessageAsync(uuid, "user", message).thenApply(v -> messages);
+                    })
+                    .thenCompose(messages -> {
+                        Supplier<CompletableFuture<String>> upstream = () -> {
+                            if (!stream) return scheduler.call(() -> router.generateAsync(messages, onUsage));
+                            // push sentences/lines to the player as they arrive
+                            return scheduler.call(() -> router.generateStreamAsync(messages, segment -> {
+                                dispatcher.send(player, streamed.getAndSet(true) ? segment : "§6[AI Assistant] §r" + segment);
+                            }, onUsage));
+                        };
+                        // the key covers the whole context sent; context_free_only restricts caching to first messages
+                        if (responseCache == null || fresh || (contextFreeOnly && messages.size() > 1)) return op.track(upstream.get());
+                        // a shared load may have other waiters, so it is never cancelled for one player
+                        return responseCache.get(ResponseCache.key(router.getModel(), messages), upstream);
+                    })
+                    .thenCompose(reply -> {
+                        if (reply == null) return CompletableFuture.completedFuture((String) null);
+                        // store assistant message only once the full reply is known
+                        return db.addMessageAsync(uuid, "assistant", reply).thenApply(v -> {
+                            contextBuilder.onTurnCompleted(uuid);
+                            return reply;
+                        });
+                    });
+        });
+
+        if (ticket.position > 0) {
+            sendMsg(player, "Your request is queued (position " + ticket.position + ").");
+        }
+
+        ticket.result.whenComplete((reply, error) -> {
+            op.done();
+            metrics.record(Metrics.CHAT, submitted);
+            // a cancelled turn belongs to a player who left; nobody to tell
+            if (op.isCancelled()) return;
+            if (error != null || reply == null) metrics.increment(Metrics.CHAT_ERRORS);
+            deliverReply(player, reply, error, streamed.get());
+        });
+    }
+
+    /**
+     * Tell the player how their turn ended (any thread; queued behind the streamed segments).
+     */
+    private void deliverReply(Player player, String reply, Throwable error, boolean streamed) {
+        Throwable ex = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (ex instanceof RequestScheduler.SupersededException) {
+            queueMsg(player, "Your queued message was replaced by a newer one.");
+        } else if (ex instanceof UsageTracker.QuotaExceededException) {
+            queueMsg(player, quotaMessage(((UsageTracker.QuotaExceededException) ex).limit));
+        } else if (ex instanceof CerebrasClient.ApiException) {
+            queueMsg(player, ((CerebrasClient.ApiException) ex).isRetryable()
+                    ? "The AI is busy right now, please try again in a moment."
+                    : "No response (check server logs or API key/endpoint).");
+        } else if (ex != null) {
+            plugin.getLogger().severe("Error during AI chat: " + ex.getMessage());
+            ex.printStackTrace();
+            queueMsg(player, "An error occurred while processing your request.");
+        } else if (reply == null) {
+            queueMsg(player, streamed
+                    ? "Response was interrupted (check server logs)."
+                    : "No response (check server logs or API key/endpoint).");
+        } else if (!streamed) {
+            plugin.getDispatcher().send(player, "§6[AI Assistant] §r" + reply);
+        }
+    }
+
+    private String quotaMessage(UsageTracker.Limit limit) {
+        UsageTracker usage = plugin.getUsage();
+        switch (limit) {
+            case MINUTE:
+                return "You're sending a lot of messages (" + usage.getTokensPerMinute() + " tokens per minute). Please wait a moment.";
+            case DAILY:
+                return "You've used your AI allowance for today (" + usage.getDailyTokens() + " tokens). It resets at midnight.";
+            default:
+                return "The server's AI allowance for today is used up. Please try again tomorrow.";
+        }
+    }
+
+    /**
+     * Print today's token usage and the biggest consumers.
+     */
+    private void showUsage(CommandSender sender, int count) {
+        UsageTracker usage = plugin.getUsage();
+        UsageTracker.Snapshot total = usage.total();
+        sendMsg(sender, "Token usage today: " + total.tokens() + " tokens (" + total.promptTokens + " prompt, "
+                + total.completionTokens + " completion) in " + total.requests + " requests, avg " + total.averageLatencyMillis() + " ms");
+        sender.sendMessage("§7  quotas: daily §e" + limitText(usage.getDailyTokens()) + " §7per minute §e" + limitText(usage.getTokensPerMinute())
+                + " §7server daily §e" + limitText(usage.getGlobalDailyTokens()));
+        List<UsageTracker.Snapshot> top = usage.top(count);
+        if (top.isEmpty()) sender.sendMessage("§7  no requests today");
+        int rank = 1;
+        for (UsageTracker.Snapshot s : top) {
+            String who = s.name != null ? s.name : s.uuid.toString();
+            String share = total.tokens() == 0 ? "" : String.format(" §7(%.1f%%)", s.tokens() * 100.0 / total.tokens());
+            sender.sendMessage("§7  " + rank++ + ". " + who + ": §e" + s.tokens() + " §7tokens" + share + ", §e" + s.requests
+                    + " §7requests, avg §e" + s.averageLatencyMillis() + " §7ms");
+        }
+    }
+
+    private static String limitText(long tokens) {
+        return tokens > 0 ? Long.toString(tokens) : "-";
+    }
+
+    /**
+     * Run a full-text search on the database executor and print one page of ranked snippets.
+     */
+    private void searchHistory(Player player, String terms, int page) {
+        int pageSize = Math.max(1, plugin.getConfig().getInt("search.page_size", 5));
+        MessageDispatcher dispatcher = plugin.getDispatcher();
+        plugin.getDatabaseManager().searchAsync(player.getUniqueId(), terms, page, pageSize, "§e", "§f")
+                .whenComplete((result, ex) -> {
+                    if (ex != null) {
+                        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                        plugin.getLogger().severe("Error searching history: " + cause.getMessage());
+                        queueMsg(player, "Search failed (check server logs).");
+                        return;
+                    }
+                    if (result.hits.isEmpty()) {
+                        queueMsg(player, page > 1 ? "No more results for \"" + terms + "\"." : "No messages match \"" + terms + "\".");
+                    } else {
+                        queueMsg(player, "Results for \"" + terms + "\" (page " + result.page + "):");
+                        for (DatabaseManager.SearchHit hit : result.hits) {
+                            String who = hit.role.equals("user") ? "§eYou" : "§bAI";
+                            dispatcher.send(player, "§7" + SEARCH_TIME.format(Instant.ofEpochSecond(hit.createdAt)) + " " + who + "§7: §f"
+                                    + hit.snippet.replace('\n', ' '));
+                        }
+                        if (result.more) {
+                            dispatcher.send(player, "§7More: /ai search --page " + (result.page + 1) + " " + terms);
+                        }
+                    }
+                    if (!result.complete) {
+                        dispatcher.send(player, "§7Older messages are still being indexed; results may be incomplete.");
+                    }
+                });
+    }
+
     @Override
     public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
         if (args.length == 0) {
-            sendMsg(sender, "Usage: /ai chat <message> | /ai view | /ai export | /ai clear | /ai reload");
+            sendMsg(sender, "Usage: /ai chat <message> | /ai view | /ai search <words> | /ai export | /ai clear | /ai reload | /ai cache | /ai stats | /ai usage");
             return true;
         }
 
@@ -43,57 +236,101 @@ public class AiCommand implements CommandExecutor {
             return true;
         }
 
+        if (sub.equals("cache")) {
+            if (!sender.hasPermission("ai.admin") && !sender.isOp()) {
+                sendMsg(sender, "You do not have permission to manage the response cache.");
+                return true;
+            }
+            ResponseCache cache = plugin.getResponseCache();
+            if (cache == null) {
+                sendMsg(sender, "Response cache is disabled (response_cache.enabled).");
+                return true;
+            }
+            if (args.length > 1 && args[1].equalsIgnoreCase("clear")) {
+                cache.clear();
+                sendMsg(sender, "Response cache cleared.");
+                return true;
+            }
+            sendMsg(sender, String.format("Response cache: %d entries, hit rate %.1f%% (%d hits, %d shared in-flight, %d misses), ~%.1fs upstream time saved.",
+                    cache.size(), cache.getHitRate() * 100, cache.getHits(), cache.getCoalesced(), cache.getMisses(), cache.getSavedMillis() / 1000.0));
+            return true;
+        }
+
+        if (sub.equals("stats")) {
+            if (!sender.hasPermission("ai.admin") && !sender.isOp()) {
+                sendMsg(sender, "You do not have permission to view AI stats.");
+                return true;
+            }
+            Map<String, LatencyHistogram.Snapshot> stages = plugin.getMetrics().snapshotStages();
+            sendMsg(sender, "Stage latencies (ms): count p50 / p95 / p99 / max");
+            if (stages.isEmpty()) sender.sendMessage("§7  no requests recorded yet");
+            for (Map.Entry<String, LatencyHistogram.Snapshot> e : stages.entrySet()) {
+                LatencyHistogram.Snapshot h = e.getValue();
+                sender.sendMessage(String.format("§7  %s: §e%d §7| §e%.1f §7/ §e%.1f §7/ §e%.1f §7/ §e%.1f", e.getKey(), h.count,
+                        h.percentile(0.50) / 1000.0, h.percentile(0.95) / 1000.0, h.percentile(0.99) / 1000.0, h.maxMicros / 1000.0));
+            }
+            RequestScheduler scheduler = plugin.getRequestScheduler();
+            sender.sendMessage("§7  in flight: §e" + scheduler.getInFlight() + " §7queued: §e" + scheduler.getQueued()
+                    + " §7chat lines waiting: §e" + plugin.getDispatcher().getQueued());
+            Map<InFlightRegistry.Kind, Integer> running = plugin.getInFlight().counts();
+            sender.sendMessage("§7  running: §e" + running.get(InFlightRegistry.Kind.CHAT) + " §7chats, §e" + running.get(InFlightRegistry.Kind.EXPORT)
+                    + " §7exports, §e" + running.get(InFlightRegistry.Kind.CLEAR) + " §7clears");
+            ConversationStore store = plugin.getDatabaseManager().getStore();
+            if (store instanceof PlayerFileStore) {
+                sender.sendMessage("§7  open player files: §e" + ((PlayerFileStore) store).getOpenConnections());
+            }
+            for (EndpointRouter.Route r : plugin.getRouter().getRoutes()) {
+                long p95 = r.recentPercentileMillis(0.95);
+                sender.sendMessage("§7  endpoint " + r.name + ": §e" + r.breaker.getState() + " §7outstanding §e" + r.getOutstanding()
+                        + " §7weight §e" + r.weight + " §7recent p95 §e" + (p95 < 0 ? "-" : p95 + "ms"));
+            }
+            for (Map.Entry<String, Long> e : plugin.getMetrics().snapshotCounters().entrySet()) {
+                sender.sendMessage("§7  " + e.getKey() + ": §e" + e.getValue());
+            }
+            return true;
+        }
+
+        if (sub.equals("usage")) {
+            if (!sender.hasPermission("ai.admin") && !sender.isOp()) {
+                sendMsg(sender, "You do not have permission to view AI usage.");
+                return true;
+            }
+            int count = 10;
+            if (args.length > 1) {
+                try {
+                    count = Math.max(1, Integer.parseInt(args[1]));
+                } catch (NumberFormatException ex) {
+                    sendMsg(sender, "Usage: /ai usage [count]");
+                    return true;
+                }
+            }
+            showUsage(sender, count);
+            return true;
+        }
+
         if (sub.equals("chat")) {
             if (!(sender instanceof Player)) {
                 sendMsg(sender, "Only players can use /ai chat.");
                 return true;
             }
-            if (args.length < 2) {
-                sendMsg(sender, "Usage: /ai chat <message>");
+            // --fresh skips the response cache for this message
+            boolean fresh = args.length > 1 && args[1].equalsIgnoreCase("--fresh");
+            int from = fresh ? 2 : 1;
+            if (args.length <= from) {
+                sendMsg(sender, "Usage: /ai chat [--fresh] <message>");
                 return true;
             }
             Player player = (Player) sender;
             UUID uuid = player.getUniqueId();
-            String message = String.join(" ", java.util.Arrays.copyOfRange(args, 1, args.length));
-
-            // Run async to avoid blocking server thread
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        int context = plugin.getConfig().getInt("context_messages", 8);
-                        List<DatabaseManager.StoredMessage> history = plugin.getDatabaseManager().getConversation(uuid, context);
-                        // Add user's message to DB
-                        plugin.getDatabaseManager().addMessage(uuid, "user", message);
-                        // Build messages list for client
-                        java.util.ArrayList<CerebrasClient.Message> messages = new java.util.ArrayList<>();
-                        for (DatabaseManager.StoredMessage sm : history) {
-                            messages.add(new CerebrasClient.Message(sm.role, sm.content));
-                        }
-                        messages.add(new CerebrasClient.Message("user", message));
-
-                        String reply = plugin.getCerebrasClient().generate(messages);
-                        if (reply == null) {
-                            reply = "No response (check server logs or API key/endpoint).";
-                        } else {
-                            // store assistant message
-                            plugin.getDatabaseManager().addMessage(uuid, "assistant", reply);
-                        }
-
-                        final String finalReply = reply;
-                        // send message back on main thread
-                        Bukkit.getScheduler().runTask(plugin, () -> {
-                            player.sendMessage("§6[AI Assistant] §r" + finalReply);
-                        });
-
-                    } catch (Exception ex) {
-                        plugin.getLogger().severe("Error during AI chat: " + ex.getMessage());
-                        ex.printStackTrace();
-                        Bukkit.getScheduler().runTask(plugin, () -> sendMsg(player, "An error occurred while processing your request."));
-                    }
-                }
-            }.runTaskAsynchronously(plugin);
+            String message = String.join(" ", java.util.Arrays.copyOfRange(args, from, args.length));
 
+            // before anything is queued, read or sent: a player over quota costs nothing
+            UsageTracker.Limit limit = player.hasPermission("ai.usage.unlimited") ? null : plugin.getUsage().check(uuid);
+            if (limit != null) {
+                sendMsg(player, quotaMessage(limit));
+                return true;
+            }
+            startChat(player, uuid, message, fresh);
             return true;
         }
 
@@ -107,8 +344,38 @@ public class AiCommand implements CommandExecutor {
                 sendMsg(player, "You don't have permission to view your AI history.");
                 return true;
             }
-            List<DatabaseManager.StoredMessage> history = plugin.getDatabaseManager().getConversation(player.getUniqueId(), plugin.getConfig().getInt("view_messages", 20));
-            plugin.getGuiManager().openConversation(player, history);
+            plugin.getGuiManager().openHistoryAsync(player, plugin.getConfig().getInt("view_messages", 32));
+            return true;
+        }
+
+        if (sub.equals("search")) {
+            if (!(sender instanceof Player)) {
+                sendMsg(sender, "Only players can use /ai search.");
+                return true;
+            }
+            Player player = (Player) sender;
+            if (!player.hasPermission("ai.history.search")) {
+                sendMsg(player, "You don't have permission to search your AI history.");
+                return true;
+            }
+            // --page N selects a later page of results
+            int page = 1;
+            int from = 1;
+            if (args.length > 2 && args[1].equalsIgnoreCase("--page")) {
+                try {
+                    page = Math.max(1, Integer.parseInt(args[2]));
+                } catch (NumberFormatException ex) {
+                    sendMsg(player, "Usage: /ai search [--page N] <words>");
+                    return true;
+                }
+                from = 3;
+            }
+            if (args.length <= from) {
+                sendMsg(player, "Usage: /ai search [--page N] <words>");
+                return true;
+            }
+            String terms = String.join(" ", java.util.Arrays.copyOfRange(args, from, args.length));
+            searchHistory(player, terms, page);
             return true;
         }
 
@@ -123,25 +390,31 @@ public class AiCommand implements CommandExecutor {
                 return true;
             }
 
+            int maxMessages = plugin.getConfig().getInt("export_max_messages", 1000);
+            HistoryExporter.Format format = HistoryExporter.Format.parse(plugin.getConfig().getString("export_format", "json"));
+            boolean gzip = plugin.getConfig().getBoolean("export_gzip", false);
+            // not cancelled on quit; tracked so shutdown waits for the file to be complete
+            InFlightRegistry.Operation op = plugin.getInFlight().begin(player.getUniqueId(), InFlightRegistry.Kind.EXPORT);
+
             new BukkitRunnable() {
                 @Override
                 public void run() {
                     try {
-                        List<DatabaseManager.StoredMessage> history = plugin.getDatabaseManager().getConversation(player.getUniqueId(), plugin.getConfig().getInt("export_max_messages", 1000));
                         File exportDir = new File(plugin.getDataFolder(), "exports");
                         if (!exportDir.exists()) exportDir.mkdirs();
-                        String filename = player.getUniqueId().toString() + "_" + Instant.now().getEpochSecond() + ".json";
+                        String filename = HistoryExporter.fileName(player.getUniqueId(), Instant.now().getEpochSecond(), format, gzip);
                         File out = new File(exportDir, filename);
 
-                        try (FileWriter fw = new FileWriter(out)) {
-                            fw.write(plugin.getGson().toJson(history));
-                        }
+                        // rows go from the database cursor straight to the file
+                        long count = new HistoryExporter(plugin.getDatabaseManager()).export(player.getUniqueId(), out, format, gzip, maxMessages);
 
-                        Bukkit.getScheduler().runTask(plugin, () -> sendMsg(player, "Exported history to: plugins/" + plugin.getName() + "/exports/" + filename));
+                        queueMsg(player, "Exported " + count + " messages to: plugins/" + plugin.getName() + "/exports/" + filename);
                     } catch (Exception ex) {
                         plugin.getLogger().severe("Error exporting history: " + ex.getMessage());
                         ex.printStackTrace();
-                        Bukkit.getScheduler().runTask(plugin, () -> sendMsg(player, "Failed to export history."));
+                        queueMsg(player, "Failed to export history.");
+                    } finally {
+                        op.done();
                     }
                 }
             }.runTaskAsynchronously(plugin);
@@ -161,19 +434,19 @@ public class AiCommand implements CommandExecutor {
             }
 
             // Clear async
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        plugin.getDatabaseManager().clearConversation(player.getUniqueId());
-                        Bukkit.getScheduler().runTask(plugin, () -> sendMsg(player, "Your AI history has been cleared."));
-                    } catch (Exception ex) {
-                        plugin.getLogger().severe("Error clearing history: " + ex.getMessage());
-                        ex.printStackTrace();
-                        Bukkit.getScheduler().runTask(plugin, () -> sendMsg(player, "Failed to clear history."));
-                    }
-                }
-            }.runTaskAsynchronously(plugin);
+            plugin.getContextBuilder().forget(player.getUniqueId());
+            InFlightRegistry.Operation op = plugin.getInFlight().begin(player.getUniqueId(), InFlightRegistry.Kind.CLEAR);
+            plugin.getDatabaseManager().clearConversationAsync(player.getUniqueId())
+                    .whenComplete((v, ex) -> {
+                        op.done();
+                        if (ex != null) {
+                            plugin.getLogger().severe("Error clearing history: " + ex.getMessage());
+                            ex.printStackTrace();
+                            queueMsg(player, "Failed to clear history.");
+                        } else {
+                            queueMsg(player, "Your AI history has been cleared.");
+                        }
+                    });
 
             return true;
         }
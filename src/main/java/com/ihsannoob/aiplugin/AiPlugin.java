@@ -1,35 +1,160 @@
 package com.ihsannoob.aiplugin;
 
 import com.google.gson.Gson;
+import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public final class AiPlugin extends JavaPlugin {
 
-    private CerebrasClient cerebrasClient;
+    private static final String RESPONSE_CACHE_FILE = "response_cache.json";
+
+    // swapped as a whole on reload; a chat keeps the router it started with
+    private volatile EndpointRouter router;
+    private final HttpTransports transports = new HttpTransports();
     private DatabaseManager databaseManager;
     private Gson gson;
     private GuiManager guiManager;
+    private RequestScheduler requestScheduler;
+    private ContextBuilder contextBuilder;
+    private ResponseCache responseCache;
+    private Metrics metrics;
+    private BukkitTask metricsExportTask;
+    private UsageTracker usage;
+    private BukkitTask usageFlushTask;
+    private MessageDispatcher dispatcher;
+    private InFlightRegistry inFlight;
+    // null when retention.enabled is false
+    private RetentionJob retentionJob;
+    // null unless storage.compression.enabled (per-player files only)
+    private CompressionJob compressionJob;
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
         gson = new Gson();
+        metrics = new Metrics();
 
         // Ensure plugin data folder exists
         File data = getDataFolder();
         if (!data.exists()) data.mkdirs();
 
-        // Init DB manager (per-player sqlite files inside plugin folder)
-        databaseManager = new DatabaseManager(getDataFolder(), getLogger());
+        // Init DB manager (per-player sqlite files inside plugin folder, one shared WAL database, or an external JDBC database)
+        String storageMode = getConfig().getString("storage.mode", "per-player");
+        databaseManager = "jdbc".equalsIgnoreCase(storageMode) ? openJdbcStorage() : null;
+        boolean remoteStorage = databaseManager != null;
+        if (databaseManager == null) {
+            databaseManager = new DatabaseManager(getDataFolder(), getLogger(),
+                    getConfig().getInt("db_threads", 2),
+                    "shared".equalsIgnoreCase(storageMode),
+                    getConfig().getInt("storage.readers", 4));
+        }
+        databaseManager.enableMetrics(metrics);
+        if (databaseManager.getStore() instanceof PlayerFileStore) {
+            // players' files are closed when they quit, after being idle, or when too many are open
+            ((PlayerFileStore) databaseManager.getStore()).configureConnections(
+                    getConfig().getInt("storage.max_open_files", 256),
+                    getConfig().getLong("storage.idle_close_seconds", 300) * 1000L,
+                    metrics);
+        }
+        // a remote database is always written behind, so chat never waits on a network round trip
+        if (remoteStorage || getConfig().getBoolean("storage.write_behind.enabled", false)) {
+            databaseManager.enableWriteBehind(
+                    getConfig().getInt("storage.write_behind.queue_capacity", 10000),
+                    getConfig().getInt("storage.write_behind.batch_size", 256),
+                    getConfig().getLong("storage.write_behind.flush_interval_ms", 200));
+        }
+        // expired messages are moved here by the retention job; full exports read it back
+        databaseManager.enableArchive(new MessageArchive(new File(getDataFolder(), "archive")));
+        databaseManager.enableSearch(
+                getConfig().getInt("search.backfill_batch", 500),
+                getConfig().getLong("search.backfill_pause_ms", 50));
+        if (getConfig().getBoolean("cache.enabled", true)) {
+            databaseManager.enableCache(
+                    getConfig().getInt("cache.messages_per_player", 32),
+                    getConfig().getLong("cache.max_memory_mb", 32) * 1024L * 1024L);
+        }
+
+        // Background retention: archive + delete old messages, then incremental vacuum
+        if (getConfig().getBoolean("retention.enabled", false)) {
+            retentionJob = new RetentionJob(databaseManager,
+                    getConfig().getLong("retention.max_age_days", 90) * 86400L,
+                    getConfig().getInt("retention.max_messages", 1000),
+                    getConfig().getInt("retention.batch_size", 200),
+                    getConfig().getLong("retention.pause_ms", 100),
+                    getConfig().getBoolean("retention.archive", true),
+                    metrics, getLogger());
+            long interval = getConfig().getLong("retention.interval_minutes", 360) * 60_000L;
+            // first run a few minutes after start, away from the join rush
+            retentionJob.start(Math.min(interval, 5 * 60_000L), interval);
+        }
+
+        // Background compression of stored messages with a trained dictionary
+        if (getConfig().getBoolean("storage.compression.enabled", false)) {
+            if (databaseManager.getStore() instanceof PlayerFileStore) {
+                compressionJob = new CompressionJob((PlayerFileStore) databaseManager.getStore(), databaseManager.getCodec(),
+                        getConfig().getInt("storage.compression.min_chars", 200),
+                        getConfig().getInt("storage.compression.sample_messages", 2000),
+                        getConfig().getInt("storage.compression.dictionary_kb", 32) * 1024,
+                        getConfig().getInt("storage.compression.batch_size", 200),
+                        getConfig().getLong("storage.compression.pause_ms", 100),
+                        metrics, getLogger());
+                compressionJob.start(2 * 60_000L, getConfig().getLong("storage.compression.interval_minutes", 60) * 60_000L);
+            } else {
+                getLogger().warning("storage.compression only applies to storage.mode: per-player; ignoring it.");
+            }
+        }
+
+        // Shared cache of replies to repeated prompts
+        if (getConfig().getBoolean("response_cache.enabled", false)) {
+            responseCache = new ResponseCache(
+                    getConfig().getLong("response_cache.ttl_seconds", 600) * 1000L,
+                    getConfig().getInt("response_cache.max_entries", 1000));
+            if (getConfig().getBoolean("response_cache.persist", true)) {
+                try {
+                    int loaded = responseCache.load(new File(getDataFolder(), RESPONSE_CACHE_FILE));
+                    if (loaded > 0) getLogger().info("Loaded " + loaded + " cached responses.");
+                } catch (Exception ex) {
+                    getLogger().warning("Could not load response cache: " + ex.getMessage());
+                }
+            }
+        }
+
+        // Init request scheduler and chat output dispatcher (limits are applied by reloadCerebrasClient)
+        requestScheduler = new RequestScheduler(getLogger());
+        inFlight = new InFlightRegistry(metrics, getLogger());
+        dispatcher = new MessageDispatcher(this, metrics);
+        // token usage per player; today's counts are read back so quotas survive a restart
+        usage = new UsageTracker(new File(getDataFolder(), "usage"), metrics, getLogger());
+        try {
+            usage.load();
+        } catch (Exception ex) {
+            getLogger().warning("Could not load today's token usage: " + ex.getMessage());
+        }
+        contextBuilder = new ContextBuilder(databaseManager, requestScheduler, this::getRouter, usage, getLogger());
 
         // Init Cerebras client using config values
         reloadCerebrasClient();
+        dispatcher.start();
 
         // Init GUI manager (registers events)
         guiManager = new GuiManager(this);
 
+        // Join/quit hooks (history cache warm-up and eviction)
+        new PlayerListener(this);
+
         // Register command
         if (getCommand("ai") != null) {
             getCommand("ai").setExecutor(new AiCommand(this));
@@ -40,16 +165,78 @@ public final class AiPlugin extends JavaPlugin {
         getLogger().info("AICerebrasPlugin enabled.");
     }
 
+    // null (and per-player files are used) when the database can't be reached
+    private DatabaseManager openJdbcStorage() {
+        int poolSize = Math.max(1, getConfig().getInt("storage.jdbc.pool_size", 4));
+        try {
+            JdbcConversationStore store = new JdbcConversationStore(
+                    getConfig().getString("storage.jdbc.url", ""),
+                    getConfig().getString("storage.jdbc.user", ""),
+                    getConfig().getString("storage.jdbc.password", ""),
+                    poolSize,
+                    getConfig().getString("storage.jdbc.table_prefix", "aicerebras_"),
+                    getLogger());
+            // one thread per connection, so reads on the pool never queue behind each other
+            return new DatabaseManager(store, getLogger(), Math.max(poolSize, getConfig().getInt("db_threads", 2)));
+        } catch (SQLException ex) {
+            getLogger().severe("Failed to open storage.jdbc database, falling back to per-player files: " + ex.getMessage());
+            return null;
+        }
+    }
+
     @Override
     public void onDisable() {
+        if (metricsExportTask != null) {
+            metricsExportTask.cancel();
+        }
+        if (usageFlushTask != null) {
+            usageFlushTask.cancel();
+        }
+        if (requestScheduler != null) {
+            requestScheduler.shutdown();
+        }
+        if (inFlight != null) {
+            // chat turns already talking to the API, exports and clears finish (and store) before storage closes
+            inFlight.drain(getConfig().getLong("inflight.drain_timeout_ms", 5000));
+        }
+        if (usage != null) {
+            // after the drain, so the last replies are counted
+            try {
+                usage.flush();
+            } catch (Exception ex) {
+                getLogger().warning("Could not save token usage: " + ex.getMessage());
+            }
+        }
+        if (retentionJob != null) {
+            retentionJob.shutdown();
+        }
+        if (compressionJob != null) {
+            compressionJob.shutdown();
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        if (responseCache != null) {
+            getLogger().info(String.format("Response cache: hit rate %.1f%%, ~%ds upstream time saved.",
+                    responseCache.getHitRate() * 100, responseCache.getSavedMillis() / 1000));
+            if (getConfig().getBoolean("response_cache.persist", true)) {
+                try {
+                    responseCache.save(new File(getDataFolder(), RESPONSE_CACHE_FILE));
+                } catch (Exception ex) {
+                    getLogger().warning("Could not save response cache: " + ex.getMessage());
+                }
+            }
+        }
         if (databaseManager != null) {
+            // write-behind: make sure queued messages reach disk before connections close
+            databaseManager.flushPending();
             databaseManager.closeAll();
         }
         getLogger().info("AICerebrasPlugin disabled.");
     }
 
-    public CerebrasClient getCerebrasClient() {
-        return cerebrasClient;
+    public EndpointRouter getRouter() {
+        return router;
     }
 
     public DatabaseManager getDatabaseManager() {
@@ -64,6 +251,35 @@ public final class AiPlugin extends JavaPlugin {
         return guiManager;
     }
 
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public InFlightRegistry getInFlight() {
+        return inFlight;
+    }
+
+    public ContextBuilder getContextBuilder() {
+        return contextBuilder;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public UsageTracker getUsage() {
+        return usage;
+    }
+
+    /** Null when response_cache.enabled is false. */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
     public void reloadCerebrasClient() {
         // Reload config and recreate client
         reloadConfig();
@@ -72,9 +288,167 @@ public final class AiPlugin extends JavaPlugin {
         String model = getConfig().getString("model", "llama-3.3-70b");
         int maxTokens = getConfig().getInt("max_tokens", 512);
         int timeoutSeconds = getConfig().getInt("timeout_seconds", 30);
+        // reused across reloads unless timeout_seconds changed, so pooled connections survive
+        Duration timeout = CerebrasClient.timeoutOf(timeoutSeconds);
+        HttpClient http = transports.get(timeout);
+
+        // one route per configured endpoint; the top-level endpoint/api_key when the list is empty
+        List<EndpointRouter.Route> routes = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        List<Map<?, ?>> endpoints = getConfig().getMapList("endpoints");
+        if (endpoints.isEmpty()) {
+            String name = routeName(endpoint, null, names);
+            routes.add(new EndpointRouter.Route(name,
+                    new CerebrasClient(apiKey, endpoint, model, maxTokens, timeoutSeconds, http, getLogger(), metrics), 1, breakerFor(name, endpoint)));
+        }
+        for (Map<?, ?> e : endpoints) {
+            String url = value(e, "url", null);
+            if (url == null) {
+                getLogger().warning("Ignoring endpoints entry without url: " + e);
+                continue;
+            }
+            Object weight = e.get("weight");
+            String name = routeName(url, value(e, "name", null), names);
+            routes.add(new EndpointRouter.Route(name,
+                    new CerebrasClient(value(e, "api_key", apiKey), url, value(e, "model", model), maxTokens, timeoutSeconds, http, getLogger(), metrics),
+                    weight instanceof Number ? ((Number) weight).intValue() : 1, breakerFor(name, url)));
+        }
+        if (routes.isEmpty()) {
+            getLogger().warning("No usable endpoints configured, falling back to 'endpoint'");
+            String name = routeName(endpoint, null, names);
+            routes.add(new EndpointRouter.Route(name,
+                    new CerebrasClient(apiKey, endpoint, model, maxTokens, timeoutSeconds, http, getLogger(), metrics), 1, breakerFor(name, endpoint)));
+        }
+        // the same endpoint keeps its latency history, so hedging doesn't wait for new samples
+        for (EndpointRouter.Route r : routes) {
+            EndpointRouter.Route old = previousRoute(r.name, r.client.getEndpoint());
+            if (old != null) r.inheritLatency(old);
+        }
+        EndpointRouter previous = router;
+        router = new EndpointRouter(routes,
+                getConfig().getBoolean("routing.hedge.enabled", false),
+                getConfig().getDouble("routing.hedge.percentile", 0.95),
+                getConfig().getLong("routing.hedge.min_delay_ms", 500),
+                metrics, getLogger());
+        transports.retain(Collections.singleton(timeout));
+        if (previous != null && previous.getOutstanding() > 0) {
+            // nothing is closed: those requests finish on the old clients, new ones use the new router
+            getLogger().info(previous.getOutstanding() + " request(s) still running on the previous client will finish there.");
+        }
+        warmUp(router);
+        requestScheduler.configure(
+                getConfig().getInt("scheduler.max_in_flight", 16),
+                getConfig().getBoolean("scheduler.replace_queued", false),
+                getConfig().getDouble("scheduler.requests_per_second", 5.0),
+                getConfig().getInt("scheduler.burst", 10),
+                getConfig().getInt("scheduler.max_retries", 3));
+        inFlight.configure(getConfig().getString("inflight.on_quit", "cancel"));
+        dispatcher.configure(
+                getConfig().getInt("chat_output.lines_per_tick", 20),
+                getConfig().getLong("chat_output.tick_budget_us", 2000),
+                getConfig().getInt("chat_output.wrap_width", 256));
+        contextBuilder.configure(
+                getConfig().getInt("context.prompt_token_budget", 3000),
+                getConfig().getInt("context.max_message_tokens", 600),
+                getConfig().getBoolean("context.summary.enabled", false),
+                getConfig().getInt("context.summary.every_turns", 6),
+                getConfig().getInt("context.summary.max_words", 150),
+                getConfig().getInt("context_messages", 8));
+        contextBuilder.configureRetrieval(
+                getConfig().getBoolean("context.retrieval.enabled", false) ? getConfig().getInt("context.retrieval.top_k", 4) : 0,
+                getConfig().getInt("context.retrieval.max_tokens", 600),
+                getConfig().getInt("context.retrieval.max_indexed_messages", 2000));
+        usage.configure(
+                getConfig().getLong("usage.daily_tokens", 0),
+                getConfig().getLong("usage.tokens_per_minute", 0),
+                getConfig().getLong("usage.global_daily_tokens", 0));
+        scheduleMetricsExport();
+        scheduleUsageFlush();
+        getLogger().info("Cerebras client reloaded (model=" + model + ", endpoints=" + routes.size() + ")");
+    }
+
+    // pre-connect off the main thread so the first chat doesn't pay for DNS/TLS setup
+    private void warmUp(EndpointRouter target) {
+        long start = System.nanoTime();
+        target.warmUp().thenAccept(reached -> getLogger().info("Pre-connected to " + reached + " endpoint host(s) in "
+                + (System.nanoTime() - start) / 1_000_000L + " ms"));
+    }
+
+    // the breaker the same endpoint had before a reload, so one known to be down stays skipped
+    private CircuitBreaker breakerFor(String name, String url) {
+        int threshold = getConfig().getInt("routing.breaker.failure_threshold", 5);
+        long openMillis = getConfig().getLong("routing.breaker.open_seconds", 30) * 1000L;
+        EndpointRouter.Route old = previousRoute(name, url);
+        return old != null ? old.breaker.reconfigured(threshold, openMillis) : new CircuitBreaker(threshold, openMillis);
+    }
+
+    // route of the current router with this name and URL, or null
+    private EndpointRouter.Route previousRoute(String name, String url) {
+        EndpointRouter current = router;
+        if (current == null) return null;
+        for (EndpointRouter.Route r : current.getRoutes()) {
+            if (r.name.equals(name) && r.client.getEndpoint().equals(url)) return r;
+        }
+        return null;
+    }
+
+    private static String value(Map<?, ?> map, String key, String def) {
+        Object v = map.get(key);
+        return v == null || v.toString().isBlank() ? def : v.toString();
+    }
+
+    // configured name, else the endpoint's host; made unique for metrics labels
+    private static String routeName(String url, String name, Set<String> used) {
+        String base = name;
+        if (base == null) {
+            try {
+                base = URI.create(url).getHost();
+            } catch (IllegalArgumentException ex) {
+                base = null;
+            }
+            if (base == null) base = "endpoint";
+        }
+        String unique = base;
+        for (int i = 2; !used.add(unique); i++) unique = base + "#" + i;
+        return unique;
+    }
+
+    /**
+     * (Re)start the periodic Prometheus text export when metrics.prometheus_file is set.
+     */
+    private void scheduleMetricsExport() {
+        if (metricsExportTask != null) {
+            metricsExportTask.cancel();
+            metricsExportTask = null;
+        }
+        String path = getConfig().getString("metrics.prometheus_file", "");
+        if (path == null || path.isBlank()) return;
+        File file = new File(path);
+        if (!file.isAbsolute()) file = new File(getDataFolder(), path);
+        File target = file;
+        long period = Math.max(1, getConfig().getLong("metrics.export_interval_seconds", 15)) * 20L;
+        metricsExportTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+            try {
+                metrics.writePrometheus(target);
+            } catch (Exception ex) {
+                getLogger().warning("Failed to write metrics to " + target + ": " + ex.getMessage());
+            }
+        }, period, period);
+    }
 
-        cerebrasClient = new CerebrasClient(apiKey, endpoint, model, maxTokens, timeoutSeconds, getLogger(), getGson());
-        getLogger().info("Cerebras client reloaded (model=" + model + ")");
+    /**
+     * (Re)start the periodic write of the day's token usage to usage/<date>.json.
+     */
+    private void scheduleUsageFlush() {
+        if (usageFlushTask != null) usageFlushTask.cancel();
+        long period = Math.max(5, getConfig().getLong("usage.flush_interval_seconds", 60)) * 20L;
+        usageFlushTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+            try {
+                usage.flush();
+            } catch (Exception ex) {
+                getLogger().warning("Failed to save token usage: " + ex.getMessage());
+            }
+        }, period, period);
     }
 
 }
@@ -1,17 +1,28 @@
 package com.ihsannoob.aiplugin;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -29,6 +40,68 @@ public class CerebrasClient {
         }
     }
 
+    /**
+     * Non-2xx answer from the API. Async callers receive it as the failure of the returned future
+     * so they can react to the status (e.g. back off on 429/503).
+     */
+    public static class ApiException extends RuntimeException {
+        public final int status;
+        /** Delay requested by a Retry-After header, or -1 when absent. */
+        public final long retryAfterMillis;
+
+        public ApiException(int status, long retryAfterMillis, String body) {
+            super("Cerebras API returned non-2xx: " + status + " body: " + body);
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public boolean isRetryable() {
+            return status == 429 || status == 503;
+        }
+    }
+
+    /**
+     * Tokens and time one API request used: the provider's "usage" counts, or an estimate of about
+     * four characters per token (estimated = true) when the response carried none.
+     */
+    public static class Usage {
+        public final long promptTokens;
+        public final long completionTokens;
+        public final long latencyMillis;
+        public final boolean estimated;
+
+        public Usage(long promptTokens, long completionTokens, long latencyMillis, boolean estimated) {
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+            this.latencyMillis = latencyMillis;
+            this.estimated = estimated;
+        }
+    }
+
+    /**
+     * Per-thread buffer requests are encoded into; only the finished body is copied out.
+     * The UTF-8 writer is kept too, so encoding a request allocates no encoder or char buffers.
+     */
+    private static final class EncodeBuffer extends ByteArrayOutputStream {
+        // buffers grown past this by an unusually large prompt are dropped instead of kept per thread
+        static final int KEEP_LIMIT = 256 * 1024;
+        final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        EncodeBuffer() {
+            super(8 * 1024);
+        }
+
+        byte[] bytes() {
+            return Arrays.copyOf(buf, count);
+        }
+
+        boolean oversized() {
+            return buf.length > KEEP_LIMIT;
+        }
+    }
+
+    private static final ThreadLocal<EncodeBuffer> ENCODE_BUFFER = ThreadLocal.withInitial(EncodeBuffer::new);
+
     private final String apiKey;
     private final String endpoint;
     private final String model;
@@ -36,17 +109,69 @@ public class CerebrasClient {
     private final HttpClient http;
     private final Duration timeout;
     private final Logger logger;
-    private final Gson gson;
+    private final Metrics metrics;
+    // remembered response shapes: full bodies and streamed chunks differ, so one each
+    private final ContentExtractor bodyExtractor = new ContentExtractor();
+    private final ContentExtractor chunkExtractor = new ContentExtractor();
+
+    public CerebrasClient(String apiKey, String endpoint, String model, int maxTokens, int timeoutSeconds, Logger logger, Metrics metrics) {
+        this(apiKey, endpoint, model, maxTokens, timeoutSeconds, newHttpClient(timeoutOf(timeoutSeconds)), logger, metrics);
+    }
 
-    public CerebrasClient(String apiKey, String endpoint, String model, int maxTokens, int timeoutSeconds, Logger logger, Gson gson) {
+    /**
+     * @param http transport to send on, normally shared through {@link HttpTransports} so that
+     *             its pooled connections outlive this client
+     */
+    public CerebrasClient(String apiKey, String endpoint, String model, int maxTokens, int timeoutSeconds, HttpClient http, Logger logger, Metrics metrics) {
         this.apiKey = apiKey;
         this.endpoint = endpoint;
         this.model = model;
         this.maxTokens = maxTokens;
-        this.timeout = Duration.ofSeconds(Math.max(5, timeoutSeconds));
-        this.http = HttpClient.newBuilder().connectTimeout(this.timeout).build();
+        this.timeout = timeoutOf(timeoutSeconds);
+        this.http = http;
         this.logger = logger;
-        this.gson = gson;
+        this.metrics = metrics;
+    }
+
+    /** Request and connect timeout for a timeout_seconds setting. */
+    public static Duration timeoutOf(int timeoutSeconds) {
+        return Duration.ofSeconds(Math.max(5, timeoutSeconds));
+    }
+
+    public static HttpClient newHttpClient(Duration connectTimeout) {
+        return HttpClient.newBuilder().connectTimeout(connectTimeout).build();
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Open a connection to the endpoint ahead of the first chat (DNS, TCP, TLS, HTTP/2 setup) with a
+     * body-less HEAD request, so the connection sits in the pool when a player needs it.
+     * Any status counts as success; the future completes with false only when nothing could connect.
+     */
+    public CompletableFuture<Boolean> warmUp() {
+        if (apiKey == null || apiKey.isBlank()) return CompletableFuture.completedFuture(false);
+        try {
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(endpoint))
+                    .timeout(timeout)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .build();
+            return http.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .handle((resp, ex) -> {
+                        if (ex != null) logger.fine("Pre-connect to " + endpoint + " failed: " + ex.getMessage());
+                        return ex == null;
+                    });
+        } catch (Exception ex) {
+            logger.fine("Pre-connect to " + endpoint + " failed: " + ex.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
     }
 
     /**
@@ -60,87 +185,315 @@ public class CerebrasClient {
         }
 
         try {
-            JsonObject payload = new JsonObject();
-            payload.addProperty("model", model);
+            HttpRequest request = buildRequest(messages, false);
+            long start = System.nanoTime();
+            HttpResponse<String> resp = http.send(request, HttpResponse.BodyHandlers.ofString());
+            metrics.record(Metrics.HTTP, start);
+            return parseResponse(resp);
+        } catch (ApiException ex) {
+            return null;
+        } catch (IOException | InterruptedException ex) {
+            logger.severe("Error calling Cerebras API: " + ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        } catch (Exception ex) {
+            logger.severe("Unexpected error in Cerebras client: " + ex.getMessage());
+            ex.printStackTrace();
+            return null;
+        }
+    }
 
-            // Build messages array (adapts to common "messages" format)
-            JsonArray msgs = new JsonArray();
-            for (Message m : messages) {
-                JsonObject mo = new JsonObject();
-                mo.addProperty("role", m.role);
-                mo.addProperty("content", m.content);
-                msgs.add(mo);
-            }
-            payload.add("messages", msgs);
-            payload.addProperty("max_tokens", maxTokens);
+    /**
+     * Non-blocking variant of {@link #generate(List)} built on HttpClient.sendAsync.
+     * No thread waits on the network; the future completes with the assistant text or null on error,
+     * or fails with {@link ApiException} when the API answers with a non-2xx status.
+     */
+    public CompletableFuture<String> generateAsync(List<Message> messages) {
+        return generateAsync(messages, null);
+    }
 
-            String body = gson.toJson(payload);
+    /**
+     * {@link #generateAsync(List)} that also hands the request's token usage to onUsage (may be null)
+     * once a 2xx response has been read.
+     */
+    public CompletableFuture<String> generateAsync(List<Message> messages, Consumer<Usage> onUsage) {
+        if (apiKey == null || apiKey.isBlank()) {
+            logger.warning("Cerebras API key is empty. Set api_key in config.yml");
+            return CompletableFuture.completedFuture(null);
+        }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(endpoint))
-                    .timeout(timeout)
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", "Bearer " + apiKey)
-                    .POST(HttpRequest.BodyPublishers.ofString(body))
-                    .build();
+        try {
+            HttpRequest request = buildRequest(messages, false);
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<String>> sent = http.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            // cancelling the returned future aborts the HTTP exchange
+            return InFlightRegistry.cancelling(sent
+                    .thenApply(resp -> {
+                        metrics.record(Metrics.HTTP, start);
+                        String text = parseResponse(resp);
+                        if (onUsage != null) reportUsage(onUsage, messages, usageOf(resp.body()), text, start);
+                        return text;
+                    })
+                    .exceptionally(this::logFailure), sent);
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(logFailure(ex));
+        }
+    }
 
-            HttpResponse<String> resp = http.send(request, HttpResponse.BodyHandlers.ofString());
-            int status = resp.statusCode();
-            String respBody = resp.body();
-            if (status / 100 != 2) {
-                logger.warning("Cerebras API returned non-2xx: " + status + " body: " + respBody);
-                return null;
-            }
+    /**
+     * Generate a response with "stream": true, reading server-sent events as they arrive.
+     * Every completed sentence or line is handed to onSegment (on an HttpClient thread) while the
+     * rest of the answer is still being generated. The future completes with the full assistant text, or null on error;
+     * non-2xx statuses fail it with {@link ApiException} before any segment is emitted.
+     */
+    public CompletableFuture<String> generateStreamAsync(List<Message> messages, Consumer<String> onSegment) {
+        return generateStreamAsync(messages, onSegment, null);
+    }
 
-            // Try to parse common fields. Different providers return different JSON shapes.
-            JsonElement root = gson.fromJson(respBody, JsonElement.class);
-            if (root == null || root.isJsonNull()) return null;
-            JsonObject rootObj = root.getAsJsonObject();
-
-            // Attempt 1: common structure with choices -> message -> content
-            if (rootObj.has("choices")) {
-                JsonArray choices = rootObj.getAsJsonArray("choices");
-                if (choices.size() > 0) {
-                    JsonObject first = choices.get(0).getAsJsonObject();
-                    if (first.has("message")) {
-                        JsonObject msg = first.getAsJsonObject("message");
-                        if (msg.has("content")) {
-                            return msg.get("content").getAsString();
-                        }
-                    } else if (first.has("text")) {
-                        return first.get("text").getAsString();
-                    } else if (first.has("delta")) {
-                        JsonObject delta = first.getAsJsonObject("delta");
-                        if (delta.has("content")) return delta.get("content").getAsString();
-                    }
-                }
-            }
+    /**
+     * {@link #generateStreamAsync(List, Consumer)} that also hands the request's token usage to onUsage
+     * (may be null) once the stream has ended; providers send it in the last chunk, if at all.
+     */
+    public CompletableFuture<String> generateStreamAsync(List<Message> messages, Consumer<String> onSegment, Consumer<Usage> onUsage) {
+        if (apiKey == null || apiKey.isBlank()) {
+            logger.warning("Cerebras API key is empty. Set api_key in config.yml");
+            return CompletableFuture.completedFuture(null);
+        }
 
-            // Attempt 2: some APIs return an "output" array
-            if (rootObj.has("output")) {
-                JsonArray out = rootObj.getAsJsonArray("output");
-                if (out.size() > 0) {
-                    JsonObject first = out.get(0).getAsJsonObject();
-                    if (first.has("content")) return first.get("content").getAsString();
-                    if (first.has("generated_text")) return first.get("generated_text").getAsString();
+        try {
+            HttpRequest request = buildRequest(messages, true);
+            long start = System.nanoTime();
+            SseSubscriber sse = new SseSubscriber(onSegment, start);
+            HttpResponse.BodyHandler<String> handler = info -> {
+                if (info.statusCode() / 100 != 2) {
+                    // error bodies are plain JSON, keep them for the log
+                    return HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
                 }
-            }
+                return HttpResponse.BodySubscribers.fromLineSubscriber(sse, SseSubscriber::result, StandardCharsets.UTF_8, "\n");
+            };
+            CompletableFuture<HttpResponse<String>> sent = http.sendAsync(request, handler);
+            return InFlightRegistry.cancelling(sent
+                    .thenApply(resp -> {
+                        // covers the whole stream; time to first token is recorded separately
+                        metrics.record(Metrics.HTTP, start);
+                        if (resp.statusCode() / 100 != 2 && resp.body() != null) {
+                            metrics.add(Metrics.HTTP_BYTES_RECEIVED, Metrics.utf8Length(resp.body()));
+                        }
+                        checkStatus(resp);
+                        if (onUsage != null) reportUsage(onUsage, messages, sse.usage, resp.body(), start);
+                        return resp.body();
+                    })
+                    .exceptionally(this::logFailure), sent);
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(logFailure(ex));
+        }
+    }
 
-            // Attempt 3: direct field "text" or "generated_text"
-            if (rootObj.has("text")) return rootObj.get("text").getAsString();
-            if (rootObj.has("generated_text")) return rootObj.get("generated_text").getAsString();
+    private String parseResponse(HttpResponse<String> resp) {
+        String respBody = resp.body();
+        if (respBody != null) metrics.add(Metrics.HTTP_BYTES_RECEIVED, Metrics.utf8Length(respBody));
+        checkStatus(resp);
+        return parseBody(respBody);
+    }
 
+    /**
+     * Assistant text from a 2xx response body, or null when no known field is present.
+     */
+    String parseBody(String respBody) {
+        if (respBody == null || respBody.isBlank()) return null;
+        long start = System.nanoTime();
+        String content;
+        try {
+            content = bodyExtractor.extract(respBody);
+        } catch (IOException | IllegalStateException ex) {
+            // malformed JSON
+            content = null;
+        }
+        metrics.record(Metrics.PARSE, start);
+        if (content == null) {
             logger.warning("Could not parse Cerebras response: " + respBody);
-            return null;
+        }
+        return content;
+    }
 
-        } catch (IOException | InterruptedException ex) {
-            logger.severe("Error calling Cerebras API: " + ex.getMessage());
-            ex.printStackTrace();
-            return null;
-        } catch (Exception ex) {
-            logger.severe("Unexpected error in Cerebras client: " + ex.getMessage());
-            ex.printStackTrace();
+    // [prompt, completion] from a body's "usage" block, or null without one
+    private static long[] usageOf(String body) {
+        if (body == null || !body.contains("\"usage\"")) return null;
+        try {
+            return ContentExtractor.usage(body);
+        } catch (IOException | IllegalStateException ex) {
             return null;
         }
     }
+
+    private void reportUsage(Consumer<Usage> onUsage, List<Message> messages, long[] counted, String reply, long startNanos) {
+        long latency = (System.nanoTime() - startNanos) / 1_000_000L;
+        Usage usage;
+        if (counted != null) {
+            usage = new Usage(counted[0], counted[1], latency, false);
+        } else {
+            long prompt = 0;
+            for (Message m : messages) prompt += ContextBuilder.estimateTokens(m.content);
+            usage = new Usage(prompt, ContextBuilder.estimateTokens(reply), latency, true);
+        }
+        try {
+            onUsage.accept(usage);
+        } catch (RuntimeException ex) {
+            // accounting must never cost the player their reply
+            logger.warning("Failed to record token usage: " + ex.getMessage());
+        }
+    }
+
+    private void checkStatus(HttpResponse<String> resp) {
+        int status = resp.statusCode();
+        if (status / 100 == 2) return;
+        metrics.increment(Metrics.labelled(Metrics.HTTP_ERRORS, "status", Integer.toString(status)));
+        ApiException ex = new ApiException(status, retryAfterMillis(resp), resp.body());
+        logger.warning(ex.getMessage());
+        throw ex;
+    }
+
+    /**
+     * Parse a Retry-After header, given either as delta-seconds or as an HTTP date.
+     */
+    private static long retryAfterMillis(HttpResponse<?> resp) {
+        String value = resp.headers().firstValue("Retry-After").orElse(null);
+        if (value == null || value.isBlank()) return -1;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException ignore) {
+        }
+        try {
+            ZonedDateTime at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+        } catch (DateTimeParseException ignore) {
+            return -1;
+        }
+    }
+
+    private String logFailure(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        // status failures were already logged; hand them on to the caller
+        if (cause instanceof ApiException) throw (ApiException) cause;
+        // the caller gave up on the request (player left, shutdown); not an error
+        if (cause instanceof CancellationException) throw (CancellationException) cause;
+        if (cause instanceof IOException) {
+            metrics.increment(Metrics.labelled(Metrics.HTTP_ERRORS, "status", "network"));
+            logger.severe("Error calling Cerebras API: " + cause.getMessage());
+        } else {
+            logger.severe("Unexpected error in Cerebras client: " + cause.getMessage());
+        }
+        cause.printStackTrace();
+        return null;
+    }
+
+    /**
+     * Line subscriber for server-sent events. Only "data:" lines carry payload;
+     * comments, "event:" lines and blank separators are skipped.
+     */
+    private final class SseSubscriber implements Flow.Subscriber<String> {
+        private final StringBuilder full = new StringBuilder();
+        private final StreamSegmenter segmenter;
+        private final long startNanos;
+        private boolean done;
+        // from the chunk carrying "usage" (usually the last one), null when none did
+        volatile long[] usage;
+
+        SseSubscriber(Consumer<String> onSegment, long startNanos) {
+            this.segmenter = new StreamSegmenter(onSegment);
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            metrics.add(Metrics.HTTP_BYTES_RECEIVED, Metrics.utf8Length(line) + 1);
+            if (done || !line.startsWith("data:")) return;
+            String data = line.substring(5).trim();
+            if (data.isEmpty()) return;
+            if (data.equals("[DONE]")) {
+                done = true;
+                return;
+            }
+            long[] counted = usageOf(data);
+            if (counted != null) usage = counted;
+
+            String delta;
+            try {
+                delta = chunkExtractor.extract(data);
+            } catch (IOException | IllegalStateException ex) {
+                return;
+            }
+            if (delta == null || delta.isEmpty()) return;
+            if (full.length() == 0) metrics.record(Metrics.FIRST_TOKEN, startNanos);
+            full.append(delta);
+            segmenter.accept(delta);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // surfaced through the response future
+        }
+
+        @Override
+        public void onComplete() {
+            segmenter.flush();
+        }
+
+        String result() {
+            return full.length() > 0 ? full.toString() : null;
+        }
+    }
+
+    HttpRequest buildRequest(List<Message> messages, boolean stream) {
+        byte[] body = encodePayload(messages, stream);
+        metrics.increment(Metrics.HTTP_REQUESTS);
+        metrics.add(Metrics.HTTP_BYTES_SENT, body.length);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + apiKey);
+        if (stream) builder.header("Accept", "text/event-stream");
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    /**
+     * Write the JSON payload field by field (common "messages" format) straight into the
+     * thread's encode buffer, without building a JsonObject tree or an intermediate String.
+     */
+    byte[] encodePayload(List<Message> messages, boolean stream) {
+        EncodeBuffer buf = ENCODE_BUFFER.get();
+        buf.reset();
+        try {
+            // not closed: that would close the reused writer
+            JsonWriter jw = new JsonWriter(buf.writer);
+            jw.beginObject();
+            jw.name("model").value(model);
+            jw.name("messages").beginArray();
+            for (Message m : messages) {
+                jw.beginObject();
+                jw.name("role").value(m.role);
+                jw.name("content").value(m.content);
+                jw.endObject();
+            }
+            jw.endArray();
+            jw.name("max_tokens").value(maxTokens);
+            if (stream) jw.name("stream").value(true);
+            jw.endObject();
+            jw.flush();
+        } catch (IOException ex) {
+            // in-memory buffer, can't happen
+            throw new UncheckedIOException(ex);
+        }
+        byte[] body = buf.bytes();
+        if (buf.oversized()) ENCODE_BUFFER.remove();
+        return body;
+    }
 }
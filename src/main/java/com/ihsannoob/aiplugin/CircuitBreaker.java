@@ -0,0 +1,98 @@
+package com.ihsannoob.aiplugin;
+
+/**
+ * Per-endpoint circuit breaker. After failureThreshold consecutive failures the endpoint is skipped
+ * for openMillis; then a single trial request is let through (half-open). Its success closes the
+ * breaker, its failure opens it again. A Retry-After on a failure keeps the endpoint closed off at
+ * least that long, even below the threshold.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int failures;
+    // 0 while closed; otherwise when the open period ends (System.nanoTime())
+    private long openUntil;
+    private boolean trialInFlight;
+    private long opened;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(100, openMillis);
+    }
+
+    /**
+     * This breaker when the settings are unchanged (e.g. after a reload), otherwise a new one that starts
+     * in the same state. A half-open trial still running is not carried over: it reports to this breaker.
+     */
+    public synchronized CircuitBreaker reconfigured(int failureThreshold, long openMillis) {
+        if (Math.max(1, failureThreshold) == this.failureThreshold && Math.max(100, openMillis) == this.openMillis) return this;
+        CircuitBreaker b = new CircuitBreaker(failureThreshold, openMillis);
+        b.failures = failures;
+        b.openUntil = openUntil;
+        b.opened = opened;
+        return b;
+    }
+
+    /** Whether a request could be sent now (does not claim the half-open trial). */
+    public synchronized boolean isAvailable() {
+        if (openUntil == 0) return true;
+        return System.nanoTime() >= openUntil && !trialInFlight;
+    }
+
+    /**
+     * Claim permission to send one request. In the half-open state only one caller gets it.
+     */
+    public synchronized boolean tryAcquire() {
+        if (openUntil == 0) return true;
+        if (System.nanoTime() < openUntil || trialInFlight) return false;
+        trialInFlight = true;
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        openUntil = 0;
+        trialInFlight = false;
+    }
+
+    /** The request was abandoned by its caller: release the half-open trial without a verdict. */
+    public synchronized void onCancelled() {
+        trialInFlight = false;
+    }
+
+    /**
+     * @param retryAfterMillis delay the endpoint asked for, or &lt;= 0 when none
+     */
+    public synchronized void onFailure(long retryAfterMillis) {
+        failures++;
+        long now = System.nanoTime();
+        if (trialInFlight || failures >= failureThreshold) {
+            if (openUntil == 0 || trialInFlight) opened++;
+            openUntil = now + openMillis * 1_000_000L;
+            trialInFlight = false;
+        }
+        if (retryAfterMillis > 0) {
+            openUntil = Math.max(openUntil, now + retryAfterMillis * 1_000_000L);
+        }
+    }
+
+    public synchronized State getState() {
+        if (openUntil == 0) return State.CLOSED;
+        return System.nanoTime() < openUntil ? State.OPEN : State.HALF_OPEN;
+    }
+
+    /** Milliseconds until the endpoint may be tried again (0 when it may be tried now). */
+    public synchronized long remainingMillis() {
+        if (openUntil == 0) return 0;
+        return Math.max(0, (openUntil - System.nanoTime()) / 1_000_000L);
+    }
+
+    /** How many times the breaker has opened. */
+    public synchronized long getOpenCount() {
+        return opened;
+    }
+}
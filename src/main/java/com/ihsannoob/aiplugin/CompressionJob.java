@@ -0,0 +1,155 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Converts stored messages in the per-player files to compressed form in the background.
+ *
+ * New messages are written as plain text, so the chat write path and the search triggers are
+ * unchanged. On its first run without a dictionary the job trains one on a sample of existing
+ * history. Each pass then compresses the rows added since the previous one, a player at a time,
+ * in small batches on one low-priority thread, and shrinks each file it changed.
+ */
+public class CompressionJob {
+
+    // fewer samples than this make a dictionary that is mostly noise
+    private static final int MIN_SAMPLES = 200;
+    // spread the sample over many players when there are many
+    private static final int SAMPLES_PER_PLAYER = 50;
+
+    private final PlayerFileStore store;
+    private final MessageCodec codec;
+    private final int minChars;
+    private final int sampleMessages;
+    private final int dictionaryBytes;
+    private final int batch;
+    private final long pauseMillis;
+    private final Metrics metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService timer;
+    private volatile boolean stopping;
+
+    /**
+     * @param minChars        messages shorter than this stay plain text
+     * @param sampleMessages  messages read to train the dictionary
+     * @param dictionaryBytes dictionary size (deflate looks back at most 32 KB)
+     */
+    public CompressionJob(PlayerFileStore store, MessageCodec codec, int minChars, int sampleMessages, int dictionaryBytes,
+                          int batch, long pauseMillis, Metrics metrics, Logger logger) {
+        this.store = store;
+        this.codec = codec;
+        this.minChars = Math.max(1, minChars);
+        this.sampleMessages = Math.max(MIN_SAMPLES, sampleMessages);
+        this.dictionaryBytes = Math.max(1024, Math.min(32 * 1024, dictionaryBytes));
+        this.batch = Math.max(1, batch);
+        this.pauseMillis = Math.max(0, pauseMillis);
+        this.metrics = metrics;
+        this.logger = logger;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AICerebras-Compression");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    public void start(long initialDelayMillis, long intervalMillis) {
+        timer.scheduleWithFixedDelay(this::runSafely, initialDelayMillis, Math.max(60_000L, intervalMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop after the current batch; call before the database is closed. */
+    public void shutdown() {
+        stopping = true;
+        timer.shutdownNow();
+        try {
+            if (!timer.awaitTermination(5, TimeUnit.SECONDS)) logger.warning("Compression job did not stop in time.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSafely() {
+        try {
+            runOnce();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            logger.warning("Compression run failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Train a dictionary if there is none yet, then one pass over every stored player.
+     * Returns the number of messages compressed.
+     */
+    public long runOnce() throws SQLException, IOException, InterruptedException {
+        if (!codec.hasDictionary() && !train()) return 0;
+        long start = System.currentTimeMillis();
+        long rows = 0;
+        long saved = 0;
+        int players = 0;
+        for (UUID uuid : store.players()) {
+            if (stopping) break;
+            try {
+                long[] r = store.compress(uuid, minChars, batch, pauseMillis, () -> stopping);
+                if (r[0] > 0) {
+                    rows += r[0];
+                    saved += r[1];
+                    players++;
+                    metrics.add("compression_messages_total", r[0]);
+                    metrics.add("compression_bytes_saved_total", r[1]);
+                }
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                logger.warning("Compression failed for " + uuid + ": " + ex.getMessage());
+            }
+        }
+        if (rows > 0) {
+            logger.info("Compression: " + rows + " messages of " + players + " players, ~" + saved / 1024 + " KB saved in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return rows;
+    }
+
+    /**
+     * Build and install a dictionary from the latest messages of randomly chosen players.
+     * Returns false when there is not enough history yet (the next run tries again).
+     */
+    public boolean train() throws SQLException, IOException {
+        List<UUID> players = new ArrayList<>(store.players());
+        Collections.shuffle(players);
+        int perPlayer = Math.max(SAMPLES_PER_PLAYER, sampleMessages / Math.max(1, players.size()));
+        List<String> samples = new ArrayList<>();
+        for (UUID uuid : players) {
+            if (stopping || samples.size() >= sampleMessages) break;
+            try {
+                for (String text : store.sample(uuid, perPlayer)) {
+                    if (text.length() >= minChars) samples.add(text);
+                }
+            } catch (SQLException ex) {
+                logger.fine("Compression: skipped " + uuid + " while sampling: " + ex.getMessage());
+            }
+        }
+        if (samples.size() < MIN_SAMPLES) {
+            logger.info("Compression: only " + samples.size() + " messages to train a dictionary on, trying again later.");
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        byte[] dictionary = MessageCodec.train(samples, dictionaryBytes);
+        if (dictionary.length == 0) return false;
+        codec.install(dictionary);
+        logger.info("Compression: trained a " + dictionary.length / 1024 + " KB dictionary on " + samples.size()
+                + " messages in " + (System.currentTimeMillis() - start) + " ms.");
+        return true;
+    }
+}
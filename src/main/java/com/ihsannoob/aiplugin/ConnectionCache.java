@@ -0,0 +1,268 @@
+package com.ihsannoob.aiplugin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Open per-player connections, at most maxOpen of them, least recently used first out.
+ *
+ * Callers lease a connection and close the lease when done; a connection is only really closed once it
+ * has left the cache (too many open, idle for idleMillis, player quit) and its last lease is returned,
+ * so nobody loses a connection in the middle of a statement. Files in use are never evicted for size;
+ * the cache may briefly hold more than maxOpen when that many are busy.
+ *
+ * Opening happens outside the cache lock: the first caller for a player opens the file while later
+ * callers for the same player wait for it, and callers for other players are not held up.
+ */
+public class ConnectionCache {
+
+    /** Opens (and prepares) a player's connection; runs outside the cache lock. */
+    public interface Opener {
+        Connection open(UUID uuid) throws SQLException;
+    }
+
+    // how often idle connections are looked for
+    private static final long SWEEP_MILLIS = 10_000;
+
+    /** A connection in use. Closing the lease hands it back; it does not close the connection. */
+    public final class Lease implements AutoCloseable {
+        public final Connection conn;
+        private final Entry entry;
+        // false for peeked leases, whose use must not keep an idle file open
+        private final boolean touch;
+        private boolean returned;
+
+        Lease(Connection conn, Entry entry, boolean touch) {
+            this.conn = conn;
+            this.entry = entry;
+            this.touch = touch;
+        }
+
+        @Override
+        public void close() {
+            if (returned) return;
+            returned = true;
+            release(entry, touch);
+        }
+    }
+
+    private static final class Entry {
+        final UUID uuid;
+        final CompletableFuture<Connection> ready = new CompletableFuture<>();
+        // guarded by the cache
+        int users;
+        long lastUsed;
+        // out of the map; closed when the last user returns it
+        boolean evicted;
+
+        Entry(UUID uuid) {
+            this.uuid = uuid;
+        }
+    }
+
+    private final Opener opener;
+    private final Logger logger;
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ScheduledExecutorService sweeper;
+    private volatile int maxOpen = 256;
+    private volatile long idleMillis = 300_000;
+    // null until configured
+    private volatile Metrics metrics;
+
+    public ConnectionCache(Opener opener, Logger logger) {
+        this.opener = opener;
+        this.logger = logger;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AICerebras-ConnectionSweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::closeIdle, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxOpen    connections kept open at most (busy ones excepted)
+     * @param idleMillis connections unused this long are closed, 0 = never
+     */
+    public void configure(int maxOpen, long idleMillis, Metrics metrics) {
+        this.maxOpen = Math.max(1, maxOpen);
+        this.idleMillis = Math.max(0, idleMillis);
+        this.metrics = metrics;
+        List<Entry> closing;
+        synchronized (this) {
+            closing = overflow();
+        }
+        closeAll(closing, "size");
+    }
+
+    /**
+     * Lease the player's connection, opening it when it is not open yet.
+     * Fails with the opener's exception when the file can't be opened.
+     */
+    public Lease acquire(UUID uuid) throws SQLException {
+        Entry e;
+        boolean opening = false;
+        List<Entry> closing;
+        synchronized (this) {
+            e = entries.get(uuid);
+            if (e == null) {
+                e = new Entry(uuid);
+                entries.put(uuid, e);
+                opening = true;
+            }
+            e.users++;
+            e.lastUsed = System.currentTimeMillis();
+            closing = overflow();
+        }
+        closeAll(closing, "size");
+        count(opening ? "db_connections_opened_total" : "db_connection_cache_hits_total");
+
+        if (opening) {
+            try {
+                e.ready.complete(opener.open(uuid));
+            } catch (SQLException | RuntimeException ex) {
+                synchronized (this) {
+                    // nothing to close; the next caller tries again
+                    if (entries.get(uuid) == e) entries.remove(uuid);
+                    e.evicted = true;
+                }
+                e.ready.completeExceptionally(ex);
+            }
+        }
+        try {
+            return new Lease(e.ready.join(), e, true);
+        } catch (CompletionException ex) {
+            release(e, false);
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    /** Lease the player's connection only if it is already open (null otherwise). */
+    public Lease peek(UUID uuid) {
+        Entry e;
+        synchronized (this) {
+            // a get would count as use and move the file to the recently used end
+            e = null;
+            for (Entry candidate : entries.values()) {
+                if (candidate.uuid.equals(uuid)) e = candidate;
+            }
+            if (e == null || !e.ready.isDone() || e.ready.isCompletedExceptionally()) return null;
+            e.users++;
+        }
+        return new Lease(e.ready.join(), e, false);
+    }
+
+    /** Close the player's connection (once nobody is using it), e.g. on quit or before deleting the file. */
+    public void evict(UUID uuid, String reason) {
+        Entry e;
+        synchronized (this) {
+            e = entries.remove(uuid);
+            if (e == null) return;
+            e.evicted = true;
+            if (e.users > 0) e = null;
+        }
+        count(Metrics.labelled("db_connections_evicted_total", "reason", reason));
+        if (e != null) close(e);
+    }
+
+    /** Connections open (or opening) right now, busy ones included. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Close every connection and stop the idle sweep; leases still out close theirs when returned. */
+    public void close() {
+        sweeper.shutdownNow();
+        List<Entry> closing = new ArrayList<>();
+        synchronized (this) {
+            for (Entry e : entries.values()) {
+                e.evicted = true;
+                if (e.users == 0) closing.add(e);
+            }
+            entries.clear();
+        }
+        for (Entry e : closing) close(e);
+    }
+
+    private void release(Entry e, boolean touch) {
+        boolean close;
+        synchronized (this) {
+            e.users--;
+            if (touch) e.lastUsed = System.currentTimeMillis();
+            close = e.evicted && e.users == 0;
+        }
+        if (close) close(e);
+    }
+
+    // least recently used idle entries beyond maxOpen, taken out of the map; call holding the lock
+    private List<Entry> overflow() {
+        List<Entry> out = new ArrayList<>();
+        int excess = entries.size() - maxOpen;
+        Iterator<Entry> it = entries.values().iterator();
+        while (excess > 0 && it.hasNext()) {
+            Entry e = it.next();
+            if (e.users > 0) continue;
+            it.remove();
+            e.evicted = true;
+            out.add(e);
+            excess--;
+        }
+        return out;
+    }
+
+    private void closeIdle() {
+        long idle = idleMillis;
+        if (idle <= 0) return;
+        long cutoff = System.currentTimeMillis() - idle;
+        List<Entry> closing = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<UUID, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Entry e = it.next().getValue();
+                if (e.users > 0 || e.lastUsed > cutoff) continue;
+                it.remove();
+                e.evicted = true;
+                closing.add(e);
+            }
+        }
+        closeAll(closing, "idle");
+    }
+
+    private void closeAll(List<Entry> closing, String reason) {
+        if (closing.isEmpty()) return;
+        count(Metrics.labelled("db_connections_evicted_total", "reason", reason), closing.size());
+        for (Entry e : closing) close(e);
+    }
+
+    private void close(Entry e) {
+        if (!e.ready.isDone() || e.ready.isCompletedExceptionally()) return;
+        Connection c = e.ready.join();
+        try {
+            c.close();
+        } catch (SQLException ex) {
+            logger.fine("Failed to close connection of " + e.uuid + ": " + ex.getMessage());
+        }
+    }
+
+    private void count(String counter) {
+        count(counter, 1);
+    }
+
+    private void count(String counter, long n) {
+        Metrics m = metrics;
+        if (m != null) m.add(counter, n);
+    }
+}
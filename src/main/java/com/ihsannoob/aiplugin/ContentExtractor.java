@@ -0,0 +1,245 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Pulls the assistant text out of a response body with a streaming JsonReader, without building a tree.
+ *
+ * The first body is scanned for every shape CerebrasClient understands. The shape that matched is
+ * remembered, and later bodies only follow that path: reading stops as soon as the text is found,
+ * and everything else (usage, ids, other choices) is skipped unparsed. If the remembered shape stops
+ * matching, the body is scanned again and the new shape remembered. Token counts are read by {@link #usage}.
+ */
+public class ContentExtractor {
+
+    /** Known shapes, in the order they are preferred when several are present. */
+    public enum Shape {
+        CHOICES_MESSAGE("choices", "message", "content"),
+        CHOICES_TEXT("choices", "text", null),
+        CHOICES_DELTA("choices", "delta", "content"),
+        OUTPUT_CONTENT("output", "content", null),
+        OUTPUT_GENERATED_TEXT("output", "generated_text", null),
+        TEXT(null, "text", null),
+        GENERATED_TEXT(null, "generated_text", null);
+
+        // array at the root holding the text in its first element (null = field at the root)
+        final String array;
+        final String field;
+        // nested object field (e.g. message.content), or null when 'field' is the text itself
+        final String inner;
+
+        Shape(String array, String field, String inner) {
+            this.array = array;
+            this.field = field;
+            this.inner = inner;
+        }
+    }
+
+    private static final Shape[] SHAPES = Shape.values();
+
+    private volatile Shape known;
+
+    /** Shape the last successful body had, or null before the first one. */
+    public Shape getKnownShape() {
+        return known;
+    }
+
+    /**
+     * Assistant text in 'body', or null when no known shape matches.
+     * A delta chunk without content (role or finish chunk) yields "".
+     */
+    public String extract(String body) throws IOException {
+        Shape shape = known;
+        if (shape != null) {
+            String text = follow(body, shape);
+            if (text != null) return text;
+        }
+        String[] found = scan(body);
+        for (Shape s : SHAPES) {
+            if (found[s.ordinal()] != null) {
+                known = s;
+                return found[s.ordinal()];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Full scan with nothing remembered (what every body cost before shapes were memoised).
+     */
+    public static String extractAny(String body) throws IOException {
+        String[] found = scan(body);
+        for (Shape s : SHAPES) {
+            if (found[s.ordinal()] != null) return found[s.ordinal()];
+        }
+        return null;
+    }
+
+    /**
+     * [prompt_tokens, completion_tokens] from the root "usage" object, or null when the body has none.
+     */
+    public static long[] usage(String body) throws IOException {
+        try (JsonReader r = new JsonReader(new StringReader(body))) {
+            if (r.peek() != JsonToken.BEGIN_OBJECT) return null;
+            r.beginObject();
+            while (r.hasNext()) {
+                if (!r.nextName().equals("usage") || r.peek() != JsonToken.BEGIN_OBJECT) {
+                    r.skipValue();
+                    continue;
+                }
+                long[] counts = {-1, -1};
+                r.beginObject();
+                while (r.hasNext()) {
+                    String name = r.nextName();
+                    if (r.peek() != JsonToken.NUMBER) {
+                        r.skipValue();
+                    } else if (name.equals("prompt_tokens")) {
+                        counts[0] = r.nextLong();
+                    } else if (name.equals("completion_tokens")) {
+                        counts[1] = r.nextLong();
+                    } else {
+                        r.skipValue();
+                    }
+                }
+                return counts[0] < 0 || counts[1] < 0 ? null : counts;
+            }
+            return null;
+        }
+    }
+
+    // walk only the path of one shape; returns null if it isn't there
+    private static String follow(String body, Shape shape) throws IOException {
+        try (JsonReader r = new JsonReader(new StringReader(body))) {
+            if (r.peek() != JsonToken.BEGIN_OBJECT) return null;
+            r.beginObject();
+            String root = shape.array != null ? shape.array : shape.field;
+            while (r.hasNext()) {
+                if (!r.nextName().equals(root)) {
+                    r.skipValue();
+                    continue;
+                }
+                if (shape.array == null) return string(r);
+                if (!firstElement(r)) return null;
+                while (r.hasNext()) {
+                    if (!r.nextName().equals(shape.field)) {
+                        r.skipValue();
+                        continue;
+                    }
+                    if (shape.inner == null) return string(r);
+                    if (r.peek() != JsonToken.BEGIN_OBJECT) return null;
+                    r.beginObject();
+                    while (r.hasNext()) {
+                        if (r.nextName().equals(shape.inner)) {
+                            String text = string(r);
+                            // delta chunks without content carry no text but are still this shape
+                            return text == null && shape == Shape.CHOICES_DELTA ? "" : text;
+                        }
+                        r.skipValue();
+                    }
+                    return shape == Shape.CHOICES_DELTA ? "" : null;
+                }
+                return null;
+            }
+            return null;
+        }
+    }
+
+    // one pass over the whole body, collecting the text of every shape present
+    private static String[] scan(String body) throws IOException {
+        String[] found = new String[SHAPES.length];
+        try (JsonReader r = new JsonReader(new StringReader(body))) {
+            if (r.peek() != JsonToken.BEGIN_OBJECT) return found;
+            r.beginObject();
+            while (r.hasNext()) {
+                String name = r.nextName();
+                switch (name) {
+                    case "choices":
+                        scanFirst(r, found, Shape.CHOICES_MESSAGE, Shape.CHOICES_TEXT, Shape.CHOICES_DELTA);
+                        break;
+                    case "output":
+                        scanFirst(r, found, Shape.OUTPUT_CONTENT, Shape.OUTPUT_GENERATED_TEXT);
+                        break;
+                    case "text":
+                        found[Shape.TEXT.ordinal()] = string(r);
+                        break;
+                    case "generated_text":
+                        found[Shape.GENERATED_TEXT.ordinal()] = string(r);
+                        break;
+                    default:
+                        r.skipValue();
+                }
+            }
+        }
+        return found;
+    }
+
+    // first element of an array field: record the shapes among 'candidates' it contains, skip the rest
+    private static void scanFirst(JsonReader r, String[] found, Shape... candidates) throws IOException {
+        if (!firstElement(r)) return;
+        while (r.hasNext()) {
+            String name = r.nextName();
+            Shape match = null;
+            for (Shape s : candidates) {
+                if (s.field.equals(name)) match = s;
+            }
+            if (match == null) {
+                r.skipValue();
+            } else if (match.inner == null) {
+                found[match.ordinal()] = string(r);
+            } else if (r.peek() == JsonToken.BEGIN_OBJECT) {
+                r.beginObject();
+                String text = null;
+                while (r.hasNext()) {
+                    if (r.nextName().equals(match.inner)) text = string(r);
+                    else r.skipValue();
+                }
+                r.endObject();
+                found[match.ordinal()] = text == null && match == Shape.CHOICES_DELTA ? "" : text;
+            } else {
+                r.skipValue();
+            }
+        }
+        r.endObject();
+        // remaining elements are never used
+        while (r.hasNext()) r.skipValue();
+        r.endArray();
+    }
+
+    // positions the reader inside the first object of an array; false (value skipped) otherwise
+    private static boolean firstElement(JsonReader r) throws IOException {
+        if (r.peek() != JsonToken.BEGIN_ARRAY) {
+            r.skipValue();
+            return false;
+        }
+        r.beginArray();
+        if (!r.hasNext()) {
+            r.endArray();
+            return false;
+        }
+        if (r.peek() != JsonToken.BEGIN_OBJECT) {
+            while (r.hasNext()) r.skipValue();
+            r.endArray();
+            return false;
+        }
+        r.beginObject();
+        return true;
+    }
+
+    // string (or number/boolean as text) value, or null for null/objects/arrays
+    private static String string(JsonReader r) throws IOException {
+        switch (r.peek()) {
+            case STRING:
+            case NUMBER:
+                return r.nextString();
+            case BOOLEAN:
+                return Boolean.toString(r.nextBoolean());
+            default:
+                r.skipValue();
+                return null;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Builds the message list sent to the model within a prompt token budget.
+ * Recent messages are added newest-first until the budget runs out; oversized messages are trimmed.
+ * Older turns are folded into a rolling summary that is stored in the database and refreshed
+ * in the background every few turns, so the prompt stays roughly constant in size.
+ * When retrieval is on, the older messages that best match the new prompt (BM25, see
+ * {@link RelevanceIndex}) are quoted too, within their own slice of the budget.
+ */
+public class ContextBuilder {
+
+    // role/formatting tokens the API adds around each message
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+    // messages folded into the summary per refresh; the rest is picked up by the next one
+    private static final int SUMMARY_BATCH = 40;
+
+    private static final class SummaryWork {
+        final DatabaseManager.Summary current;
+        final List<DatabaseManager.StoredMessage> batch;
+
+        SummaryWork(DatabaseManager.Summary current, List<DatabaseManager.StoredMessage> batch) {
+            this.current = current;
+            this.batch = batch;
+        }
+    }
+
+    private final DatabaseManager db;
+    private final RequestScheduler scheduler;
+    private final Supplier<EndpointRouter> router;
+    private final Logger logger;
+    private final RelevanceIndex relevance;
+    // null when usage is not tracked
+    private final UsageTracker usage;
+
+    private final ConcurrentHashMap<UUID, AtomicInteger> turns = new ConcurrentHashMap<>();
+    private final Set<UUID> refreshing = ConcurrentHashMap.newKeySet();
+
+    private volatile int tokenBudget = 3000;
+    private volatile int maxMessageTokens = 600;
+    private volatile boolean summaries = false;
+    private volatile int summaryEveryTurns = 6;
+    private volatile int summaryMaxWords = 150;
+    private volatile int recentMessages = 8;
+    private volatile int retrievalTopK = 0;
+    private volatile int retrievalMaxTokens = 600;
+
+    /** @param usage counts summary requests against the player they summarise; may be null */
+    public ContextBuilder(DatabaseManager db, RequestScheduler scheduler, Supplier<EndpointRouter> router, UsageTracker usage, Logger logger) {
+        this.db = db;
+        this.scheduler = scheduler;
+        this.router = router;
+        this.usage = usage;
+        this.logger = logger;
+        this.relevance = new RelevanceIndex(db);
+    }
+
+    public void configure(int tokenBudget, int maxMessageTokens, boolean summaries, int summaryEveryTurns, int summaryMaxWords, int recentMessages) {
+        this.tokenBudget = Math.max(64, tokenBudget);
+        this.maxMessageTokens = Math.max(16, maxMessageTokens);
+        this.summaries = summaries;
+        this.summaryEveryTurns = Math.max(1, summaryEveryTurns);
+        this.summaryMaxWords = Math.max(20, summaryMaxWords);
+        this.recentMessages = Math.max(1, recentMessages);
+    }
+
+    /**
+     * @param topK         older messages quoted per prompt, 0 = retrieval off
+     * @param maxTokens    budget for the quoted messages
+     * @param maxIndexed   newest messages indexed per player when their index is built
+     */
+    public void configureRetrieval(int topK, int maxTokens, int maxIndexed) {
+        this.retrievalTopK = Math.max(0, topK);
+        this.retrievalMaxTokens = Math.max(16, maxTokens);
+        relevance.configure(maxIndexed);
+    }
+
+    /**
+     * Rough token count: about four characters per token for English text.
+     * Good enough for budgeting; it never needs to match the provider's tokenizer exactly.
+     */
+    public static int estimateTokens(String text) {
+        return text == null ? 0 : (text.length() + 3) / 4;
+    }
+
+    /**
+     * Cut text down to about maxTokens, at a word boundary where possible.
+     */
+    public static String trim(String text, int maxTokens) {
+        if (estimateTokens(text) <= maxTokens) return text;
+        int maxChars = Math.max(1, maxTokens * 4 - 12);
+        int cut = text.lastIndexOf(' ', maxChars);
+        if (cut < maxChars / 2) cut = maxChars;
+        return text.substring(0, cut) + " …[trimmed]";
+    }
+
+    /**
+     * Summary to pass to {@link #build}, or null when summaries are off.
+     */
+    public CompletableFuture<DatabaseManager.Summary> summaryAsync(UUID uuid) {
+        if (!summaries) return CompletableFuture.completedFuture(null);
+        return db.getSummaryAsync(uuid);
+    }
+
+    /**
+     * Older messages relevant to 'prompt' to pass to {@link #build}: ones from before the recent window
+     * in 'history', oldest first. Empty when retrieval is off or fails.
+     */
+    public CompletableFuture<List<DatabaseManager.StoredMessage>> relevantAsync(UUID uuid, String prompt, List<DatabaseManager.StoredMessage> history) {
+        int k = retrievalTopK;
+        if (k == 0) return CompletableFuture.completedFuture(new ArrayList<>());
+        // by time rather than id: messages added this session are cached without their row id
+        long before = history.isEmpty() ? 0 : history.get(0).createdAt;
+        return db.supplyAsync(() -> relevance.relevant(uuid, prompt, k, before))
+                .exceptionally(ex -> {
+                    logger.warning("Context retrieval failed for " + uuid + ": " + ex.getMessage());
+                    return new ArrayList<>();
+                });
+    }
+
+    /**
+     * Messages for the next request: [summary] + as many recent messages as fit + the new prompt.
+     */
+    public List<CerebrasClient.Message> build(List<DatabaseManager.StoredMessage> history, DatabaseManager.Summary summary, String prompt) {
+        return build(history, summary, new ArrayList<>(), prompt);
+    }
+
+    /**
+     * As above, with the relevant older messages quoted in one system message after the summary.
+     * They get at most their own budget slice and only if some of it fits; recent messages get the rest.
+     */
+    public List<CerebrasClient.Message> build(List<DatabaseManager.StoredMessage> history, DatabaseManager.Summary summary,
+                                              List<DatabaseManager.StoredMessage> relevant, String prompt) {
+        int remaining = tokenBudget - estimateTokens(prompt) - MESSAGE_OVERHEAD_TOKENS;
+
+        CerebrasClient.Message summaryMsg = null;
+        if (summary != null && !summary.content.isBlank()) {
+            String text = "Summary of the earlier conversation with this player:\n" + trim(summary.content, maxMessageTokens);
+            int cost = estimateTokens(text) + MESSAGE_OVERHEAD_TOKENS;
+            if (cost <= remaining) {
+                summaryMsg = new CerebrasClient.Message("system", text);
+                remaining -= cost;
+            }
+        }
+
+        CerebrasClient.Message relevantMsg = null;
+        if (!relevant.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Earlier messages from this conversation that may be relevant:");
+            int budget = Math.min(retrievalMaxTokens, remaining) - MESSAGE_OVERHEAD_TOKENS - estimateTokens(sb.toString());
+            int quoted = 0;
+            for (DatabaseManager.StoredMessage m : relevant) {
+                String line = "\n" + m.role + ": " + trim(m.content, Math.min(maxMessageTokens, Math.max(16, budget)));
+                int cost = estimateTokens(line);
+                if (cost > budget) continue;
+                sb.append(line);
+                budget -= cost;
+                quoted++;
+            }
+            if (quoted > 0) {
+                relevantMsg = new CerebrasClient.Message("system", sb.toString());
+                remaining -= estimateTokens(sb.toString()) + MESSAGE_OVERHEAD_TOKENS;
+            }
+        }
+
+        Deque<CerebrasClient.Message> recent = new ArrayDeque<>();
+        for (int i = history.size() - 1; i >= 0; i--) {
+            DatabaseManager.StoredMessage m = history.get(i);
+            String text = trim(m.content, maxMessageTokens);
+            int cost = estimateTokens(text) + MESSAGE_OVERHEAD_TOKENS;
+            if (cost > remaining) break;
+            recent.addFirst(new CerebrasClient.Message(m.role, text));
+            remaining -= cost;
+        }
+
+        List<CerebrasClient.Message> out = new ArrayList<>(recent.size() + 3);
+        if (summaryMsg != null) out.add(summaryMsg);
+        if (relevantMsg != null) out.add(relevantMsg);
+        out.addAll(recent);
+        out.add(new CerebrasClient.Message("user", prompt));
+        return out;
+    }
+
+    /**
+     * Count a finished turn; every summaryEveryTurns turns the summary is refreshed in the background.
+     */
+    public void onTurnCompleted(UUID uuid) {
+        if (!summaries) return;
+        int n = turns.computeIfAbsent(uuid, u -> new AtomicInteger()).incrementAndGet();
+        if (n % summaryEveryTurns == 0) refreshSummary(uuid);
+    }
+
+    /** Forget per-player turn counters and the retrieval index (e.g. on quit or clear). */
+    public void forget(UUID uuid) {
+        turns.remove(uuid);
+        relevance.forget(uuid);
+    }
+
+    /**
+     * Fold messages that have dropped out of the recent window into the stored summary.
+     */
+    public CompletableFuture<Void> refreshSummary(UUID uuid) {
+        if (!refreshing.add(uuid)) return CompletableFuture.completedFuture(null);
+        // a clear while the summary is being written makes the save a no-op
+        long generation = db.clearGeneration(uuid);
+
+        return db.supplyAsync(() -> {
+                    DatabaseManager.Summary current = db.getSummary(uuid);
+                    long covered = current == null ? 0 : current.lastMessageId;
+                    long cutoff = db.idBeforeLatest(uuid, recentMessages);
+                    if (cutoff <= covered) return null;
+                    List<DatabaseManager.StoredMessage> batch = new ArrayList<>();
+                    for (DatabaseManager.StoredMessage m : db.getMessagesAfter(uuid, covered, SUMMARY_BATCH)) {
+                        if (m.id > cutoff) break;
+                        batch.add(m);
+                    }
+                    return batch.isEmpty() ? null : new SummaryWork(current, batch);
+                })
+                .thenCompose(work -> {
+                    if (work == null) return CompletableFuture.completedFuture(null);
+                    long lastId = work.batch.get(work.batch.size() - 1).id;
+                    List<CerebrasClient.Message> prompt = summaryPrompt(work.current, work.batch);
+                    return scheduler.call(() -> router.get().generateAsync(prompt,
+                                    usage == null ? null : u -> usage.record(uuid, null, u)))
+                            .thenCompose(text -> {
+                                if (text == null || text.isBlank()) return CompletableFuture.completedFuture(null);
+                                return db.supplyAsync(() -> {
+                                    db.saveSummary(uuid, text.strip(), lastId, generation);
+                                    return null;
+                                });
+                            });
+                })
+                .handle((v, ex) -> {
+                    refreshing.remove(uuid);
+                    if (ex != null) logger.warning("Failed to refresh summary for " + uuid + ": " + ex.getMessage());
+                    return null;
+                });
+    }
+
+    private List<CerebrasClient.Message> summaryPrompt(DatabaseManager.Summary current, List<DatabaseManager.StoredMessage> batch) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Current summary:\n").append(current == null || current.content.isBlank() ? "(none)" : current.content).append("\n\nNew messages:\n");
+        for (DatabaseManager.StoredMessage m : batch) {
+            sb.append(m.role).append(": ").append(trim(m.content, maxMessageTokens)).append('\n');
+        }
+        List<CerebrasClient.Message> out = new ArrayList<>(2);
+        out.add(new CerebrasClient.Message("system",
+                "You maintain a running summary of a conversation between a Minecraft player and an AI assistant. "
+                        + "Merge the new messages into the current summary. Keep facts, names, decisions and open questions. "
+                        + "Reply with the updated summary only, at most " + summaryMaxWords + " words."));
+        out.add(new CerebrasClient.Message("user", sb.toString()));
+        return out;
+    }
+}
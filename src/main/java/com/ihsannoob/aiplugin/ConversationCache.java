@@ -0,0 +1,224 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory cache of each player's most recent messages, kept in a fixed-size ring buffer.
+ * Players are evicted least-recently-used once the estimated memory use passes maxBytes.
+ *
+ * Loading is racy by nature (a message can be written while the rows are being read), so a load
+ * takes a ticket first; any write for that player before {@link #install} invalidates the ticket
+ * and the stale rows are thrown away instead of cached. A write is announced with {@link #beginAppend}
+ * before it reaches the database, so a load that already read the new row can't be installed and then
+ * get the same message appended a second time.
+ */
+public class ConversationCache {
+
+    // rough per-message overhead: object headers, references, role string, timestamp
+    private static final long MESSAGE_OVERHEAD = 96;
+
+    private static final class Ring {
+        final DatabaseManager.StoredMessage[] buf;
+        int head; // index of the oldest message
+        int size;
+        // true while the ring holds the player's entire history
+        boolean whole;
+        long bytes;
+
+        Ring(int capacity) {
+            this.buf = new DatabaseManager.StoredMessage[capacity];
+        }
+
+        /** Returns the bytes freed by overwriting the oldest message, if any. */
+        long push(DatabaseManager.StoredMessage m) {
+            long freed = 0;
+            if (size == buf.length) {
+                freed = weigh(buf[head]);
+                buf[head] = m;
+                head = (head + 1) % buf.length;
+                whole = false;
+            } else {
+                buf[(head + size) % buf.length] = m;
+                size++;
+            }
+            return freed;
+        }
+
+        List<DatabaseManager.StoredMessage> last(int n) {
+            int count = Math.min(n, size);
+            List<DatabaseManager.StoredMessage> out = new ArrayList<>(count);
+            for (int i = size - count; i < size; i++) {
+                out.add(buf[(head + i) % buf.length]);
+            }
+            return out;
+        }
+    }
+
+    private final int capacity;
+    private final long maxBytes;
+    private final LinkedHashMap<UUID, Ring> rings = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<UUID, Long> loadTickets = new ConcurrentHashMap<>();
+    private final AtomicLong ticketSeq = new AtomicLong();
+    // writes started but not yet appended or cancelled, per player; guarded by this
+    private final Map<UUID, Integer> writing = new HashMap<>();
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ConversationCache(int messagesPerPlayer, long maxBytes) {
+        this.capacity = Math.max(1, messagesPerPlayer);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Latest 'limit' messages (oldest first), or null when the cache can't answer.
+     */
+    public synchronized List<DatabaseManager.StoredMessage> get(UUID uuid, int limit) {
+        Ring r = rings.get(uuid);
+        if (r != null && (limit <= r.size || r.whole)) {
+            hits.increment();
+            return r.last(limit);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Call before reading a player's rows from the database; pass the ticket to {@link #install}.
+     */
+    public long beginLoad(UUID uuid) {
+        long ticket = ticketSeq.incrementAndGet();
+        loadTickets.put(uuid, ticket);
+        return ticket;
+    }
+
+    /**
+     * Cache rows read from the database (oldest first). 'requested' is the limit used for the read;
+     * fewer rows than that means the player's whole history was returned.
+     */
+    public synchronized void install(UUID uuid, long ticket, List<DatabaseManager.StoredMessage> rows, int requested) {
+        if (!loadTickets.remove(uuid, ticket)) return; // a write happened meanwhile
+        if (writing.containsKey(uuid)) return; // the rows may already hold a message append() is about to add
+        Ring r = new Ring(capacity);
+        int from = Math.max(0, rows.size() - capacity);
+        for (int i = from; i < rows.size(); i++) {
+            r.push(rows.get(i));
+            r.bytes += weigh(rows.get(i));
+        }
+        r.whole = rows.size() < requested && rows.size() <= capacity;
+        put(uuid, r);
+    }
+
+    /**
+     * Call before writing a message to the database; follow with {@link #append} once it is written,
+     * or {@link #cancelAppend} when the write failed.
+     */
+    public synchronized void beginAppend(UUID uuid) {
+        loadTickets.remove(uuid);
+        writing.merge(uuid, 1, Integer::sum);
+    }
+
+    public synchronized void cancelAppend(UUID uuid) {
+        loadTickets.remove(uuid);
+        endWrite(uuid);
+    }
+
+    /**
+     * Record a newly written message. Only updates players that are already cached.
+     */
+    public synchronized void append(UUID uuid, DatabaseManager.StoredMessage m) {
+        loadTickets.remove(uuid);
+        endWrite(uuid);
+        Ring r = rings.get(uuid);
+        if (r == null) return;
+        long freed = r.push(m);
+        long added = weigh(m) - freed;
+        r.bytes += added;
+        bytes += added;
+        trim(uuid);
+    }
+
+    /**
+     * History was cleared: remember that the player now has no messages.
+     */
+    public synchronized void cleared(UUID uuid) {
+        loadTickets.remove(uuid);
+        Ring r = new Ring(capacity);
+        r.whole = true;
+        put(uuid, r);
+    }
+
+    public synchronized void evict(UUID uuid) {
+        loadTickets.remove(uuid);
+        Ring r = rings.remove(uuid);
+        if (r != null) bytes -= r.bytes;
+    }
+
+    public synchronized void clear() {
+        rings.clear();
+        loadTickets.clear();
+        bytes = 0;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int getPlayerCount() {
+        return rings.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void endWrite(UUID uuid) {
+        writing.computeIfPresent(uuid, (u, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private void put(UUID uuid, Ring r) {
+        Ring old = rings.put(uuid, r);
+        if (old != null) bytes -= old.bytes;
+        bytes += r.bytes;
+        trim(uuid);
+    }
+
+    // evict least recently used players (never the one just touched) until under the memory cap
+    private void trim(UUID keep) {
+        Iterator<Map.Entry<UUID, Ring>> it = rings.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<UUID, Ring> e = it.next();
+            if (e.getKey().equals(keep)) continue;
+            bytes -= e.getValue().bytes;
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private static long weigh(DatabaseManager.StoredMessage m) {
+        return MESSAGE_OVERHEAD + 2L * m.content.length();
+    }
+}
@@ -0,0 +1,92 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Where conversations are persisted. {@link DatabaseManager} puts the caches, write-behind queue,
+ * executor and metrics in front of it. Every method is blocking and is called from DatabaseManager's
+ * own threads, never the main thread.
+ *
+ * Implementations: {@link PlayerFileStore} (one SQLite file per player), {@link SharedDatabase}
+ * (one SQLite WAL database) and {@link JdbcConversationStore} (pooled JDBC, e.g. MySQL shared by
+ * several servers).
+ */
+public interface ConversationStore {
+
+    void addMessage(UUID uuid, String role, String content, long createdAt) throws SQLException;
+
+    /** Insert a write-behind batch (any mix of players), keeping its order. */
+    void addMessages(List<WriteBehindQueue.PendingMessage> batch) throws SQLException;
+
+    /** Latest 'limit' messages of a player, oldest first. */
+    List<DatabaseManager.StoredMessage> getConversation(UUID uuid, int limit) throws SQLException;
+
+    /** Up to 'limit' messages with id greater than afterId, oldest first. */
+    List<DatabaseManager.StoredMessage> getMessagesAfter(UUID uuid, long afterId, int limit) throws SQLException;
+
+    /** The player's messages with the given ids (missing ones are skipped), oldest first. */
+    List<DatabaseManager.StoredMessage> getMessages(UUID uuid, List<Long> ids) throws SQLException;
+
+    /**
+     * Visit a player's messages after 'afterId', oldest first, fetched in pages keyed by id.
+     * Returns the number visited.
+     */
+    long streamMessages(UUID uuid, long afterId, int pageSize, DatabaseManager.MessageVisitor visitor) throws SQLException, IOException;
+
+    /** Id to stream after to get only the latest 'count' messages (0 when there are no more than that). */
+    long idBeforeLatest(UUID uuid, int count) throws SQLException;
+
+    /** The player's rolling summary, or null. */
+    DatabaseManager.Summary getSummary(UUID uuid) throws SQLException;
+
+    void saveSummary(UUID uuid, DatabaseManager.Summary summary) throws SQLException;
+
+    /** Remove all of a player's messages and summary. Returns false when something could not be removed. */
+    boolean clearConversation(UUID uuid) throws SQLException;
+
+    /** Every player with stored history. */
+    List<UUID> players() throws SQLException;
+
+    /**
+     * Archive (when archive is non-null) and delete a player's expired messages, see
+     * {@link DatabaseManager#expireMessages}. Returns the number removed.
+     */
+    long expire(UUID uuid, long cutoffEpochSeconds, int keepLatest, int batch, long pauseMillis, MessageArchive archive, BooleanSupplier stop)
+            throws SQLException, IOException, InterruptedException;
+
+    /** Whether {@link #search} works. */
+    default boolean isSearchable() {
+        return false;
+    }
+
+    /**
+     * Ranked page of a player's messages containing every word of 'terms' (the last one as a prefix),
+     * with one extra row when another page exists.
+     */
+    default List<DatabaseManager.SearchHit> search(UUID uuid, String terms, int offset, int limit, String highlightStart, String highlightEnd) throws SQLException {
+        throw new SQLException("full-text search is not available for this storage");
+    }
+
+    /** False while messages older than the search index are still being indexed. */
+    default boolean isSearchComplete(UUID uuid) throws SQLException {
+        return true;
+    }
+
+    /**
+     * Index the next batch of older messages, for one player or (uuid null) the whole store.
+     * Returns true when nothing is left.
+     */
+    default boolean backfillSearch(UUID uuid, int batch) throws SQLException {
+        return true;
+    }
+
+    /** Let go of whatever is held open for a player who left (e.g. their file). */
+    default void release(UUID uuid) {
+    }
+
+    void close();
+}
@@ -1,141 +1,639 @@
 package com.ihsannoob.aiplugin;
 
 import java.io.File;
-import java.sql.*;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
- * Simple per-player SQLite storage.
- * Each player gets a file <pluginFolder>/players/<uuid>.db
- * Table: messages(id, role, content, created_at)
+ * Conversation storage used by the rest of the plugin: the recent-history cache, write-behind queue,
+ * metrics and a small executor in front of a {@link ConversationStore}.
+ * By default each player gets a SQLite file <pluginFolder>/players/<uuid>.db ({@link PlayerFileStore});
+ * in shared mode all players live in one WAL database ({@link SharedDatabase}); a
+ * {@link JdbcConversationStore} keeps them in an external database several servers can share.
  */
 public class DatabaseManager {
 
     public static class StoredMessage {
+        /** Row id, or 0 when not known yet (e.g. still in the write-behind queue). */
+        public final long id;
         public final String role;
         public final String content;
         public final long createdAt;
 
         public StoredMessage(String role, String content, long createdAt) {
+            this(0, role, content, createdAt);
+        }
+
+        public StoredMessage(long id, String role, String content, long createdAt) {
+            this.id = id;
             this.role = role;
             this.content = content;
             this.createdAt = createdAt;
         }
     }
 
-    private final File baseFolder;
-    private final Logger logger;
-    private final ConcurrentHashMap<UUID, Connection> connections = new ConcurrentHashMap<>();
+    /** Rolling summary of a player's older messages, covering everything up to lastMessageId. */
+    public static class Summary {
+        public final String content;
+        public final long lastMessageId;
+        public final long updatedAt;
 
-    public DatabaseManager(File pluginFolder, Logger logger) {
-        this.baseFolder = new File(pluginFolder, "players");
-        if (!baseFolder.exists()) baseFolder.mkdirs();
-        this.logger = logger;
+        public Summary(String content, long lastMessageId, long updatedAt) {
+            this.content = content;
+            this.lastMessageId = lastMessageId;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    /** One /ai search match; the snippet has the matched words wrapped in the caller's highlight markers. */
+    public static class SearchHit {
+        public final long id;
+        public final String role;
+        public final long createdAt;
+        public final String snippet;
+
+        public SearchHit(long id, String role, long createdAt, String snippet) {
+            this.id = id;
+            this.role = role;
+            this.createdAt = createdAt;
+            this.snippet = snippet;
+        }
+    }
+
+    /** A page of search results. 'complete' is false while older messages are still being indexed. */
+    public static class SearchPage {
+        public final List<SearchHit> hits;
+        public final int page;
+        public final boolean more;
+        public final boolean complete;
+
+        public SearchPage(List<SearchHit> hits, int page, boolean more, boolean complete) {
+            this.hits = hits;
+            this.page = page;
+            this.more = more;
+            this.complete = complete;
+        }
+    }
+
+    /** Receives rows from {@link #streamMessages}, oldest first. */
+    public interface MessageVisitor {
+        void visit(long id, StoredMessage m) throws IOException;
     }
 
-    private File dbFile(UUID uuid) {
-        return new File(baseFolder, uuid.toString() + ".db");
+    private static final Summary NO_SUMMARY = new Summary("", 0, 0);
+    // backfill key of the shared database (per-player backfills are keyed by the player)
+    private static final UUID ALL_PLAYERS = new UUID(0L, 0L);
+
+    private final Logger logger;
+    // Small dedicated pool for the *Async methods so callers never park Bukkit workers on disk I/O
+    private final ExecutorService executor;
+    private final ConversationStore store;
+    // dictionaries of compressed per-player messages (see CompressionJob); null when given another store
+    private final MessageCodec codec;
+    // non-null when write-behind is enabled
+    private volatile WriteBehindQueue writeBehind;
+    // non-null when the recent-history cache is enabled
+    private volatile ConversationCache cache;
+    // non-null when stage timings are recorded
+    private volatile Metrics metrics;
+    // summaries of cached (online) players; NO_SUMMARY marks "looked up, none stored"
+    private final ConcurrentHashMap<UUID, Summary> summaries = new ConcurrentHashMap<>();
+    // search index backfills in progress
+    private final Set<UUID> backfilling = ConcurrentHashMap.newKeySet();
+    private volatile int backfillBatch = 500;
+    private volatile long backfillPauseMillis = 50;
+    private volatile boolean closing;
+    // non-null when expired messages are archived (and exports read the archive)
+    private volatile MessageArchive archive;
+    // how often each player's history was cleared; work that started before a clear checks it before writing
+    private final ConcurrentHashMap<UUID, Long> clearGenerations = new ConcurrentHashMap<>();
+    // striped by player: a clear's generation bump vs. a summary save that checks it
+    private final Object[] clearLocks = new Object[64];
+
+    public DatabaseManager(File pluginFolder, Logger logger) {
+        this(pluginFolder, logger, 2, false, 0);
     }
 
-    private Connection openConnection(UUID uuid) throws SQLException {
-        return connections.computeIfAbsent(uuid, u -> {
+    /**
+     * @param sharedStorage keep every player in one WAL database (pluginFolder/conversations.db)
+     *                      instead of one file per player; legacy files are migrated in the background
+     * @param readers       reader connections in shared mode
+     */
+    public DatabaseManager(File pluginFolder, Logger logger, int threads, boolean sharedStorage, int readers) {
+        this.logger = logger;
+        this.executor = newExecutor(threads);
+        for (int i = 0; i < clearLocks.length; i++) clearLocks[i] = new Object();
+        File playersFolder = new File(pluginFolder, "players");
+        this.codec = new MessageCodec(new File(pluginFolder, "dictionaries"), logger);
+        ConversationStore s = null;
+        if (sharedStorage) {
             try {
-                File f = dbFile(u);
-                String url = "jdbc:sqlite:" + f.getAbsolutePath();
-                Connection conn = DriverManager.getConnection(url);
-                conn.setAutoCommit(true);
-                // ensure table exists
-                try (Statement st = conn.createStatement()) {
-                    st.executeUpdate("CREATE TABLE IF NOT EXISTS messages (id INTEGER PRIMARY KEY AUTOINCREMENT, role TEXT NOT NULL, content TEXT NOT NULL, created_at INTEGER NOT NULL)");
-                } catch (SQLException e) {
-                    logger.severe("Failed to create messages table: " + e.getMessage());
+                SharedDatabase db = new SharedDatabase(new File(pluginFolder, "conversations.db"), readers, logger);
+                // only lists the files here; the import runs in the background, players used before it
+                // reaches them are migrated on first use
+                if (db.prepareLegacyImport(playersFolder, codec) > 0) {
+                    int importThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+                    executor.execute(() -> db.importLegacy(importThreads));
                 }
-                return conn;
+                s = db;
             } catch (SQLException ex) {
-                logger.severe("Failed to open DB for " + u + ": " + ex.getMessage());
-                return null;
+                logger.severe("Failed to open shared database, falling back to per-player files: " + ex.getMessage());
             }
+        }
+        // a per-player file whose search index was just created is backfilled once it is open
+        this.store = s != null ? s : new PlayerFileStore(playersFolder, logger, codec, u -> scheduleBackfill(u, 0));
+    }
+
+    /**
+     * Put the caches and queues in front of any other store (e.g. {@link JdbcConversationStore}).
+     * 'threads' should be at least the store's connection count so reads don't queue behind each other.
+     */
+    public DatabaseManager(ConversationStore store, Logger logger, int threads) {
+        this.logger = logger;
+        this.executor = newExecutor(threads);
+        for (int i = 0; i < clearLocks.length; i++) clearLocks[i] = new Object();
+        this.store = store;
+        this.codec = null;
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "AICerebras-DB-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
         });
     }
 
-    public void addMessage(UUID uuid, String role, String content) {
+    /** The store behind the caches. */
+    public ConversationStore getStore() {
+        return store;
+    }
+
+    /** Dictionaries of compressed per-player messages, or null when constructed with another store. */
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Switch addMessage to write-behind: messages are queued and committed in batches by one writer thread.
+     * getConversation keeps returning queued messages until they are on disk.
+     */
+    public void enableWriteBehind(int capacity, int batchSize, long flushIntervalMs) {
+        if (writeBehind != null) return;
+        writeBehind = new WriteBehindQueue(this::writeBatch, capacity, batchSize, flushIntervalMs, logger);
+    }
+
+    /** Write-behind queue for metrics, or null when disabled. */
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Commit everything still waiting in the write-behind queue.
+     */
+    public void flushPending() {
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) wb.flush();
+    }
+
+    /**
+     * Keep each player's latest messages in memory so normal chat turns need no database read.
+     */
+    public void enableCache(int messagesPerPlayer, long maxBytes) {
+        if (cache != null) return;
+        cache = new ConversationCache(messagesPerPlayer, maxBytes);
+    }
+
+    /** Recent-history cache for metrics, or null when disabled. */
+    public ConversationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Record getConversation/addMessage/clearConversation latencies into 'metrics'.
+     */
+    public void enableMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Index messages older than the search index in batches of 'batch' rows, pausing between batches
+     * so chat reads and writes interleave. A single database starts now as a whole; per-player files
+     * are backfilled when they are first opened.
+     */
+    public void enableSearch(int batch, long pauseMillis) {
+        backfillBatch = Math.max(1, batch);
+        backfillPauseMillis = Math.max(0, pauseMillis);
+        if (store.isSearchable() && !(store instanceof PlayerFileStore)) scheduleBackfill(ALL_PLAYERS, 0);
+    }
+
+    private void scheduleBackfill(UUID key, long delayMillis) {
+        if (closing) {
+            backfilling.remove(key);
+            return;
+        }
+        if (delayMillis == 0 && !backfilling.add(key)) return;
+        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, executor).execute(() -> backfillStep(key));
+    }
+
+    private void backfillStep(UUID key) {
+        if (closing) {
+            backfilling.remove(key);
+            return;
+        }
         try {
-            Connection conn = openConnection(uuid);
-            if (conn == null) return;
-            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO messages (role, content, created_at) VALUES (?, ?, ?)")) {
-                ps.setString(1, role);
-                ps.setString(2, content);
-                ps.setLong(3, Instant.now().getEpochSecond());
-                ps.executeUpdate();
+            boolean done = store.backfillSearch(key == ALL_PLAYERS ? null : key, backfillBatch);
+            if (done) {
+                backfilling.remove(key);
+                if (key == ALL_PLAYERS) logger.info("Search index is up to date.");
+            } else {
+                CompletableFuture.delayedExecutor(backfillPauseMillis, TimeUnit.MILLISECONDS, executor).execute(() -> backfillStep(key));
             }
+        } catch (SQLException ex) {
+            backfilling.remove(key);
+            logger.warning("Search index backfill failed (resumes on next start): " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Archive that expired messages are appended to; /ai clear deletes a player's archive as well.
+     */
+    public void enableArchive(MessageArchive archive) {
+        this.archive = archive;
+    }
+
+    /** Archive of expired messages, or null when none is configured. */
+    public MessageArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Every player with stored history.
+     */
+    public List<UUID> storedPlayers() throws SQLException {
+        return store.players();
+    }
+
+    /**
+     * Remove a player's expired messages: older than cutoffEpochSeconds (0 = no age limit) or beyond
+     * the latest keepLatest (0 = no count limit). Rows go in batches of 'batch', each appended to the
+     * archive (when archiveFirst) before it is deleted, with pauseMillis between batches; SQLite stores
+     * then return freed pages with incremental vacuum. Returns the number of messages removed.
+     * A crash between archiving and deleting a batch leaves it in both places, never in neither.
+     * Stops when the player's history is cleared meanwhile; nothing is archived after the clear.
+     */
+    public long expireMessages(UUID uuid, long cutoffEpochSeconds, int keepLatest, int batch, long pauseMillis, boolean archiveFirst)
+            throws SQLException, IOException, InterruptedException {
+        MessageArchive a = archiveFirst ? archive : null;
+        if (archiveFirst && a == null) throw new IOException("no archive configured");
+        long generation = clearGeneration(uuid);
+        long removed = store.expire(uuid, cutoffEpochSeconds, keepLatest, batch, pauseMillis, a,
+                () -> closing || clearGeneration(uuid) != generation);
+        if (removed > 0) {
+            ConversationCache c = cache;
+            if (c != null) c.evict(uuid);
+        }
+        return removed;
+    }
+
+    /**
+     * Changes whenever the player's history is cleared. Background work reads it before it starts and
+     * drops what it was about to write when it changed.
+     */
+    public long clearGeneration(UUID uuid) {
+        return clearGenerations.getOrDefault(uuid, 0L);
+    }
+
+    private Object clearLock(UUID uuid) {
+        return clearLocks[(uuid.hashCode() & 0x7fffffff) % clearLocks.length];
+    }
+
+    private void record(String stage, long startNanos) {
+        Metrics m = metrics;
+        if (m != null) m.record(stage, startNanos);
+    }
+
+    /**
+     * Warm the cache for a player (e.g. on join).
+     */
+    public CompletableFuture<Void> preloadAsync(UUID uuid) {
+        ConversationCache c = cache;
+        if (c == null) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> getConversation(uuid, c.getCapacity()), executor);
+    }
+
+    /**
+     * Drop a player's cached messages (e.g. on quit). Their queued messages are committed right away,
+     * so another server sharing the store sees them when the player joins there, and then the store
+     * lets go of the player's file.
+     */
+    public void evictCached(UUID uuid) {
+        ConversationCache c = cache;
+        if (c != null) c.evict(uuid);
+        summaries.remove(uuid);
+        if (closing) return;
+        WriteBehindQueue wb = writeBehind;
+        boolean flush = wb != null && !wb.pending(uuid).isEmpty();
+        try {
+            executor.execute(() -> {
+                if (flush) flushPending();
+                // after the flush, which would otherwise open the file again
+                store.release(uuid);
+            });
+        } catch (RejectedExecutionException ignore) {
+            // shutting down; closeAll flushes and closes
+        }
+    }
+
+    public void addMessage(UUID uuid, String role, String content) {
+        long start = System.nanoTime();
+        long createdAt = Instant.now().getEpochSecond();
+        ConversationCache c = cache;
+        // before the row exists, so a concurrent cache load that reads it is not installed
+        if (c != null) c.beginAppend(uuid);
+        boolean written = false;
+        try {
+            written = persistMessage(uuid, role, content, createdAt);
+        } finally {
+            if (c != null && !written) c.cancelAppend(uuid);
+        }
+        if (!written) return;
+        if (c != null) c.append(uuid, new StoredMessage(role, content, createdAt));
+        record(Metrics.DB_WRITE, start);
+    }
+
+    private boolean persistMessage(UUID uuid, String role, String content, long createdAt) {
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) {
+            wb.add(uuid, role, content, createdAt);
+            return true;
+        }
+        try {
+            store.addMessage(uuid, role, content, createdAt);
+            return true;
         } catch (SQLException ex) {
             logger.severe("Failed to add message for " + uuid + ": " + ex.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Run other storage work on the database executor. Checked exceptions fail the future.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Callable<T> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return work.call();
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    /**
+     * One page (1-based) of the player's messages matching 'terms', best matches first.
+     * Matched words are wrapped in highlightStart/highlightEnd inside each snippet.
+     * Throws when the store has no full-text search.
+     */
+    public SearchPage search(UUID uuid, String terms, int page, int pageSize, String highlightStart, String highlightEnd) throws SQLException {
+        int p = Math.max(1, page);
+        int size = Math.max(1, pageSize);
+        if (SearchIndex.matchQuery(terms) == null) return new SearchPage(new ArrayList<>(), p, false, true);
+        // queued messages must be on disk to be found
+        flushPending();
+        long start = System.nanoTime();
+        try {
+            if (!store.isSearchable()) throw new SQLException("full-text search is not available");
+            List<SearchHit> hits = store.search(uuid, terms, (p - 1) * size, size, highlightStart, highlightEnd);
+            boolean more = hits.size() > size;
+            if (more) hits = new ArrayList<>(hits.subList(0, size));
+            return new SearchPage(hits, p, more, store.isSearchComplete(uuid));
+        } finally {
+            record(Metrics.DB_SEARCH, start);
+        }
+    }
+
+    public CompletableFuture<SearchPage> searchAsync(UUID uuid, String terms, int page, int pageSize, String highlightStart, String highlightEnd) {
+        return supplyAsync(() -> search(uuid, terms, page, pageSize, highlightStart, highlightEnd));
+    }
+
+    public CompletableFuture<Void> addMessageAsync(UUID uuid, String role, String content) {
+        return CompletableFuture.runAsync(() -> addMessage(uuid, role, content), executor);
+    }
+
+    /**
+     * Insert a group-committed batch: one transaction per player file, or one for all in a single database.
+     */
+    private void writeBatch(List<WriteBehindQueue.PendingMessage> batch) throws SQLException {
+        store.addMessages(batch);
+    }
+
     /**
      * Get latest 'limit' messages in chronological order (oldest -> newest).
      */
     public List<StoredMessage> getConversation(UUID uuid, int limit) {
-        List<StoredMessage> out = new ArrayList<>();
+        long start = System.nanoTime();
         try {
-            Connection conn = openConnection(uuid);
-            if (conn == null) return out;
-            try (PreparedStatement ps = conn.prepareStatement("SELECT role, content, created_at FROM messages ORDER BY created_at DESC LIMIT ?")) {
-                ps.setInt(1, Math.max(1, limit));
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        String role = rs.getString("role");
-                        String content = rs.getString("content");
-                        long created = rs.getLong("created_at");
-                        out.add(new StoredMessage(role, content, created));
-                    }
+            ConversationCache c = cache;
+            if (c == null) return loadConversation(uuid, limit);
+
+            List<StoredMessage> cached = c.get(uuid, limit);
+            if (cached != null) return cached;
+            // miss: read enough rows to fill the whole ring, then answer from them
+            int want = Math.max(limit, c.getCapacity());
+            long ticket = c.beginLoad(uuid);
+            List<StoredMessage> rows = loadConversation(uuid, want);
+            c.install(uuid, ticket, rows, want);
+            return rows.size() > limit ? new ArrayList<>(rows.subList(rows.size() - limit, rows.size())) : rows;
+        } finally {
+            record(Metrics.DB_READ, start);
+        }
+    }
+
+    private List<StoredMessage> loadConversation(UUID uuid, int limit) {
+        WriteBehindQueue wb = writeBehind;
+        if (wb == null) return readConversation(uuid, limit);
+
+        // read-your-writes: committed rows plus whatever is still queued, under one consistent view
+        wb.readLock().lock();
+        try {
+            List<WriteBehindQueue.PendingMessage> pending = wb.pending(uuid);
+            if (pending.size() >= limit) {
+                List<StoredMessage> out = new ArrayList<>();
+                for (WriteBehindQueue.PendingMessage m : pending.subList(pending.size() - limit, pending.size())) {
+                    out.add(new StoredMessage(m.role, m.content, m.createdAt));
                 }
+                return out;
+            }
+            List<StoredMessage> out = readConversation(uuid, limit - pending.size());
+            for (WriteBehindQueue.PendingMessage m : pending) {
+                out.add(new StoredMessage(m.role, m.content, m.createdAt));
+            }
+            return out;
+        } finally {
+            wb.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walk a player's messages oldest first, starting after message id 'afterId'.
+     * Rows are fetched in pages of pageSize keyed by id, and handed to the visitor straight from the cursor,
+     * so memory use does not depend on history size and no read transaction stays open for long.
+     * Returns the number of rows visited.
+     */
+    public long streamMessages(UUID uuid, long afterId, int pageSize, MessageVisitor visitor) throws SQLException, IOException {
+        // queued messages must be on disk to be streamed
+        flushPending();
+        return store.streamMessages(uuid, afterId, pageSize, visitor);
+    }
+
+    /**
+     * Id to pass as 'afterId' to {@link #streamMessages} to get only the latest 'count' messages
+     * (0 when the player has no more than that).
+     */
+    public long idBeforeLatest(UUID uuid, int count) throws SQLException {
+        flushPending();
+        return store.idBeforeLatest(uuid, count);
+    }
+
+    /**
+     * Up to 'limit' committed messages with id greater than afterId, oldest first.
+     */
+    public List<StoredMessage> getMessagesAfter(UUID uuid, long afterId, int limit) {
+        try {
+            return store.getMessagesAfter(uuid, afterId, limit);
+        } catch (SQLException ex) {
+            logger.severe("Failed to read messages for " + uuid + ": " + ex.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * The player's rolling summary, or null if none has been written yet.
+     * Kept in memory for online players so chat turns don't read it from disk.
+     */
+    public Summary getSummary(UUID uuid) {
+        Summary cached = summaries.get(uuid);
+        if (cached != null) return cached == NO_SUMMARY ? null : cached;
+        Summary s;
+        try {
+            s = store.getSummary(uuid);
+        } catch (SQLException ex) {
+            logger.severe("Failed to read summary for " + uuid + ": " + ex.getMessage());
+            return null;
+        }
+        if (cache != null) summaries.put(uuid, s == null ? NO_SUMMARY : s);
+        return s;
+    }
+
+    public CompletableFuture<Summary> getSummaryAsync(UUID uuid) {
+        return CompletableFuture.supplyAsync(() -> getSummary(uuid), executor);
+    }
+
+    /**
+     * Store a summary made from the player's messages as of {@link #clearGeneration} 'generation'.
+     * Dropped when the history was cleared since: it would describe messages that are gone, and
+     * in per-player mode writing it would create the deleted file again.
+     */
+    public void saveSummary(UUID uuid, String content, long lastMessageId, long generation) {
+        Summary s = new Summary(content, lastMessageId, Instant.now().getEpochSecond());
+        synchronized (clearLock(uuid)) {
+            if (clearGeneration(uuid) != generation) return;
+            try {
+                store.saveSummary(uuid, s);
+                if (cache != null) summaries.put(uuid, s);
+            } catch (SQLException ex) {
+                logger.severe("Failed to save summary for " + uuid + ": " + ex.getMessage());
             }
-            // current list is newest-first; reverse to chronological
-            java.util.Collections.reverse(out);
+        }
+    }
+
+    private List<StoredMessage> readConversation(UUID uuid, int limit) {
+        try {
+            return store.getConversation(uuid, limit);
         } catch (SQLException ex) {
             logger.severe("Failed to read conversation for " + uuid + ": " + ex.getMessage());
+            return new ArrayList<>();
         }
-        return out;
+    }
+
+    public CompletableFuture<List<StoredMessage>> getConversationAsync(UUID uuid, int limit) {
+        return CompletableFuture.supplyAsync(() -> getConversation(uuid, limit), executor);
     }
 
     /**
-     * Remove all history for a UUID: closes connection, deletes DB file.
+     * Remove all history for a UUID: its messages and summary in the store, and its archive.
      */
     public void clearConversation(UUID uuid) {
+        long start = System.nanoTime();
+        // first, so a retention pass stops before the archive and rows are gone (see RetentionJob.expireBatches);
+        // under the lock so a summary save either finishes before the clear or sees it
+        synchronized (clearLock(uuid)) {
+            clearGenerations.merge(uuid, 1L, Long::sum);
+        }
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) wb.discard(uuid);
+        summaries.remove(uuid);
+        boolean cleared = true;
+        MessageArchive a = archive;
+        if (a != null && !a.delete(uuid)) {
+            logger.warning("Failed to delete archive file: " + a.file(uuid).getAbsolutePath());
+            cleared = false;
+        }
         try {
-            // close and remove connection if present
-            Connection c = connections.remove(uuid);
-            if (c != null) {
-                try {
-                    c.close();
-                } catch (SQLException ignore) {}
-            }
-            File f = dbFile(uuid);
-            if (f.exists()) {
-                if (!f.delete()) {
-                    logger.warning("Failed to delete DB file: " + f.getAbsolutePath());
-                }
-            }
+            if (!store.clearConversation(uuid)) cleared = false;
         } catch (Exception ex) {
             logger.severe("Failed to clear conversation for " + uuid + ": " + ex.getMessage());
+            cleared = false;
         }
+
+        ConversationCache cc = cache;
+        if (cc != null) {
+            // known empty after a clear; otherwise let the next read go to disk
+            if (cleared) cc.cleared(uuid);
+            else cc.evict(uuid);
+        }
+        record(Metrics.DB_CLEAR, start);
+    }
+
+    public CompletableFuture<Void> clearConversationAsync(UUID uuid) {
+        return CompletableFuture.runAsync(() -> clearConversation(uuid), executor);
     }
 
     public void closeAll() {
-        for (UUID u : connections.keySet()) {
-            Connection c = connections.remove(u);
-            if (c != null) {
-                try {
-                    c.close();
-                } catch (SQLException ignore) {}
+        // backfills stop after their current batch and resume on next start
+        closing = true;
+        // let queued async work finish before connections go away
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warning("Timed out waiting for pending database tasks.");
+                executor.shutdownNow();
             }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
+        WriteBehindQueue wb = writeBehind;
+        if (wb != null) wb.shutdown();
+        store.close();
     }
 }
@@ -0,0 +1,332 @@
+package com.ihsannoob.aiplugin;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Spreads requests over one or more endpoints (each its own CerebrasClient, i.e. URL + key + model).
+ *
+ * Each request goes to the available endpoint with the fewest outstanding requests relative to its weight.
+ * Endpoints whose circuit breaker is open are skipped. A failed request (non-2xx, network error,
+ * timeout, unparseable answer) is retried once on another endpoint, as long as nothing was streamed yet.
+ * With hedging on, a non-streamed request that hasn't answered within the endpoint's recent p95
+ * is also sent to a second endpoint, and whichever answers first wins.
+ */
+public class EndpointRouter {
+
+    // samples per latency window; p95 for hedging comes from the latest full-enough window
+    private static final int WINDOW_SAMPLES = 512;
+    private static final int MIN_SAMPLES = 20;
+
+    public static class Route {
+        public final String name;
+        public final CerebrasClient client;
+        public final int weight;
+        public final CircuitBreaker breaker;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicReference<LatencyHistogram> window = new AtomicReference<>(new LatencyHistogram());
+        private volatile LatencyHistogram previous;
+
+        public Route(String name, CerebrasClient client, int weight, CircuitBreaker breaker) {
+            this.name = name;
+            this.client = client;
+            this.weight = Math.max(1, weight);
+            this.breaker = breaker;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /** Recent latency percentile in ms, or -1 while there are too few samples. */
+        public long recentPercentileMillis(double q) {
+            LatencyHistogram h = window.get();
+            if (h.getCount() < MIN_SAMPLES) h = previous;
+            if (h == null || h.getCount() < MIN_SAMPLES) return -1;
+            return h.snapshot().percentile(q) / 1000L;
+        }
+
+        /** Continue from the latency samples of 'old', the same endpoint before a reload. */
+        public void inheritLatency(Route old) {
+            window.set(old.window.get());
+            previous = old.previous;
+        }
+
+        private void recordLatency(long nanos) {
+            LatencyHistogram h = window.get();
+            h.recordNanos(nanos);
+            if (h.getCount() >= WINDOW_SAMPLES && window.compareAndSet(h, new LatencyHistogram())) {
+                previous = h;
+            }
+        }
+
+        // lower is better: outstanding requests per unit of weight
+        private double load() {
+            return (outstanding.get() + 1) / (double) weight;
+        }
+    }
+
+    private final List<Route> routes;
+    private final boolean hedge;
+    private final double hedgePercentile;
+    private final long hedgeMinDelayMillis;
+    private final Metrics metrics;
+    private final Logger logger;
+
+    public EndpointRouter(List<Route> routes, boolean hedge, double hedgePercentile, long hedgeMinDelayMillis, Metrics metrics, Logger logger) {
+        if (routes.isEmpty()) throw new IllegalArgumentException("At least one endpoint is required");
+        this.routes = Collections.unmodifiableList(new ArrayList<>(routes));
+        this.hedge = hedge && routes.size() > 1;
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinDelayMillis = Math.max(0, hedgeMinDelayMillis);
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    /** Requests currently running on any endpoint. */
+    public int getOutstanding() {
+        int n = 0;
+        for (Route r : routes) n += r.getOutstanding();
+        return n;
+    }
+
+    /**
+     * Pre-connect to every distinct endpoint host (see {@link CerebrasClient#warmUp()}).
+     * Completes with the number of hosts that could be reached.
+     */
+    public CompletableFuture<Integer> warmUp() {
+        Set<String> hosts = new HashSet<>();
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+        for (Route r : routes) {
+            String host;
+            try {
+                URI uri = URI.create(r.client.getEndpoint());
+                host = uri.getScheme() + "://" + uri.getAuthority();
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            // one connection per host is enough; routes on the same host share the pool
+            if (hosts.add(host)) calls.add(r.client.warmUp());
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int ok = 0;
+            for (CompletableFuture<Boolean> c : calls) {
+                if (c.join()) ok++;
+            }
+            return ok;
+        });
+    }
+
+    /** Model of the first endpoint (used e.g. in response cache keys). */
+    public String getModel() {
+        return routes.get(0).client.getModel();
+    }
+
+    /**
+     * Same contract as {@link CerebrasClient#generateAsync}: the assistant text, null on error,
+     * or an {@link CerebrasClient.ApiException} failure (503 when every endpoint is unavailable).
+     * Cancelling the result aborts every request still running for it.
+     */
+    public CompletableFuture<String> generateAsync(List<CerebrasClient.Message> messages) {
+        return generateAsync(messages, null);
+    }
+
+    /**
+     * {@link #generateAsync(List)} reporting token usage to onUsage (may be null) once per request
+     * that got an answer. The losing leg of a hedged call is aborted once the other answers, so it only
+     * reports too when both answers arrived at about the same time.
+     */
+    public CompletableFuture<String> generateAsync(List<CerebrasClient.Message> messages, Consumer<CerebrasClient.Usage> onUsage) {
+        Function<Route, CompletableFuture<String>> call = r -> r.client.generateAsync(messages, onUsage);
+        Route primary = pick(null);
+        if (primary == null) return CompletableFuture.failedFuture(unavailable());
+        CompletableFuture<String> first = withFailover(primary, call, () -> true);
+        if (!hedge) return first;
+        return hedged(first, primary, call);
+    }
+
+    /**
+     * Same contract as {@link CerebrasClient#generateStreamAsync}. Streams are never hedged, and only
+     * fail over when the first endpoint failed before sending any text.
+     */
+    public CompletableFuture<String> generateStreamAsync(List<CerebrasClient.Message> messages, Consumer<String> onSegment) {
+        return generateStreamAsync(messages, onSegment, null);
+    }
+
+    /** {@link #generateStreamAsync(List, Consumer)} reporting token usage to onUsage (may be null). */
+    public CompletableFuture<String> generateStreamAsync(List<CerebrasClient.Message> messages, Consumer<String> onSegment,
+                                                         Consumer<CerebrasClient.Usage> onUsage) {
+        AtomicBoolean emitted = new AtomicBoolean();
+        Consumer<String> tracking = segment -> {
+            emitted.set(true);
+            onSegment.accept(segment);
+        };
+        Route primary = pick(null);
+        if (primary == null) return CompletableFuture.failedFuture(unavailable());
+        return withFailover(primary, r -> r.client.generateStreamAsync(messages, tracking, onUsage), () -> !emitted.get());
+    }
+
+    private CompletableFuture<String> withFailover(Route route, Function<Route, CompletableFuture<String>> call, BooleanSupplier canRetry) {
+        CompletableFuture<String> out = new CompletableFuture<>();
+        CompletableFuture<String> first = send(route, call);
+        InFlightRegistry.cancelling(out, first);
+        first.whenComplete((reply, ex) -> {
+            if (ex == null && reply != null) {
+                out.complete(reply);
+                return;
+            }
+            Route next = !out.isDone() && endpointFault(reply, ex) && canRetry.getAsBoolean() ? pick(route) : null;
+            if (next == null) {
+                settle(out, reply, ex);
+                return;
+            }
+            metrics.increment(Metrics.labelled("endpoint_failovers_total", "endpoint", next.name));
+            CompletableFuture<String> second = send(next, call);
+            InFlightRegistry.cancelling(out, second);
+            second.whenComplete((r2, ex2) -> settle(out, r2, ex2));
+        });
+        return out;
+    }
+
+    private CompletableFuture<String> hedged(CompletableFuture<String> first, Route primary, Function<Route, CompletableFuture<String>> call) {
+        long p = primary.recentPercentileMillis(hedgePercentile);
+        if (p < 0) return first; // not enough history to know what "slow" is
+        long delay = Math.max(hedgeMinDelayMillis, p);
+
+        CompletableFuture<String> out = new CompletableFuture<>();
+        AtomicInteger legs = new AtomicInteger(1);
+        AtomicReference<Throwable> lastError = new AtomicReference<>();
+        // once there is an answer (or out was cancelled) the other leg is aborted: it would still hold an
+        // upstream connection after the scheduler released the turn's permit, and still be billed
+        out.whenComplete((r, ex) -> first.cancel(true));
+        first.whenComplete((reply, ex) -> finishLeg(out, legs, lastError, reply, ex, false));
+
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (out.isDone()) return;
+            Route second = pick(primary);
+            if (second == null) return;
+            legs.incrementAndGet();
+            metrics.increment(Metrics.labelled("endpoint_hedges_total", "endpoint", second.name));
+            CompletableFuture<String> leg = send(second, call);
+            out.whenComplete((r, ex) -> leg.cancel(true));
+            leg.whenComplete((reply, ex) -> finishLeg(out, legs, lastError, reply, ex, true));
+        });
+        return out;
+    }
+
+    // first good answer wins; if every leg fails, report the last failure
+    private void finishLeg(CompletableFuture<String> out, AtomicInteger legs, AtomicReference<Throwable> lastError, String reply, Throwable ex, boolean hedgeLeg) {
+        if (ex == null && reply != null) {
+            if (out.complete(reply) && hedgeLeg) metrics.increment("endpoint_hedge_wins_total");
+            return;
+        }
+        if (ex != null) lastError.set(ex);
+        if (legs.decrementAndGet() == 0) settle(out, null, lastError.get());
+    }
+
+    private CompletableFuture<String> send(Route route, Function<Route, CompletableFuture<String>> call) {
+        route.outstanding.incrementAndGet();
+        metrics.increment(Metrics.labelled("endpoint_requests_total", "endpoint", route.name));
+        long start = System.nanoTime();
+        CompletableFuture<String> f;
+        try {
+            f = call.apply(route);
+        } catch (Throwable t) {
+            f = CompletableFuture.failedFuture(t);
+        }
+        // cancelling the returned future aborts the request; that says nothing about the endpoint
+        return InFlightRegistry.cancelling(f.whenComplete((reply, ex) -> {
+            route.outstanding.decrementAndGet();
+            if (cancelled(ex)) {
+                route.breaker.onCancelled();
+                return;
+            }
+            if (!endpointFault(reply, ex)) {
+                if (ex == null) route.recordLatency(System.nanoTime() - start);
+                route.breaker.onSuccess();
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            long retryAfter = cause instanceof CerebrasClient.ApiException ? ((CerebrasClient.ApiException) cause).retryAfterMillis : -1;
+            boolean wasClosed = route.breaker.getState() == CircuitBreaker.State.CLOSED;
+            route.breaker.onFailure(retryAfter);
+            if (wasClosed && route.breaker.getState() == CircuitBreaker.State.OPEN) {
+                logger.warning("Endpoint " + route.name + " unavailable for " + route.breaker.remainingMillis() + " ms after repeated failures");
+            }
+        }), f);
+    }
+
+    private static boolean cancelled(Throwable ex) {
+        return ex instanceof CancellationException || (ex instanceof CompletionException && ex.getCause() instanceof CancellationException);
+    }
+
+    /**
+     * Least outstanding requests per weight among available endpoints (ties broken randomly).
+     * Claims the half-open trial of the chosen endpoint. Returns null when none is available.
+     */
+    private Route pick(Route exclude) {
+        List<Route> candidates = new ArrayList<>(routes.size());
+        for (Route r : routes) {
+            if (r != exclude && r.breaker.isAvailable()) candidates.add(r);
+        }
+        while (!candidates.isEmpty()) {
+            Route best = null;
+            int ties = 0;
+            for (Route r : candidates) {
+                int cmp = best == null ? -1 : Double.compare(r.load(), best.load());
+                if (cmp < 0) {
+                    best = r;
+                    ties = 1;
+                } else if (cmp == 0 && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                    best = r;
+                }
+            }
+            if (best.breaker.tryAcquire()) return best;
+            candidates.remove(best);
+        }
+        return null;
+    }
+
+    /**
+     * Whether a result counts against the endpoint. Null replies are network errors, timeouts or
+     * unparseable answers; 400/413/422 are the request's fault and would fail anywhere.
+     */
+    private static boolean endpointFault(String reply, Throwable ex) {
+        if (ex == null) return reply == null;
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (!(cause instanceof CerebrasClient.ApiException)) return true;
+        int status = ((CerebrasClient.ApiException) cause).status;
+        return status != 400 && status != 413 && status != 422;
+    }
+
+    private CerebrasClient.ApiException unavailable() {
+        long wait = Long.MAX_VALUE;
+        for (Route r : routes) wait = Math.min(wait, r.breaker.remainingMillis());
+        return new CerebrasClient.ApiException(503, Math.max(1000, wait), "all endpoints unavailable (circuit open)");
+    }
+
+    private static void settle(CompletableFuture<String> out, String reply, Throwable ex) {
+        if (ex != null) out.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+        else out.complete(reply);
+    }
+}
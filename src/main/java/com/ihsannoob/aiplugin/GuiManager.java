@@ -1,21 +1,17 @@
 package com.ihsannoob.aiplugin;
 
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
-import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.inventory.InventoryClickEvent;
-import org.bukkit.inventory.Inventory;
-import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.event.inventory.InventoryDragEvent;
 
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 public class GuiManager implements Listener {
 
@@ -28,54 +24,60 @@ public class GuiManager implements Listener {
     }
 
     /**
-     * Open a simple pageless inventory showing messages (latest shown last).
+     * Load the player's history off the main thread, then open the GUI on it.
+     */
+    public void openHistoryAsync(Player player, int limit) {
+        UUID uuid = player.getUniqueId();
+        plugin.getDatabaseManager().getConversationAsync(uuid, limit)
+                .whenComplete((history, ex) -> Bukkit.getScheduler().runTask(plugin, () -> {
+                    if (!player.isOnline()) return;
+                    if (ex != null) {
+                        plugin.getLogger().severe("Error loading history: " + ex.getMessage());
+                        player.sendMessage("§6[AI] §rFailed to load your AI history.");
+                        return;
+                    }
+                    openConversation(player, history);
+                }));
+    }
+
+    /**
+     * Open a paged inventory showing messages (latest shown last).
      * Clicking an item will send full message to player chat.
      */
     public void openConversation(Player player, List<DatabaseManager.StoredMessage> messages) {
-        int slotsNeeded = Math.max(1, messages.size());
-        int rows = (int) Math.ceil(slotsNeeded / 9.0);
-        rows = Math.min(6, Math.max(1, rows));
-        int size = rows * 9;
-        Inventory inv = Bukkit.createInventory(null, size, "AI History: " + player.getName());
-
-        for (int i = 0; i < messages.size() && i < size; i++) {
-            DatabaseManager.StoredMessage m = messages.get(i);
-            ItemStack item = new ItemStack(Material.PAPER);
-            ItemMeta meta = item.getItemMeta();
-            String title = (m.role.equalsIgnoreCase("user") ? ChatColor.YELLOW : ChatColor.AQUA) + (m.role.equals("user") ? "User" : "Assistant");
-            meta.setDisplayName(title);
-            List<String> lore = new ArrayList<>();
-            String snippet = m.content.length() > 80 ? m.content.substring(0, 77) + "..." : m.content;
-            lore.add(ChatColor.GRAY + snippet);
-            lore.add(ChatColor.GRAY + "At: " + dtf.format(Instant.ofEpochSecond(m.createdAt)));
-            lore.add(ChatColor.GRAY + "Click to view full message in chat");
-            meta.setLore(lore);
-            item.setItemMeta(meta);
-            inv.setItem(i, item);
-        }
-
-        player.openInventory(inv);
+        HistoryView view = new HistoryView(player.getName(), messages, dtf);
+        player.openInventory(view.render(view.getPage()));
     }
 
     @EventHandler
     public void onInventoryClick(InventoryClickEvent ev) {
-        if (ev.getView().getTitle() == null) return;
-        if (!ev.getView().getTitle().startsWith("AI History: ")) return;
+        if (!(ev.getInventory().getHolder() instanceof HistoryView)) return;
         ev.setCancelled(true); // prevent taking items
         if (!(ev.getWhoClicked() instanceof Player)) return;
         Player player = (Player) ev.getWhoClicked();
-        int slot = ev.getSlot();
-        // get message index from slot
-        List<DatabaseManager.StoredMessage> history = plugin.getDatabaseManager().getConversation(player.getUniqueId(), player.getOpenInventory().getTopInventory().getSize());
-        if (slot < 0 || slot >= history.size()) return;
-        DatabaseManager.StoredMessage m = history.get(slot);
-        player.sendMessage("§6[AI History] §7Role: §e" + m.role + " §7At: §e" + dtf.format(Instant.ofEpochSecond(m.createdAt)));
-        // Split long message in chat lines
-        String content = m.content;
-        int maxLen = 256;
-        for (int start = 0; start < content.length(); start += maxLen) {
-            int end = Math.min(content.length(), start + maxLen);
-            player.sendMessage(content.substring(start, end));
+        HistoryView view = (HistoryView) ev.getInventory().getHolder();
+        int slot = ev.getRawSlot();
+        // clicks in the player's own inventory have raw slots past the top inventory
+        if (slot < 0 || slot >= ev.getInventory().getSize()) return;
+
+        if (view.isPaged() && (slot == HistoryView.PREV_SLOT || slot == HistoryView.NEXT_SLOT)) {
+            int target = view.getPage() + (slot == HistoryView.NEXT_SLOT ? 1 : -1);
+            if (target < 0 || target >= view.getPages()) return;
+            // don't swap inventories from inside the click handler
+            Bukkit.getScheduler().runTask(plugin, () -> player.openInventory(view.render(target)));
+            return;
         }
+
+        DatabaseManager.StoredMessage m = view.messageAt(slot);
+        if (m == null) return;
+        // long messages are word-wrapped and spread over ticks by the dispatcher
+        MessageDispatcher dispatcher = plugin.getDispatcher();
+        dispatcher.send(player, "§6[AI History] §7Role: §e" + m.role + " §7At: §e" + dtf.format(Instant.ofEpochSecond(m.createdAt)));
+        dispatcher.send(player, m.content);
+    }
+
+    @EventHandler
+    public void onInventoryDrag(InventoryDragEvent ev) {
+        if (ev.getInventory().getHolder() instanceof HistoryView) ev.setCancelled(true);
     }
 }
@@ -0,0 +1,96 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams a player's history from the database cursor straight into a file.
+ * Nothing is collected in memory: each row is written as it is read.
+ * JSON produces one array, NDJSON one object per line; either can be gzip-compressed.
+ * Full exports start with the messages the retention job moved to the archive.
+ */
+public class HistoryExporter {
+
+    public enum Format {
+        JSON(".json"), NDJSON(".ndjson");
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public static Format parse(String s) {
+            return "ndjson".equalsIgnoreCase(s) ? NDJSON : JSON;
+        }
+    }
+
+    private static final int PAGE_SIZE = 500;
+
+    private final DatabaseManager db;
+
+    public HistoryExporter(DatabaseManager db) {
+        this.db = db;
+    }
+
+    /**
+     * File name (without directory) an export with these settings will use.
+     */
+    public static String fileName(UUID uuid, long timestamp, Format format, boolean gzip) {
+        return uuid + "_" + timestamp + format.extension + (gzip ? ".gz" : "");
+    }
+
+    /**
+     * Write the player's history to 'out'. maxMessages &lt;= 0 exports everything, archived messages
+     * included, otherwise only the latest maxMessages still in the database.
+     * Returns the number of messages written.
+     */
+    public long export(UUID uuid, File out, Format format, boolean gzip, int maxMessages) throws IOException, SQLException {
+        long afterId = maxMessages > 0 ? db.idBeforeLatest(uuid, maxMessages) : 0;
+        MessageArchive archive = maxMessages > 0 ? null : db.getArchive();
+
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 64 * 1024);
+        if (gzip) os = new GZIPOutputStream(os, 64 * 1024);
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
+             JsonWriter jw = new JsonWriter(w)) {
+            if (format == Format.NDJSON) {
+                // several top-level values, one per line
+                jw.setLenient(true);
+                DatabaseManager.MessageVisitor line = (id, m) -> {
+                    writeMessage(jw, m);
+                    jw.flush();
+                    w.write('\n');
+                };
+                long n = archive != null ? archive.read(uuid, line) : 0;
+                return n + db.streamMessages(uuid, afterId, PAGE_SIZE, line);
+            }
+
+            jw.beginArray();
+            long n = archive != null ? archive.read(uuid, (id, m) -> writeMessage(jw, m)) : 0;
+            n += db.streamMessages(uuid, afterId, PAGE_SIZE, (id, m) -> writeMessage(jw, m));
+            jw.endArray();
+            return n;
+        }
+    }
+
+    private static void writeMessage(JsonWriter jw, DatabaseManager.StoredMessage m) throws IOException {
+        // same field names Gson used for StoredMessage
+        jw.beginObject();
+        jw.name("role").value(m.role);
+        jw.name("content").value(m.content);
+        jw.name("createdAt").value(m.createdAt);
+        jw.endObject();
+    }
+}
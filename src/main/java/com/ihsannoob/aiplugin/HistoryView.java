@@ -0,0 +1,126 @@
+package com.ihsannoob.aiplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One open history GUI. Holds an immutable snapshot of the messages it shows, so clicks are
+ * resolved without touching the database. Items are only built for the page being displayed.
+ * Up to 54 messages fit on a single page; longer histories get 45 per page plus a navigation row.
+ */
+public class HistoryView implements InventoryHolder {
+
+    static final int SINGLE_PAGE_SLOTS = 54;
+    static final int PAGE_SLOTS = 45;
+    static final int PREV_SLOT = 45;
+    static final int INFO_SLOT = 49;
+    static final int NEXT_SLOT = 53;
+
+    private final String playerName;
+    private final List<DatabaseManager.StoredMessage> messages;
+    private final DateTimeFormatter dtf;
+    private final int perPage;
+    private final int pages;
+    private int page;
+    private Inventory inventory;
+
+    public HistoryView(String playerName, List<DatabaseManager.StoredMessage> messages, DateTimeFormatter dtf) {
+        this.playerName = playerName;
+        this.messages = List.copyOf(messages);
+        this.dtf = dtf;
+        this.perPage = this.messages.size() <= SINGLE_PAGE_SLOTS ? SINGLE_PAGE_SLOTS : PAGE_SLOTS;
+        this.pages = Math.max(1, (this.messages.size() + perPage - 1) / perPage);
+        // open on the newest messages
+        this.page = pages - 1;
+    }
+
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+
+    public boolean isPaged() {
+        return pages > 1;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Message shown in a slot of the current page, or null for empty/navigation slots.
+     */
+    public DatabaseManager.StoredMessage messageAt(int slot) {
+        if (slot < 0 || slot >= perPage) return null;
+        int index = page * perPage + slot;
+        return index < messages.size() ? messages.get(index) : null;
+    }
+
+    /**
+     * Build the inventory for the given page. Titles can't change on an open inventory,
+     * so each page is a fresh inventory that the caller opens.
+     */
+    public Inventory render(int newPage) {
+        page = Math.max(0, Math.min(pages - 1, newPage));
+        int from = page * perPage;
+        int count = Math.min(perPage, messages.size() - from);
+
+        int size;
+        if (isPaged()) {
+            size = SINGLE_PAGE_SLOTS;
+        } else {
+            int rows = (int) Math.ceil(Math.max(1, count) / 9.0);
+            size = Math.min(6, Math.max(1, rows)) * 9;
+        }
+        String title = "AI History: " + playerName + (isPaged() ? " (" + (page + 1) + "/" + pages + ")" : "");
+        Inventory inv = Bukkit.createInventory(this, size, title);
+
+        for (int i = 0; i < count; i++) {
+            inv.setItem(i, messageItem(messages.get(from + i)));
+        }
+        if (isPaged()) {
+            if (page > 0) inv.setItem(PREV_SLOT, button(Material.ARROW, ChatColor.YELLOW + "Previous page"));
+            inv.setItem(INFO_SLOT, button(Material.BOOK, ChatColor.GRAY + "Page " + (page + 1) + "/" + pages + " (" + messages.size() + " messages)"));
+            if (page < pages - 1) inv.setItem(NEXT_SLOT, button(Material.ARROW, ChatColor.YELLOW + "Next page"));
+        }
+        this.inventory = inv;
+        return inv;
+    }
+
+    private ItemStack messageItem(DatabaseManager.StoredMessage m) {
+        ItemStack item = new ItemStack(Material.PAPER);
+        ItemMeta meta = item.getItemMeta();
+        String title = (m.role.equalsIgnoreCase("user") ? ChatColor.YELLOW : ChatColor.AQUA) + (m.role.equals("user") ? "User" : "Assistant");
+        meta.setDisplayName(title);
+        List<String> lore = new ArrayList<>();
+        String snippet = m.content.length() > 80 ? m.content.substring(0, 77) + "..." : m.content;
+        lore.add(ChatColor.GRAY + snippet);
+        lore.add(ChatColor.GRAY + "At: " + dtf.format(Instant.ofEpochSecond(m.createdAt)));
+        lore.add(ChatColor.GRAY + "Click to view full message in chat");
+        meta.setLore(lore);
+        item.setItemMeta(meta);
+        return item;
+    }
+
+    private static ItemStack button(Material material, String name) {
+        ItemStack item = new ItemStack(material);
+        ItemMeta meta = item.getItemMeta();
+        meta.setDisplayName(name);
+        item.setItemMeta(meta);
+        return item;
+    }
+}
@@ -0,0 +1,35 @@
+package com.ihsannoob.aiplugin;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HttpClients shared by every CerebrasClient, keyed by the only transport setting (connect timeout).
+ *
+ * An HttpClient owns the connection pool (TLS sessions, HTTP/2 connections), so reusing it across
+ * /ai reload keeps warm connections when only model, max_tokens, keys or routing changed.
+ * A transport that is no longer configured is just forgotten: requests still running on it keep
+ * their reference and finish normally, after which it is garbage collected with its connections.
+ */
+public class HttpTransports {
+
+    private final Map<Duration, HttpClient> clients = new HashMap<>();
+
+    public synchronized HttpClient get(Duration connectTimeout) {
+        return clients.computeIfAbsent(connectTimeout, CerebrasClient::newHttpClient);
+    }
+
+    /** Forget transports whose connect timeout is not in 'inUse'. Returns how many were dropped. */
+    public synchronized int retain(Set<Duration> inUse) {
+        int before = clients.size();
+        clients.keySet().retainAll(inUse);
+        return before - clients.size();
+    }
+
+    public synchronized int size() {
+        return clients.size();
+    }
+}
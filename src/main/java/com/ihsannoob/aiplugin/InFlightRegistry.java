@@ -0,0 +1,187 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Chat, export and clear operations that are still running, per player.
+ *
+ * When a player quits, their chat turns are cancelled (the API request is aborted and nothing more
+ * is stored) or, with the persist policy, left to finish and store the reply without delivering it.
+ * Exports and clears always finish. On disable, {@link #drain} waits for everything still running
+ * so storage is closed only after the last write, cancelling chat turns that take too long.
+ */
+public class InFlightRegistry {
+
+    public enum Kind { CHAT, EXPORT, CLEAR }
+
+    public enum QuitPolicy {
+        CANCEL, PERSIST;
+
+        static QuitPolicy parse(String s) {
+            return s != null && s.trim().equalsIgnoreCase("persist") ? PERSIST : CANCEL;
+        }
+    }
+
+    // after the drain timeout cancelled chat turns still need a moment to unwind
+    private static final long CANCEL_GRACE_MILLIS = 1000;
+
+    /** One running operation; call {@link #done()} when it ends, however it ends. */
+    public final class Operation {
+        public final UUID uuid;
+        public final Kind kind;
+        private final List<Future<?>> tracked = new ArrayList<>();
+        private boolean cancelled;
+
+        Operation(UUID uuid, Kind kind) {
+            this.uuid = uuid;
+            this.kind = kind;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** Fail with CancellationException when this operation was cancelled; for checks between steps. */
+        public void checkCancelled() {
+            if (isCancelled()) throw new CancellationException(kind + " for " + uuid + " cancelled");
+        }
+
+        /** Cancel 'f' when this operation is cancelled (right away if it already is). Returns f. */
+        public <F extends Future<?>> F track(F f) {
+            boolean now;
+            synchronized (this) {
+                now = cancelled;
+                if (!now) tracked.add(f);
+            }
+            if (now) f.cancel(true);
+            return f;
+        }
+
+        public void done() {
+            if (running.remove(this)) {
+                synchronized (running) {
+                    running.notifyAll();
+                }
+            }
+        }
+
+        boolean cancel() {
+            List<Future<?>> futures;
+            synchronized (this) {
+                if (cancelled) return false;
+                cancelled = true;
+                futures = new ArrayList<>(tracked);
+                tracked.clear();
+            }
+            for (Future<?> f : futures) f.cancel(true);
+            return true;
+        }
+    }
+
+    private final Set<Operation> running = ConcurrentHashMap.newKeySet();
+    private final Metrics metrics;
+    private final Logger logger;
+    private volatile QuitPolicy quitPolicy = QuitPolicy.CANCEL;
+
+    public InFlightRegistry(Metrics metrics, Logger logger) {
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    /** @param onQuit "cancel" or "persist", for chat turns of a player who logs out */
+    public void configure(String onQuit) {
+        this.quitPolicy = QuitPolicy.parse(onQuit);
+    }
+
+    public Operation begin(UUID uuid, Kind kind) {
+        Operation op = new Operation(uuid, kind);
+        running.add(op);
+        return op;
+    }
+
+    /** The player logged out: cancel or detach their chat turns, depending on the quit policy. */
+    public void onQuit(UUID uuid) {
+        for (Operation op : running) {
+            if (op.kind != Kind.CHAT || !op.uuid.equals(uuid)) continue;
+            if (quitPolicy == QuitPolicy.PERSIST) {
+                metrics.increment("inflight_finished_after_quit_total");
+            } else if (op.cancel()) {
+                metrics.increment(Metrics.labelled("inflight_cancelled_total", "reason", "quit"));
+            }
+        }
+    }
+
+    /**
+     * Wait up to timeoutMillis for every operation to finish, then cancel the chat turns still
+     * running and give them a moment to unwind. Returns true when nothing is left running.
+     * Blocking; call on disable, after the RequestScheduler stopped taking work.
+     */
+    public boolean drain(long timeoutMillis) {
+        long start = System.currentTimeMillis();
+        int initial = running.size();
+        if (!await(start + Math.max(0, timeoutMillis))) {
+            int cancelled = 0;
+            for (Operation op : running) {
+                if (op.kind == Kind.CHAT && op.cancel()) cancelled++;
+            }
+            if (cancelled > 0) {
+                metrics.add(Metrics.labelled("inflight_cancelled_total", "reason", "shutdown"), cancelled);
+                logger.warning("Cancelled " + cancelled + " chat request(s) still running after " + timeoutMillis + " ms.");
+            }
+            await(System.currentTimeMillis() + CANCEL_GRACE_MILLIS);
+        }
+        int left = running.size();
+        if (left > 0) {
+            logger.warning(left + " operation(s) still running at shutdown: " + counts());
+        } else if (initial > 0) {
+            logger.info("Finished " + initial + " running operation(s) in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return left == 0;
+    }
+
+    private boolean await(long deadline) {
+        synchronized (running) {
+            while (!running.isEmpty()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                try {
+                    running.wait(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public int getRunning() {
+        return running.size();
+    }
+
+    /** Running operations per kind. */
+    public Map<Kind, Integer> counts() {
+        Map<Kind, Integer> out = new EnumMap<>(Kind.class);
+        for (Kind k : Kind.values()) out.put(k, 0);
+        for (Operation op : running) out.merge(op.kind, 1, Integer::sum);
+        return out;
+    }
+
+    /** Cancel 'source' when 'out' is cancelled, so aborting a derived future reaches the work behind it. */
+    static <T> CompletableFuture<T> cancelling(CompletableFuture<T> out, Future<?> source) {
+        out.whenComplete((r, ex) -> {
+            if (out.isCancelled()) source.cancel(true);
+        });
+        return out;
+    }
+}
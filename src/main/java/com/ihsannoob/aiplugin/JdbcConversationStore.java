@@ -0,0 +1,477 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Every player's messages in an external database reached over JDBC (MySQL/MariaDB, PostgreSQL, H2),
+ * so servers behind one proxy share a player's history.
+ * Tables: <prefix>messages(id, player_uuid, role, content, created_at) with an index on (player_uuid, id),
+ * and <prefix>summaries(player_uuid, content, last_message_id, updated_at).
+ *
+ * Connections come from a small fixed pool and keep their prepared statements; one idle for a while
+ * is validated before use and reopened if the server dropped it. Search is a plain substring match
+ * (no ranking), newest first.
+ */
+public class JdbcConversationStore implements ConversationStore {
+
+    // a pooled connection this long idle is checked with isValid() before it is handed out
+    private static final long VALIDATE_AFTER_MILLIS = 30_000L;
+    private static final int SNIPPET_BEFORE = 60;
+    private static final int SNIPPET_AFTER = 100;
+
+    /** A pool slot: the connection (reopened when broken) and its reusable statements. */
+    private static final class Slot {
+        Connection conn;
+        final Map<String, PreparedStatement> statements = new HashMap<>();
+        long lastUsed;
+        // an error was thrown while in use; validate before the next use
+        boolean suspect;
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        void close() {
+            statements.clear();
+            if (conn == null) return;
+            try {
+                conn.close();
+            } catch (SQLException ignore) {}
+            conn = null;
+        }
+    }
+
+    private interface Work<T> {
+        T run(Slot s) throws SQLException;
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Logger logger;
+    private final String messages;
+    private final String summaries;
+    private final BlockingQueue<Slot> pool;
+    private final List<Slot> allSlots = new ArrayList<>();
+
+    /**
+     * @param tablePrefix prepended to the table names, letters, digits and '_' only
+     */
+    public JdbcConversationStore(String url, String user, String password, int poolSize, String tablePrefix, Logger logger) throws SQLException {
+        if (!tablePrefix.matches("[A-Za-z0-9_]*")) throw new SQLException("invalid table prefix: " + tablePrefix);
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.logger = logger;
+        this.messages = tablePrefix + "messages";
+        this.summaries = tablePrefix + "summaries";
+
+        int n = Math.max(1, poolSize);
+        this.pool = new ArrayBlockingQueue<>(n);
+        for (int i = 0; i < n; i++) {
+            Slot s = new Slot();
+            allSlots.add(s);
+            pool.add(s);
+        }
+        // opens the first connection, so a wrong URL or password fails here rather than on first chat
+        withConnection(s -> {
+            createTables(s.conn);
+            return null;
+        });
+    }
+
+    private void createTables(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+        boolean mysql = product.contains("mysql") || product.contains("mariadb");
+        String id = mysql ? "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY" : "BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY";
+        String text = mysql ? "MEDIUMTEXT" : product.contains("postgres") ? "TEXT" : "CLOB";
+        try (Statement st = conn.createStatement()) {
+            if (!tableExists(conn, messages)) {
+                st.executeUpdate("CREATE TABLE " + messages + " (id " + id + ", player_uuid VARCHAR(36) NOT NULL, role VARCHAR(16) NOT NULL, content " + text + " NOT NULL, created_at BIGINT NOT NULL)");
+                st.executeUpdate("CREATE INDEX " + messages + "_player ON " + messages + " (player_uuid, id)");
+                logger.info("Created table " + messages + " (" + conn.getMetaData().getDatabaseProductName() + ").");
+            }
+            if (!tableExists(conn, summaries)) {
+                st.executeUpdate("CREATE TABLE " + summaries + " (player_uuid VARCHAR(36) NOT NULL PRIMARY KEY, content " + text + " NOT NULL, last_message_id BIGINT NOT NULL, updated_at BIGINT NOT NULL)");
+            }
+        }
+    }
+
+    // works the same everywhere, unlike metadata lookups (identifier case) or CREATE INDEX IF NOT EXISTS
+    private static boolean tableExists(Connection conn, String table) {
+        try (Statement st = conn.createStatement()) {
+            st.executeQuery("SELECT 1 FROM " + table + " WHERE 1 = 0").close();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private Slot borrow() throws SQLException {
+        Slot s;
+        try {
+            s = pool.poll(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", ex);
+        }
+        if (s == null) throw new SQLException("Timed out waiting for a database connection");
+        try {
+            if (s.conn != null && (s.suspect || System.currentTimeMillis() - s.lastUsed > VALIDATE_AFTER_MILLIS) && !s.conn.isValid(2)) {
+                s.close();
+            }
+            if (s.conn == null) {
+                s.conn = DriverManager.getConnection(url, user, password);
+                s.conn.setAutoCommit(true);
+            }
+            s.suspect = false;
+            return s;
+        } catch (SQLException ex) {
+            s.close();
+            pool.add(s);
+            throw ex;
+        }
+    }
+
+    private void release(Slot s) {
+        s.lastUsed = System.currentTimeMillis();
+        pool.add(s);
+    }
+
+    private <T> T withConnection(Work<T> work) throws SQLException {
+        Slot s = borrow();
+        try {
+            return work.run(s);
+        } catch (SQLException ex) {
+            s.suspect = true;
+            throw ex;
+        } finally {
+            release(s);
+        }
+    }
+
+    @Override
+    public void addMessage(UUID uuid, String role, String content, long createdAt) throws SQLException {
+        withConnection(s -> {
+            PreparedStatement ps = s.prepare("INSERT INTO " + messages + " (player_uuid, role, content, created_at) VALUES (?, ?, ?, ?)");
+            ps.setString(1, uuid.toString());
+            ps.setString(2, role);
+            ps.setString(3, content);
+            ps.setLong(4, createdAt);
+            return ps.executeUpdate();
+        });
+    }
+
+    /**
+     * The whole batch in one transaction and one round trip where the driver batches
+     * (for MySQL add rewriteBatchedStatements=true to the URL).
+     */
+    @Override
+    public void addMessages(List<WriteBehindQueue.PendingMessage> batch) throws SQLException {
+        if (batch.isEmpty()) return;
+        withConnection(s -> {
+            s.conn.setAutoCommit(false);
+            try {
+                PreparedStatement ps = s.prepare("INSERT INTO " + messages + " (player_uuid, role, content, created_at) VALUES (?, ?, ?, ?)");
+                for (WriteBehindQueue.PendingMessage m : batch) {
+                    ps.setString(1, m.uuid.toString());
+                    ps.setString(2, m.role);
+                    ps.setString(3, m.content);
+                    ps.setLong(4, m.createdAt);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                s.conn.commit();
+                return null;
+            } catch (SQLException ex) {
+                s.conn.rollback();
+                throw ex;
+            } finally {
+                s.conn.setAutoCommit(true);
+            }
+        });
+    }
+
+    @Override
+    public List<DatabaseManager.StoredMessage> getConversation(UUID uuid, int limit) throws SQLException {
+        List<DatabaseManager.StoredMessage> out = withConnection(s -> {
+            PreparedStatement ps = s.prepare("SELECT id, role, content, created_at FROM " + messages + " WHERE player_uuid = ? ORDER BY id DESC LIMIT ?");
+            ps.setString(1, uuid.toString());
+            ps.setInt(2, Math.max(1, limit));
+            return readMessages(ps);
+        });
+        // newest-first; reverse to chronological
+        Collections.reverse(out);
+        return out;
+    }
+
+    @Override
+    public List<DatabaseManager.StoredMessage> getMessagesAfter(UUID uuid, long afterId, int limit) throws SQLException {
+        return withConnection(s -> page(s, uuid, afterId, limit));
+    }
+
+    private List<DatabaseManager.StoredMessage> page(Slot s, UUID uuid, long afterId, int limit) throws SQLException {
+        PreparedStatement ps = s.prepare("SELECT id, role, content, created_at FROM " + messages + " WHERE player_uuid = ? AND id > ? ORDER BY id LIMIT ?");
+        ps.setString(1, uuid.toString());
+        ps.setLong(2, afterId);
+        ps.setInt(3, Math.max(1, limit));
+        return readMessages(ps);
+    }
+
+    private static List<DatabaseManager.StoredMessage> readMessages(PreparedStatement ps) throws SQLException {
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4)));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Not cached per connection: the IN list changes length from call to call.
+     */
+    @Override
+    public List<DatabaseManager.StoredMessage> getMessages(UUID uuid, List<Long> ids) throws SQLException {
+        if (ids.isEmpty()) return new ArrayList<>();
+        return withConnection(s -> {
+            try (PreparedStatement ps = s.conn.prepareStatement("SELECT id, role, content, created_at FROM " + messages + " WHERE player_uuid = ? AND id IN ("
+                    + PlayerFileStore.placeholders(ids.size()) + ") ORDER BY id")) {
+                ps.setString(1, uuid.toString());
+                for (int i = 0; i < ids.size(); i++) ps.setLong(i + 2, ids.get(i));
+                return readMessages(ps);
+            }
+        });
+    }
+
+    /**
+     * Each page is read on a pooled connection that goes back before the visitor sees the rows,
+     * so a slow visitor (e.g. a file export) never holds a connection.
+     */
+    @Override
+    public long streamMessages(UUID uuid, long afterId, int pageSize, DatabaseManager.MessageVisitor visitor) throws SQLException, IOException {
+        int n = Math.max(1, pageSize);
+        long count = 0;
+        long last = afterId;
+        while (true) {
+            long after = last;
+            List<DatabaseManager.StoredMessage> rows = withConnection(s -> page(s, uuid, after, n));
+            for (DatabaseManager.StoredMessage m : rows) {
+                visitor.visit(m.id, m);
+                last = m.id;
+            }
+            count += rows.size();
+            if (rows.size() < n) return count;
+        }
+    }
+
+    @Override
+    public long idBeforeLatest(UUID uuid, int count) throws SQLException {
+        return withConnection(s -> {
+            PreparedStatement ps = s.prepare("SELECT id FROM " + messages + " WHERE player_uuid = ? ORDER BY id DESC LIMIT 1 OFFSET ?");
+            ps.setString(1, uuid.toString());
+            ps.setInt(2, Math.max(0, count - 1));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) - 1 : 0L;
+            }
+        });
+    }
+
+    @Override
+    public DatabaseManager.Summary getSummary(UUID uuid) throws SQLException {
+        return withConnection(s -> {
+            PreparedStatement ps = s.prepare("SELECT content, last_message_id, updated_at FROM " + summaries + " WHERE player_uuid = ?");
+            ps.setString(1, uuid.toString());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new DatabaseManager.Summary(rs.getString(1), rs.getLong(2), rs.getLong(3)) : null;
+            }
+        });
+    }
+
+    /**
+     * Update, or insert when there is no row yet (there is no upsert syntax every database shares).
+     */
+    @Override
+    public void saveSummary(UUID uuid, DatabaseManager.Summary summary) throws SQLException {
+        withConnection(s -> {
+            PreparedStatement update = s.prepare("UPDATE " + summaries + " SET content = ?, last_message_id = ?, updated_at = ? WHERE player_uuid = ?");
+            update.setString(1, summary.content);
+            update.setLong(2, summary.lastMessageId);
+            update.setLong(3, summary.updatedAt);
+            update.setString(4, uuid.toString());
+            if (update.executeUpdate() > 0) return null;
+            PreparedStatement insert = s.prepare("INSERT INTO " + summaries + " (player_uuid, content, last_message_id, updated_at) VALUES (?, ?, ?, ?)");
+            insert.setString(1, uuid.toString());
+            insert.setString(2, summary.content);
+            insert.setLong(3, summary.lastMessageId);
+            insert.setLong(4, summary.updatedAt);
+            insert.executeUpdate();
+            return null;
+        });
+    }
+
+    @Override
+    public boolean clearConversation(UUID uuid) throws SQLException {
+        return withConnection(s -> {
+            s.conn.setAutoCommit(false);
+            try {
+                PreparedStatement ps = s.prepare("DELETE FROM " + messages + " WHERE player_uuid = ?");
+                ps.setString(1, uuid.toString());
+                ps.executeUpdate();
+                ps = s.prepare("DELETE FROM " + summaries + " WHERE player_uuid = ?");
+                ps.setString(1, uuid.toString());
+                ps.executeUpdate();
+                s.conn.commit();
+                return true;
+            } catch (SQLException ex) {
+                s.conn.rollback();
+                throw ex;
+            } finally {
+                s.conn.setAutoCommit(true);
+            }
+        });
+    }
+
+    @Override
+    public List<UUID> players() throws SQLException {
+        return withConnection(s -> {
+            List<UUID> out = new ArrayList<>();
+            try (Statement st = s.conn.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT DISTINCT player_uuid FROM " + messages)) {
+                while (rs.next()) {
+                    try {
+                        out.add(UUID.fromString(rs.getString(1)));
+                    } catch (IllegalArgumentException ignore) {}
+                }
+            }
+            return out;
+        });
+    }
+
+    /**
+     * Every page and delete borrows a connection of its own. The database server reclaims the space itself.
+     */
+    @Override
+    public long expire(UUID uuid, long cutoffEpochSeconds, int keepLatest, int batch, long pauseMillis, MessageArchive archive, BooleanSupplier stop)
+            throws SQLException, IOException, InterruptedException {
+        String player = uuid.toString();
+        long upTo = withConnection(s -> RetentionJob.expiryBoundary(s.conn, messages, player, cutoffEpochSeconds, keepLatest));
+        return RetentionJob.expireBatches(uuid, upTo, pauseMillis, archive, stop,
+                after -> withConnection(s -> RetentionJob.page(s.conn, messages, player, after, upTo, batch, null)),
+                last -> withConnection(s -> RetentionJob.deleteUpTo(s.conn, messages, player, last)));
+    }
+
+    @Override
+    public boolean isSearchable() {
+        return true;
+    }
+
+    /**
+     * Messages containing every word (case-insensitive), newest first. Snippets are cut around the
+     * first match here rather than by the database.
+     */
+    @Override
+    public List<DatabaseManager.SearchHit> search(UUID uuid, String terms, int offset, int limit, String highlightStart, String highlightEnd) throws SQLException {
+        List<String> words = new ArrayList<>();
+        for (String w : SearchIndex.words(terms)) words.add(w.toLowerCase(Locale.ROOT));
+        if (words.isEmpty()) return new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT id, role, created_at, content FROM " + messages + " WHERE player_uuid = ?");
+        for (int i = 0; i < words.size(); i++) sql.append(" AND LOWER(content) LIKE ? ESCAPE '!'");
+        sql.append(" ORDER BY id DESC LIMIT ? OFFSET ?");
+        return withConnection(s -> {
+            PreparedStatement ps = s.prepare(sql.toString());
+            int i = 1;
+            ps.setString(i++, uuid.toString());
+            for (String w : words) {
+                ps.setString(i++, "%" + w.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%");
+            }
+            ps.setInt(i++, limit + 1);
+            ps.setInt(i, Math.max(0, offset));
+            List<DatabaseManager.SearchHit> out = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new DatabaseManager.SearchHit(rs.getLong(1), rs.getString(2), rs.getLong(3),
+                            snippet(rs.getString(4), words, highlightStart, highlightEnd)));
+                }
+            }
+            return out;
+        });
+    }
+
+    /**
+     * The part of 'content' around the first matched word, cut at spaces, with every occurrence of
+     * the (lower-case) words wrapped in the highlight markers.
+     */
+    static String snippet(String content, List<String> words, String highlightStart, String highlightEnd) {
+        String lower = content.toLowerCase(Locale.ROOT);
+        // toLowerCase can change the length of some scripts; fall back to no highlighting then
+        boolean aligned = lower.length() == content.length();
+        int first = -1;
+        if (aligned) {
+            for (String w : words) {
+                int at = lower.indexOf(w);
+                if (at >= 0 && (first < 0 || at < first)) first = at;
+            }
+        }
+        int from = Math.max(0, first - SNIPPET_BEFORE);
+        int to = Math.min(content.length(), Math.max(first, 0) + SNIPPET_AFTER);
+        if (from > 0) {
+            int space = content.indexOf(' ', from);
+            if (space >= 0 && space < Math.max(first, from + 1)) from = space + 1;
+        }
+        if (to < content.length()) {
+            int space = content.lastIndexOf(' ', to);
+            if (space > Math.max(first, from)) to = space;
+        }
+
+        StringBuilder out = new StringBuilder();
+        if (from > 0) out.append("...");
+        int i = from;
+        while (i < to) {
+            String hit = null;
+            if (aligned) {
+                for (String w : words) {
+                    if (lower.startsWith(w, i) && (hit == null || w.length() > hit.length())) hit = w;
+                }
+            }
+            if (hit != null) {
+                int end = Math.min(to, i + hit.length());
+                out.append(highlightStart).append(content, i, end).append(highlightEnd);
+                i = end;
+            } else {
+                out.append(content.charAt(i++));
+            }
+        }
+        if (to < content.length()) out.append("...");
+        return out.toString();
+    }
+
+    @Override
+    public void close() {
+        // called after DatabaseManager's executor has stopped, so no slot is in use
+        for (Slot s : allSlots) s.close();
+    }
+}
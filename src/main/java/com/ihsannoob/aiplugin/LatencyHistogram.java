@@ -0,0 +1,100 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets over microseconds.
+ * Every power of two is split into 16 sub-buckets, so any recorded value is reported within ~6%,
+ * from 1µs up to far beyond any realistic timeout, in a fixed 8 KB of counters.
+ * Recording is a couple of atomic adds; percentiles are computed from a {@link Snapshot}.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB;
+
+    /** Point-in-time copy of a histogram; percentiles from one snapshot are consistent with each other. */
+    public static final class Snapshot {
+        public final long count;
+        public final long sumMicros;
+        public final long maxMicros;
+        private final long[] counts;
+
+        Snapshot(long count, long sumMicros, long maxMicros, long[] counts) {
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+            this.counts = counts;
+        }
+
+        /** Value at quantile q (0..1) in microseconds, or 0 when empty. */
+        public long percentile(double q) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    // middle of the bucket, never above the largest value actually seen
+                    long mid = (lowerBound(i) + lowerBound(i + 1) - 1) / 2;
+                    return Math.min(mid, maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        public double meanMicros() {
+            return count == 0 ? 0 : (double) sumMicros / count;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000L);
+    }
+
+    public void recordMicros(long micros) {
+        long v = Math.max(0, micros);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sumMicros.add(v);
+        long max;
+        while (v > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, v)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        return new Snapshot(count.sum(), sumMicros.sum(), maxMicros.get(), copy);
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exp - SUB_BITS;
+        int sub = (int) (v >>> shift) - SUB;
+        return (shift + 1) * SUB + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB) return index;
+        int shift = index / SUB - 1;
+        int sub = index % SUB;
+        return (long) (SUB + sub) << shift;
+    }
+}
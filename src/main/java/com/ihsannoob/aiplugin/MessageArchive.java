@@ -0,0 +1,142 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only cold storage for messages removed by the retention job: archive/<uuid>.ndjson.gz.
+ *
+ * Each append is one complete gzip member holding NDJSON lines (id, role, content, createdAt), and
+ * members are simply concatenated, so the file is a valid .gz that zcat or GZIPInputStream reads
+ * in one go. An append is synced to disk before it returns; a failed append is cut off again so
+ * earlier members stay readable.
+ */
+public class MessageArchive {
+
+    private final File folder;
+
+    public MessageArchive(File folder) {
+        this.folder = folder;
+    }
+
+    public File file(UUID uuid) {
+        return new File(folder, uuid + ".ndjson.gz");
+    }
+
+    public boolean exists(UUID uuid) {
+        return file(uuid).isFile();
+    }
+
+    /**
+     * Append messages (oldest first) as one gzip member. Returns the compressed size written.
+     */
+    public synchronized long append(UUID uuid, List<DatabaseManager.StoredMessage> messages) throws IOException {
+        if (messages.isEmpty()) return 0;
+        // compress in memory first, so the file only ever sees whole members
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (Writer w = new OutputStreamWriter(new GZIPOutputStream(buf, 16 * 1024), StandardCharsets.UTF_8)) {
+            for (DatabaseManager.StoredMessage m : messages) {
+                JsonWriter jw = new JsonWriter(w);
+                jw.beginObject();
+                jw.name("id").value(m.id);
+                jw.name("role").value(m.role);
+                jw.name("content").value(m.content);
+                jw.name("createdAt").value(m.createdAt);
+                jw.endObject();
+                jw.flush();
+                w.write('\n');
+            }
+        }
+
+        if (!folder.exists()) folder.mkdirs();
+        File f = file(uuid);
+        try (FileOutputStream out = new FileOutputStream(f, true)) {
+            long before = out.getChannel().size();
+            try {
+                buf.writeTo(out);
+                out.getFD().sync();
+            } catch (IOException ex) {
+                out.getChannel().truncate(before);
+                throw ex;
+            }
+        }
+        return buf.size();
+    }
+
+    /**
+     * Visit every archived message of a player, oldest first. Returns the number visited.
+     */
+    public long read(UUID uuid, DatabaseManager.MessageVisitor visitor) throws IOException {
+        File f = file(uuid);
+        if (!f.isFile()) return 0;
+        long n = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024), 64 * 1024), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isBlank()) continue;
+                DatabaseManager.StoredMessage m = parse(line);
+                visitor.visit(m.id, m);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public synchronized boolean delete(UUID uuid) {
+        File f = file(uuid);
+        return !f.exists() || f.delete();
+    }
+
+    private static DatabaseManager.StoredMessage parse(String line) throws IOException {
+        long id = 0;
+        long createdAt = 0;
+        String role = "";
+        String content = "";
+        try (JsonReader jr = new JsonReader(new StringReader(line))) {
+            jr.beginObject();
+            while (jr.hasNext()) {
+                String name = jr.nextName();
+                if (jr.peek() == JsonToken.NULL) {
+                    jr.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        id = jr.nextLong();
+                        break;
+                    case "role":
+                        role = jr.nextString();
+                        break;
+                    case "content":
+                        content = jr.nextString();
+                        break;
+                    case "createdAt":
+                        createdAt = jr.nextLong();
+                        break;
+                    default:
+                        jr.skipValue();
+                }
+            }
+        }
+        return new DatabaseManager.StoredMessage(id, role, content, createdAt);
+    }
+}
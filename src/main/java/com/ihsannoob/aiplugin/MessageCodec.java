@@ -0,0 +1,232 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed message bodies: zlib streams with a preset dictionary trained on stored history.
+ *
+ * A compressed row keeps its content as a BLOB, a plain row as TEXT, so both live in the same
+ * column and every reader goes through {@link #read}. The zlib header names the dictionary by its
+ * Adler-32, which is also its file name under dictionaries/, so rows written with an older
+ * dictionary stay readable after a new one is installed. Dictionaries are never deleted.
+ */
+public class MessageCodec {
+
+    // k-mer and segment sizes used by train(); ~32-byte phrases are what chat replies repeat
+    private static final int KMER = 8;
+    private static final int SEGMENT = 48;
+    private static final int TABLE_BITS = 20;
+
+    private final File folder;
+    private final Logger logger;
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private volatile byte[] current;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /** Loads the dictionaries in 'folder'; the most recently written one is used for new rows. */
+    public MessageCodec(File folder, Logger logger) {
+        this.folder = folder;
+        this.logger = logger;
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".dict"));
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            try {
+                byte[] dict = Files.readAllBytes(f.toPath());
+                dictionaries.put(id(dict), dict);
+                current = dict;
+            } catch (IOException ex) {
+                logger.warning("Could not read compression dictionary " + f.getName() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    public boolean hasDictionary() {
+        return current != null;
+    }
+
+    /** Size in bytes of the dictionary used for new rows, 0 when none. */
+    public int getDictionarySize() {
+        byte[] d = current;
+        return d == null ? 0 : d.length;
+    }
+
+    /**
+     * Save a dictionary and use it for rows compressed from now on.
+     */
+    public synchronized void install(byte[] dictionary) throws IOException {
+        int id = id(dictionary);
+        if (!folder.exists()) folder.mkdirs();
+        File f = new File(folder, String.format("%08x.dict", id));
+        File tmp = new File(folder, f.getName() + ".tmp");
+        Files.write(tmp.toPath(), dictionary);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dictionaries.put(id, dictionary);
+        current = dictionary;
+    }
+
+    /**
+     * The compressed form of 'text', or null when there is no dictionary yet or it would not be smaller.
+     */
+    public byte[] compress(String text) {
+        byte[] dict = current;
+        if (dict == null) return null;
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        Deflater d = deflaters.get();
+        d.reset();
+        d.setDictionary(dict);
+        d.setInput(raw);
+        d.finish();
+        // anything not smaller than the text is useless, so the buffer never has to grow
+        byte[] out = new byte[raw.length];
+        int n = 0;
+        while (!d.finished() && n < out.length) {
+            n += d.deflate(out, n, out.length - n);
+        }
+        return d.finished() && n < raw.length ? Arrays.copyOf(out, n) : null;
+    }
+
+    /** Message text from a content column holding either plain TEXT or a compressed BLOB. */
+    public String read(ResultSet rs, int column) throws SQLException {
+        return decode(rs.getObject(column));
+    }
+
+    public String decode(Object value) throws SQLException {
+        if (value == null) return null;
+        if (!(value instanceof byte[])) return value.toString();
+        byte[] data = (byte[]) value;
+        Inflater inf = inflaters.get();
+        inf.reset();
+        inf.setInput(data);
+        byte[] out = new byte[Math.max(64, data.length * 4)];
+        int n = 0;
+        try {
+            while (!inf.finished()) {
+                if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+                int got = inf.inflate(out, n, out.length - n);
+                n += got;
+                if (got > 0) continue;
+                if (inf.needsDictionary()) {
+                    byte[] dict = dictionaries.get(inf.getAdler());
+                    if (dict == null) throw new SQLException(String.format("compression dictionary %08x is missing", inf.getAdler()));
+                    inf.setDictionary(dict);
+                } else if (inf.needsInput()) {
+                    throw new SQLException("truncated compressed message");
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new SQLException("corrupt compressed message: " + ex.getMessage(), ex);
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /** Dictionary id as written in zlib headers. */
+    static int id(byte[] dictionary) {
+        Adler32 a = new Adler32();
+        a.update(dictionary);
+        return (int) a.getValue();
+    }
+
+    /**
+     * Build a dictionary of at most 'size' bytes from sample messages: the segments whose 8-byte
+     * pieces occur in the most different samples, picked greedily so each new segment adds pieces
+     * not covered yet. The best segments go last, where deflate reaches them with the shortest distances.
+     */
+    static byte[] train(List<String> samples, int size) {
+        int mask = (1 << TABLE_BITS) - 1;
+        // in how many samples each (hashed) k-mer occurs
+        int[] frequency = new int[1 << TABLE_BITS];
+        int[] lastSample = new int[1 << TABLE_BITS];
+        List<byte[]> texts = new ArrayList<>(samples.size());
+        for (String s : samples) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            if (b.length < KMER) continue;
+            texts.add(b);
+            int sample = texts.size();
+            for (int i = 0; i + KMER <= b.length; i++) {
+                int h = hash(b, i) & mask;
+                if (lastSample[h] != sample) {
+                    lastSample[h] = sample;
+                    frequency[h]++;
+                }
+            }
+        }
+
+        boolean[] covered = new boolean[1 << TABLE_BITS];
+        PriorityQueue<long[]> candidates = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (int t = 0; t < texts.size(); t++) {
+            byte[] b = texts.get(t);
+            for (int start = 0; start + KMER <= b.length; start += SEGMENT / 2) {
+                int len = Math.min(SEGMENT, b.length - start);
+                long score = score(b, start, len, frequency, covered, mask);
+                if (score > 0) candidates.add(new long[]{score, t, start, len});
+            }
+        }
+
+        // lazy greedy: a popped segment's score is only recomputed when it is about to be taken
+        List<byte[]> picked = new ArrayList<>();
+        int total = 0;
+        while (total < size && !candidates.isEmpty()) {
+            long[] c = candidates.poll();
+            byte[] b = texts.get((int) c[1]);
+            int start = (int) c[2];
+            int len = (int) c[3];
+            long score = score(b, start, len, frequency, covered, mask);
+            if (score <= 0) continue;
+            if (!candidates.isEmpty() && score < candidates.peek()[0]) {
+                c[0] = score;
+                candidates.add(c);
+                continue;
+            }
+            for (int i = start; i + KMER <= start + len; i++) covered[hash(b, i) & mask] = true;
+            len = Math.min(len, size - total);
+            picked.add(Arrays.copyOfRange(b, start, start + len));
+            total += len;
+        }
+
+        Collections.reverse(picked);
+        byte[] dict = new byte[total];
+        int at = 0;
+        for (byte[] p : picked) {
+            System.arraycopy(p, 0, dict, at, p.length);
+            at += p.length;
+        }
+        return dict;
+    }
+
+    // k-mers seen in only one sample are worth nothing to the others
+    private static long score(byte[] b, int start, int len, int[] frequency, boolean[] covered, int mask) {
+        long score = 0;
+        for (int i = start; i + KMER <= start + len; i++) {
+            int h = hash(b, i) & mask;
+            if (!covered[h]) score += frequency[h] - 1;
+        }
+        return score;
+    }
+
+    private static int hash(byte[] b, int at) {
+        long v = 0;
+        for (int i = 0; i < KMER; i++) v = (v << 8) | (b[at + i] & 0xff);
+        v *= 0x9E3779B97F4A7C15L;
+        return (int) (v >>> 32);
+    }
+}
@@ -0,0 +1,174 @@
+package com.ihsannoob.aiplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chat output to players (AI replies, streamed segments, history text), sent from one main-thread
+ * task within a per-tick budget of lines and time.
+ *
+ * Any thread may queue text. It is wrapped at word boundaries and sent in queue order; whatever
+ * doesn't fit in a tick waits for the next, so a burst of replies finishing together spreads over a
+ * few ticks instead of landing in one. Text for a player who has left is dropped.
+ */
+public class MessageDispatcher {
+
+    private static final class Outbound {
+        final UUID uuid;
+        final List<String> lines;
+        final long queuedAt;
+        int next;
+
+        Outbound(UUID uuid, List<String> lines) {
+            this.uuid = uuid;
+            this.lines = lines;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final Plugin plugin;
+    private final Metrics metrics;
+    private final ConcurrentLinkedQueue<Outbound> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedLines = new AtomicInteger();
+    private volatile int linesPerTick = 20;
+    private volatile long budgetNanos = 2_000_000L;
+    private volatile int wrapWidth = 256;
+    private BukkitTask task;
+
+    public MessageDispatcher(Plugin plugin, Metrics metrics) {
+        this.plugin = plugin;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param linesPerTick  most chat lines sent per tick
+     * @param budgetMicros  main-thread time per tick after which the rest waits (at least one line is always sent)
+     * @param wrapWidth     longest line, in characters
+     */
+    public void configure(int linesPerTick, long budgetMicros, int wrapWidth) {
+        this.linesPerTick = Math.max(1, linesPerTick);
+        this.budgetNanos = Math.max(0, budgetMicros) * 1000L;
+        this.wrapWidth = Math.max(16, wrapWidth);
+    }
+
+    public void start() {
+        if (task == null) task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    /**
+     * Stop the task and send what is still queued right away (main thread, e.g. on disable).
+     */
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        drain(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public void send(Player player, String text) {
+        send(player.getUniqueId(), text);
+    }
+
+    /** Queue text for a player; callable from any thread. */
+    public void send(UUID uuid, String text) {
+        List<String> lines = wrap(text, wrapWidth);
+        if (lines.isEmpty()) return;
+        queuedLines.addAndGet(lines.size());
+        queue.add(new Outbound(uuid, lines));
+    }
+
+    /** Lines waiting to be sent. */
+    public int getQueued() {
+        return queuedLines.get();
+    }
+
+    private void tick() {
+        if (queue.isEmpty()) return;
+        drain(linesPerTick, budgetNanos);
+    }
+
+    private void drain(int maxLines, long maxNanos) {
+        long start = System.nanoTime();
+        int sent = 0;
+        Outbound o;
+        while ((o = queue.peek()) != null) {
+            if (sent > 0 && (sent >= maxLines || System.nanoTime() - start >= maxNanos)) return;
+            Player player = Bukkit.getPlayer(o.uuid);
+            if (player == null || !player.isOnline()) {
+                queue.poll();
+                queuedLines.addAndGet(o.next - o.lines.size());
+                metrics.add("dispatch_dropped_lines_total", o.lines.size() - o.next);
+                continue;
+            }
+            if (o.next == 0) metrics.record(Metrics.DISPATCH_LAG, o.queuedAt);
+            player.sendMessage(o.lines.get(o.next++));
+            queuedLines.decrementAndGet();
+            sent++;
+            if (o.next == o.lines.size()) queue.poll();
+        }
+    }
+
+    /**
+     * Split text into lines of at most 'width' characters: at newlines, then at the last space that
+     * fits (words longer than a line are cut). Colour and format codes still in effect are repeated at
+     * the start of each continuation line, since every chat line starts unformatted.
+     */
+    static List<String> wrap(String text, int width) {
+        List<String> out = new ArrayList<>();
+        // trailing newlines don't need empty lines of their own
+        String body = text.stripTrailing();
+        if (body.isEmpty()) return out;
+        String carry = "";
+        for (String paragraph : body.split("\n", -1)) {
+            String rest = carry + paragraph;
+            while (true) {
+                if (rest.length() <= width) {
+                    out.add(rest);
+                    break;
+                }
+                int cut = rest.lastIndexOf(' ', width);
+                if (cut <= carry.length()) cut = width;
+                // never split a colour code from its character, unless the line would then hold nothing new
+                if (rest.charAt(cut - 1) == '§' && cut - 1 > carry.length()) cut--;
+                // every line takes at least one character past the repeated codes, or this never ends
+                cut = Math.max(cut, carry.length() + 1);
+                String line = rest.substring(0, cut);
+                out.add(line);
+                carry = lastFormat(line);
+                int from = cut < rest.length() && rest.charAt(cut) == ' ' ? cut + 1 : cut;
+                rest = carry + rest.substring(from);
+            }
+            carry = lastFormat(rest);
+        }
+        return out;
+    }
+
+    // the colour plus formats in effect at the end of 'line'; a colour or §r resets the formats
+    private static String lastFormat(String s) {
+        String color = "";
+        StringBuilder formats = new StringBuilder();
+        for (int i = 0; i + 1 < s.length(); i++) {
+            if (s.charAt(i) != '§') continue;
+            char c = Character.toLowerCase(s.charAt(++i));
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')) {
+                color = "§" + c;
+                formats.setLength(0);
+            } else if (c == 'r') {
+                color = "";
+                formats.setLength(0);
+            } else if (c >= 'k' && c <= 'o') {
+                formats.append('§').append(c);
+            }
+        }
+        return color + formats;
+    }
+}
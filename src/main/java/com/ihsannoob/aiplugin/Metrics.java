@@ -0,0 +1,141 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms per chat-pipeline stage plus plain counters.
+ * Cheap enough to leave on: a record is a nanoTime() and a few atomic adds.
+ * Counters with a label are stored under their full series name, e.g. http_errors_total{status="429"}.
+ */
+public class Metrics {
+
+    // stages of one /ai chat turn, in pipeline order
+    public static final String QUEUE_WAIT = "queue_wait";
+    public static final String DB_READ = "db_get_conversation";
+    public static final String DB_WRITE = "db_add_message";
+    public static final String HTTP = "http_request";
+    public static final String FIRST_TOKEN = "time_to_first_token";
+    public static final String PARSE = "parse_response";
+    // from queueing the output until its first line reaches the player, see MessageDispatcher
+    public static final String DISPATCH_LAG = "dispatch_lag";
+    public static final String CHAT = "chat_total";
+    public static final String DB_CLEAR = "db_clear";
+    public static final String DB_SEARCH = "db_search";
+
+    public static final String CHAT_REQUESTS = "chat_requests_total";
+    public static final String CHAT_ERRORS = "chat_errors_total";
+    public static final String HTTP_REQUESTS = "http_requests_total";
+    public static final String HTTP_BYTES_SENT = "http_bytes_sent_total";
+    public static final String HTTP_BYTES_RECEIVED = "http_bytes_received_total";
+    public static final String HTTP_ERRORS = "http_errors_total";
+
+    private static final String PREFIX = "aicerebras_";
+
+    private final ConcurrentHashMap<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public LatencyHistogram stage(String name) {
+        return stages.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /** Record the time elapsed since startNanos (a System.nanoTime() value) for a stage. */
+    public void record(String stage, long startNanos) {
+        stage(stage).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long n) {
+        counters.computeIfAbsent(counter, c -> new LongAdder()).add(n);
+    }
+
+    public static String labelled(String counter, String label, String value) {
+        return counter + "{" + label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    /** Stage snapshots sorted by name. */
+    public Map<String, LatencyHistogram.Snapshot> snapshotStages() {
+        Map<String, LatencyHistogram.Snapshot> out = new TreeMap<>();
+        stages.forEach((name, h) -> out.put(name, h.snapshot()));
+        return out;
+    }
+
+    /** Counter values sorted by series name. */
+    public Map<String, Long> snapshotCounters() {
+        Map<String, Long> out = new TreeMap<>();
+        counters.forEach((name, c) -> out.put(name, c.sum()));
+        return out;
+    }
+
+    /**
+     * Prometheus text exposition format. Stages are summaries in seconds with 0.5/0.95/0.99 quantiles.
+     */
+    public void writePrometheus(Writer w) throws IOException {
+        String metric = PREFIX + "stage_latency_seconds";
+        w.write("# HELP " + metric + " Latency of each /ai chat pipeline stage.\n");
+        w.write("# TYPE " + metric + " summary\n");
+        for (Map.Entry<String, LatencyHistogram.Snapshot> e : snapshotStages().entrySet()) {
+            LatencyHistogram.Snapshot s = e.getValue();
+            String stage = "stage=\"" + e.getKey() + "\"";
+            for (double q : new double[]{0.5, 0.95, 0.99}) {
+                w.write(metric + "{" + stage + ",quantile=\"" + q + "\"} " + seconds(s.percentile(q)) + "\n");
+            }
+            w.write(metric + "_sum{" + stage + "} " + seconds(s.sumMicros) + "\n");
+            w.write(metric + "_count{" + stage + "} " + s.count + "\n");
+        }
+
+        String lastBase = null;
+        for (Map.Entry<String, Long> e : snapshotCounters().entrySet()) {
+            String series = e.getKey();
+            int brace = series.indexOf('{');
+            String base = brace < 0 ? series : series.substring(0, brace);
+            if (!base.equals(lastBase)) {
+                w.write("# TYPE " + PREFIX + base + " counter\n");
+                lastBase = base;
+            }
+            w.write(PREFIX + series + " " + e.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Write the Prometheus text to 'file' through a temp file, so a scraper never reads half of it.
+     */
+    public void writePrometheus(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            writePrometheus(w);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** UTF-8 encoded size of a string, without encoding it. */
+    public static long utf8Length(CharSequence s) {
+        long n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else n += 3;
+        }
+        return n;
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+}
@@ -0,0 +1,559 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * One SQLite file per player: <pluginFolder>/players/<uuid>.db
+ * Tables: messages(id, role, content, created_at), summary (single row), plus the search index.
+ * A player's connection is opened on first use and kept in a {@link ConnectionCache}: closed when too many
+ * files are open, after it has been idle a while, when the player quits or the history is cleared.
+ * Message content is TEXT, or a BLOB once {@link #compress} has converted it (see {@link MessageCodec}).
+ * Every use of a cached connection synchronizes on it: background jobs run manual transactions on it
+ * (e.g. the search backfill), and a chat statement must never land inside one of them.
+ */
+public class PlayerFileStore implements ConversationStore {
+
+    private final File baseFolder;
+    private final Logger logger;
+    private final MessageCodec codec;
+    private final ConnectionCache connections;
+    // told about files whose search index was just created and still has older rows to index
+    private final Consumer<UUID> backfillNeeded;
+    private final Set<UUID> needsBackfill = ConcurrentHashMap.newKeySet();
+    // set when the SQLite build turns out to have no FTS5
+    private volatile boolean searchUnavailable;
+
+    public PlayerFileStore(File baseFolder, Logger logger, MessageCodec codec, Consumer<UUID> backfillNeeded) {
+        this.baseFolder = baseFolder;
+        if (!baseFolder.exists()) baseFolder.mkdirs();
+        this.logger = logger;
+        this.codec = codec;
+        this.backfillNeeded = backfillNeeded;
+        this.connections = new ConnectionCache(this::open, logger);
+    }
+
+    /**
+     * @param maxOpen    player files kept open at most
+     * @param idleMillis files unused this long are closed, 0 = never
+     */
+    public void configureConnections(int maxOpen, long idleMillis, Metrics metrics) {
+        connections.configure(maxOpen, idleMillis, metrics);
+    }
+
+    /** Player files open right now. */
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    private File dbFile(UUID uuid) {
+        return new File(baseFolder, uuid.toString() + ".db");
+    }
+
+    // the player's connection, opened on first use; null (logged) when the file can't be opened
+    private ConnectionCache.Lease lease(UUID uuid) {
+        ConnectionCache.Lease lease;
+        try {
+            lease = connections.acquire(uuid);
+        } catch (SQLException ex) {
+            logger.severe("Failed to open DB for " + uuid + ": " + ex.getMessage());
+            return null;
+        }
+        // reported only once the connection is in the cache, where the backfill looks it up
+        if (needsBackfill.remove(uuid)) backfillNeeded.accept(uuid);
+        return lease;
+    }
+
+    private Connection open(UUID uuid) throws SQLException {
+        File f = dbFile(uuid);
+        String url = "jdbc:sqlite:" + f.getAbsolutePath();
+        Connection conn = DriverManager.getConnection(url);
+        conn.setAutoCommit(true);
+        // ensure table exists
+        try (Statement st = conn.createStatement()) {
+            // the retention job may hold a second connection to this file for a moment
+            st.executeUpdate("PRAGMA busy_timeout=5000");
+            // only takes effect while the file is new; lets retention hand freed pages back
+            st.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS messages (id INTEGER PRIMARY KEY AUTOINCREMENT, role TEXT NOT NULL, content TEXT NOT NULL, created_at INTEGER NOT NULL)");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS summary (id INTEGER PRIMARY KEY CHECK (id = 1), content TEXT NOT NULL, last_message_id INTEGER NOT NULL, updated_at INTEGER NOT NULL)");
+        } catch (SQLException e) {
+            logger.severe("Failed to create messages table: " + e.getMessage());
+        }
+        openSearchIndex(uuid, conn);
+        return conn;
+    }
+
+    private void openSearchIndex(UUID uuid, Connection conn) {
+        if (searchUnavailable) return;
+        try {
+            if (!SearchIndex.install(conn, logger)) {
+                searchUnavailable = true;
+                return;
+            }
+            long[] state = SearchIndex.state(conn);
+            if (state[0] < state[1]) needsBackfill.add(uuid);
+        } catch (SQLException ex) {
+            logger.warning("Failed to open search index for " + uuid + ": " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public void addMessage(UUID uuid, String role, String content, long createdAt) throws SQLException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) throw new SQLException("database of " + uuid + " is not available");
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("INSERT INTO messages (role, content, created_at) VALUES (?, ?, ?)")) {
+                    ps.setString(1, role);
+                    ps.setString(2, content);
+                    ps.setLong(3, createdAt);
+                    ps.executeUpdate();
+                }
+            }
+        }
+    }
+
+    /**
+     * One transaction per player file.
+     */
+    @Override
+    public void addMessages(List<WriteBehindQueue.PendingMessage> batch) throws SQLException {
+        Map<UUID, List<WriteBehindQueue.PendingMessage>> byPlayer = new LinkedHashMap<>();
+        for (WriteBehindQueue.PendingMessage m : batch) {
+            byPlayer.computeIfAbsent(m.uuid, u -> new ArrayList<>()).add(m);
+        }
+        SQLException first = null;
+        for (Map.Entry<UUID, List<WriteBehindQueue.PendingMessage>> e : byPlayer.entrySet()) {
+            try (ConnectionCache.Lease lease = lease(e.getKey())) {
+                if (lease == null) continue;
+                Connection conn = lease.conn;
+                synchronized (conn) {
+                    conn.setAutoCommit(false);
+                    try (PreparedStatement ps = conn.prepareStatement("INSERT INTO messages (role, content, created_at) VALUES (?, ?, ?)")) {
+                        for (WriteBehindQueue.PendingMessage m : e.getValue()) {
+                            ps.setString(1, m.role);
+                            ps.setString(2, m.content);
+                            ps.setLong(3, m.createdAt);
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                        conn.commit();
+                    } catch (SQLException ex) {
+                        conn.rollback();
+                        logger.severe("Failed to write batch for " + e.getKey() + ": " + ex.getMessage());
+                        if (first == null) first = ex;
+                    } finally {
+                        conn.setAutoCommit(true);
+                    }
+                }
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    @Override
+    public List<DatabaseManager.StoredMessage> getConversation(UUID uuid, int limit) throws SQLException {
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return out;
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT id, role, content, created_at FROM messages ORDER BY id DESC LIMIT ?")) {
+                    ps.setInt(1, Math.max(1, limit));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            long id = rs.getLong("id");
+                            String role = rs.getString("role");
+                            String content = codec.read(rs, 3);
+                            long created = rs.getLong("created_at");
+                            out.add(new DatabaseManager.StoredMessage(id, role, content, created));
+                        }
+                    }
+                }
+                // current list is newest-first; reverse to chronological
+                Collections.reverse(out);
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public List<DatabaseManager.StoredMessage> getMessagesAfter(UUID uuid, long afterId, int limit) throws SQLException {
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return out;
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT id, role, content, created_at FROM messages WHERE id > ? ORDER BY id LIMIT ?")) {
+                    ps.setLong(1, afterId);
+                    ps.setInt(2, Math.max(1, limit));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), codec.read(rs, 3), rs.getLong(4)));
+                        }
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+    @Override
+    public List<DatabaseManager.StoredMessage> getMessages(UUID uuid, List<Long> ids) throws SQLException {
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        if (ids.isEmpty()) return out;
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return out;
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT id, role, content, created_at FROM messages WHERE id IN (" + placeholders(ids.size()) + ") ORDER BY id")) {
+                    for (int i = 0; i < ids.size(); i++) ps.setLong(i + 1, ids.get(i));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), codec.read(rs, 3), rs.getLong(4)));
+                        }
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+    /** "?, ?, ?" for an IN list of n values. */
+    static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) sb.append(i == 0 ? "?" : ", ?");
+        return sb.toString();
+    }
+
+    @Override
+    public long streamMessages(UUID uuid, long afterId, int pageSize, DatabaseManager.MessageVisitor visitor) throws SQLException, IOException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return 0;
+            Connection conn = lease.conn;
+            long count = 0;
+            long last = afterId;
+            int n = Math.max(1, pageSize);
+            try (PreparedStatement ps = conn.prepareStatement("SELECT id, role, content, created_at FROM messages WHERE id > ? ORDER BY id LIMIT ?")) {
+                while (true) {
+                    ps.setLong(1, last);
+                    ps.setInt(2, n);
+                    int rows = 0;
+                    // a page at a time, so a long export doesn't hold up the player's chat writes
+                    synchronized (conn) {
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                last = rs.getLong(1);
+                                visitor.visit(last, new DatabaseManager.StoredMessage(last, rs.getString(2), codec.read(rs, 3), rs.getLong(4)));
+                                rows++;
+                            }
+                        }
+                    }
+                    count += rows;
+                    if (rows < n) return count;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long idBeforeLatest(UUID uuid, int count) throws SQLException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return 0;
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT id FROM messages ORDER BY id DESC LIMIT 1 OFFSET ?")) {
+                    ps.setInt(1, Math.max(0, count - 1));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return rs.next() ? rs.getLong(1) - 1 : 0;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public DatabaseManager.Summary getSummary(UUID uuid) throws SQLException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return null;
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT content, last_message_id, updated_at FROM summary WHERE id = 1");
+                     ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? new DatabaseManager.Summary(rs.getString(1), rs.getLong(2), rs.getLong(3)) : null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveSummary(UUID uuid, DatabaseManager.Summary summary) throws SQLException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null) return;
+            Connection conn = lease.conn;
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO summary (id, content, last_message_id, updated_at) VALUES (1, ?, ?, ?)")) {
+                    ps.setString(1, summary.content);
+                    ps.setLong(2, summary.lastMessageId);
+                    ps.setLong(3, summary.updatedAt);
+                    ps.executeUpdate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the player's connection and deletes the file.
+     */
+    @Override
+    public boolean clearConversation(UUID uuid) {
+        connections.evict(uuid, "clear");
+        File f = dbFile(uuid);
+        if (f.exists() && !f.delete()) {
+            logger.warning("Failed to delete DB file: " + f.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<UUID> players() {
+        List<UUID> out = new ArrayList<>();
+        File[] files = baseFolder.listFiles((dir, name) -> name.endsWith(".db"));
+        if (files == null) return out;
+        for (File f : files) {
+            try {
+                out.add(UUID.fromString(f.getName().substring(0, f.getName().length() - 3)));
+            } catch (IllegalArgumentException ignore) {}
+        }
+        return out;
+    }
+
+    /**
+     * An open player's connection is shared with chat writes; other files get a short-lived one.
+     * Files are small, so an old file is converted to incremental vacuum with one VACUUM the first time it shrinks.
+     */
+    @Override
+    public long expire(UUID uuid, long cutoffEpochSeconds, int keepLatest, int batch, long pauseMillis, MessageArchive archive, BooleanSupplier stop)
+            throws SQLException, IOException, InterruptedException {
+        File f = dbFile(uuid);
+        if (!f.exists()) return 0;
+        // an open file is leased so it can't be closed under the job
+        ConnectionCache.Lease live = connections.peek(uuid);
+        Connection conn = live != null ? live.conn : openDetached(f);
+        try {
+            long upTo;
+            synchronized (conn) {
+                upTo = RetentionJob.expiryBoundary(conn, "messages", null, cutoffEpochSeconds, keepLatest);
+            }
+            long removed = RetentionJob.expireBatches(uuid, upTo, pauseMillis, archive, stop,
+                    after -> {
+                        synchronized (conn) {
+                            return RetentionJob.page(conn, "messages", null, after, upTo, batch, codec);
+                        }
+                    },
+                    last -> {
+                        synchronized (conn) {
+                            return RetentionJob.deleteUpTo(conn, "messages", null, last);
+                        }
+                    });
+            if (removed > 0) shrink(conn);
+            return removed;
+        } finally {
+            if (live != null) live.close();
+            else conn.close();
+        }
+    }
+
+    // hand free pages back to the file system
+    private static void shrink(Connection conn) throws SQLException {
+        synchronized (conn) {
+            if (RetentionJob.autoVacuumMode(conn) == 2) {
+                RetentionJob.incrementalVacuum(conn, 0);
+            } else {
+                try (Statement st = conn.createStatement()) {
+                    st.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL");
+                    st.executeUpdate("VACUUM");
+                }
+            }
+        }
+    }
+
+    /**
+     * Up to 'limit' of the player's latest message texts, for training a compression dictionary.
+     * Does not keep a connection open for players who are not already open.
+     */
+    public List<String> sample(UUID uuid, int limit) throws SQLException {
+        List<String> out = new ArrayList<>();
+        File f = dbFile(uuid);
+        if (!f.exists()) return out;
+        ConnectionCache.Lease live = connections.peek(uuid);
+        Connection conn = live != null ? live.conn : openDetached(f);
+        try {
+            synchronized (conn) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT content FROM messages ORDER BY id DESC LIMIT ?")) {
+                    ps.setInt(1, Math.max(1, limit));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) out.add(codec.read(rs, 1));
+                    }
+                }
+            }
+        } finally {
+            if (live != null) live.close();
+            else conn.close();
+        }
+        return out;
+    }
+
+    /**
+     * Compress the player's plain messages of at least minChars characters that have not been
+     * looked at yet, 'batch' rows per transaction with pauseMillis in between, then shrink the file.
+     * Progress is kept in codec_state, so rows that did not get smaller are not tried again.
+     * Files whose search index is still being backfilled are skipped: the backfill reads plain text.
+     * Works on a connection of its own, never the player's cached one, so a chat insert can't end up
+     * inside (and be rolled back with) one of its transactions; busy_timeout covers the locking.
+     * Returns {rows compressed, bytes saved}.
+     */
+    public long[] compress(UUID uuid, int minChars, int batch, long pauseMillis, BooleanSupplier stop)
+            throws SQLException, InterruptedException {
+        long[] result = new long[2];
+        File f = dbFile(uuid);
+        if (!f.exists() || !codec.hasDictionary()) return result;
+        Connection conn = openDetached(f);
+        try {
+            long after;
+            if (!SearchIndex.isBackfilled(conn)) return result;
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS codec_state (id INTEGER PRIMARY KEY CHECK (id = 1), compressed_upto INTEGER NOT NULL)");
+                try (ResultSet rs = st.executeQuery("SELECT compressed_upto FROM codec_state WHERE id = 1")) {
+                    after = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+            while (!stop.getAsBoolean()) {
+                int rows = 0;
+                // IMMEDIATE: take the write lock up front instead of upgrading a read lock later,
+                // which can fail at once against the chat connection's insert
+                execute(conn, "BEGIN IMMEDIATE");
+                try (PreparedStatement select = conn.prepareStatement("SELECT id, content FROM messages WHERE id > ? ORDER BY id LIMIT ?");
+                     PreparedStatement update = conn.prepareStatement("UPDATE messages SET content = ? WHERE id = ?");
+                     PreparedStatement progress = conn.prepareStatement("INSERT OR REPLACE INTO codec_state (id, compressed_upto) VALUES (1, ?)")) {
+                    select.setLong(1, after);
+                    select.setInt(2, Math.max(1, batch));
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            rows++;
+                            after = rs.getLong(1);
+                            Object value = rs.getObject(2);
+                            if (!(value instanceof String) || ((String) value).length() < minChars) continue;
+                            String text = (String) value;
+                            byte[] packed = codec.compress(text);
+                            if (packed == null) continue;
+                            update.setBytes(1, packed);
+                            update.setLong(2, after);
+                            update.addBatch();
+                            result[0]++;
+                            result[1] += Metrics.utf8Length(text) - packed.length;
+                        }
+                    }
+                    update.executeBatch();
+                    progress.setLong(1, after);
+                    progress.executeUpdate();
+                    execute(conn, "COMMIT");
+                } catch (SQLException ex) {
+                    try {
+                        execute(conn, "ROLLBACK");
+                    } catch (SQLException rollback) {
+                        // SQLite already rolled back on some errors
+                        ex.addSuppressed(rollback);
+                    }
+                    throw ex;
+                }
+                if (rows < batch) break;
+                if (pauseMillis > 0) Thread.sleep(pauseMillis);
+            }
+            if (result[0] > 0) shrink(conn);
+            return result;
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate(sql);
+        }
+    }
+
+    private Connection openDetached(File f) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + f.getAbsolutePath());
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate("PRAGMA busy_timeout=5000");
+        }
+        return conn;
+    }
+
+    @Override
+    public boolean isSearchable() {
+        return !searchUnavailable;
+    }
+
+    @Override
+    public List<DatabaseManager.SearchHit> search(UUID uuid, String terms, int offset, int limit, String highlightStart, String highlightEnd) throws SQLException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (searchUnavailable) throw new SQLException("full-text search (FTS5) is not available");
+            if (lease == null) return new ArrayList<>();
+            synchronized (lease.conn) {
+                return SearchIndex.search(lease.conn, null, SearchIndex.matchQuery(terms), offset, limit, highlightStart, highlightEnd);
+            }
+        }
+    }
+
+    @Override
+    public boolean isSearchComplete(UUID uuid) throws SQLException {
+        try (ConnectionCache.Lease lease = lease(uuid)) {
+            if (lease == null || searchUnavailable) return true;
+            long[] state;
+            synchronized (lease.conn) {
+                state = SearchIndex.state(lease.conn);
+            }
+            return state[0] >= state[1];
+        }
+    }
+
+    /**
+     * Only for files that are open; a cleared or closed file resumes when it is next opened.
+     */
+    @Override
+    public boolean backfillSearch(UUID uuid, int batch) throws SQLException {
+        try (ConnectionCache.Lease lease = uuid != null ? connections.peek(uuid) : null) {
+            if (lease == null) return true;
+            synchronized (lease.conn) {
+                return SearchIndex.backfill(lease.conn, batch);
+            }
+        }
+    }
+
+    /** Close the file of a player who left; it is opened again on their next use. */
+    @Override
+    public void release(UUID uuid) {
+        connections.evict(uuid, "quit");
+    }
+
+    @Override
+    public void close() {
+        connections.close();
+    }
+}
@@ -0,0 +1,31 @@
+package com.ihsannoob.aiplugin;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+public class PlayerListener implements Listener {
+
+    private final AiPlugin plugin;
+
+    public PlayerListener(AiPlugin plugin) {
+        this.plugin = plugin;
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+    }
+
+    @EventHandler
+    public void onJoin(PlayerJoinEvent ev) {
+        // warm the history cache off the main thread so the first chat turn needs no read
+        plugin.getDatabaseManager().preloadAsync(ev.getPlayer().getUniqueId());
+    }
+
+    @EventHandler
+    public void onQuit(PlayerQuitEvent ev) {
+        // running chat turns are cancelled (or left to finish, per inflight.on_quit)
+        plugin.getInFlight().onQuit(ev.getPlayer().getUniqueId());
+        plugin.getDatabaseManager().evictCached(ev.getPlayer().getUniqueId());
+        plugin.getContextBuilder().forget(ev.getPlayer().getUniqueId());
+    }
+}
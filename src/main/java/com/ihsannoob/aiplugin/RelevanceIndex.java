@@ -0,0 +1,174 @@
+package com.ihsannoob.aiplugin;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory BM25 index over each chatting player's stored messages, used to pull relevant older
+ * messages into the prompt.
+ *
+ * A player's index is built on their first query from the latest maxIndexed committed messages and
+ * afterwards only reads rows newer than the last one it has seen. It keeps message ids, times, lengths and
+ * postings, not the text; the few chosen messages are fetched by id. Rows still in the write-behind
+ * queue are not indexed yet, but they are the newest ones and already in the recent window.
+ */
+public class RelevanceIndex {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int PAGE = 500;
+    private static final Set<String> STOPWORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "can", "do", "for", "from", "how", "i", "if", "in",
+            "is", "it", "me", "my", "of", "on", "or", "so", "that", "the", "this", "to", "was", "what", "with", "you", "your"));
+
+    /** One player's postings: term -> [count, doc, tf, doc, tf, ...] with docs as ordinals into ids/created/lengths. */
+    private static final class PlayerIndex {
+        final Map<String, int[]> postings = new HashMap<>();
+        long[] ids = new long[64];
+        long[] created = new long[64];
+        int[] lengths = new int[64];
+        int docs;
+        long totalLength;
+        long lastId;
+        boolean loaded;
+
+        void add(long id, long createdAt, String content) {
+            Map<String, Integer> tf = new HashMap<>();
+            int length = 0;
+            for (String t : terms(content)) {
+                tf.merge(t, 1, Integer::sum);
+                length++;
+            }
+            lastId = Math.max(lastId, id);
+            if (length == 0) return;
+            if (docs == ids.length) {
+                ids = Arrays.copyOf(ids, docs * 2);
+                created = Arrays.copyOf(created, docs * 2);
+                lengths = Arrays.copyOf(lengths, docs * 2);
+            }
+            int doc = docs++;
+            ids[doc] = id;
+            created[doc] = createdAt;
+            lengths[doc] = length;
+            totalLength += length;
+            for (Map.Entry<String, Integer> e : tf.entrySet()) {
+                int[] p = postings.get(e.getKey());
+                if (p == null) {
+                    p = new int[5];
+                } else if (1 + 2 * p[0] + 2 > p.length) {
+                    p = Arrays.copyOf(p, p.length * 2 + 1);
+                }
+                p[1 + 2 * p[0]] = doc;
+                p[2 + 2 * p[0]] = e.getValue();
+                p[0]++;
+                postings.put(e.getKey(), p);
+            }
+        }
+
+        /** Ids of the k best-scoring documents created before 'before' (0 = any time), best first. */
+        List<Long> top(Set<String> query, int k, long before) {
+            List<Long> out = new ArrayList<>(k);
+            if (docs == 0 || query.isEmpty()) return out;
+            double avgLength = (double) totalLength / docs;
+            double[] score = new double[docs];
+            for (String term : query) {
+                int[] p = postings.get(term);
+                if (p == null) continue;
+                double idf = Math.log(1 + (docs - p[0] + 0.5) / (p[0] + 0.5));
+                for (int i = 0; i < p[0]; i++) {
+                    int doc = p[1 + 2 * i];
+                    int tf = p[2 + 2 * i];
+                    score[doc] += idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * lengths[doc] / avgLength));
+                }
+            }
+            int[] best = new int[k];
+            int found = 0;
+            for (int doc = 0; doc < docs; doc++) {
+                if (score[doc] <= 0 || (before > 0 && created[doc] >= before)) continue;
+                // insertion into the small sorted best list; newer wins ties
+                int at = found < k ? found++ : k;
+                while (at > 0 && score[best[at - 1]] <= score[doc]) {
+                    if (at < k) best[at] = best[at - 1];
+                    at--;
+                }
+                if (at < k) best[at] = doc;
+            }
+            for (int i = 0; i < found; i++) out.add(ids[best[i]]);
+            return out;
+        }
+    }
+
+    private final DatabaseManager db;
+    private final ConcurrentHashMap<UUID, PlayerIndex> players = new ConcurrentHashMap<>();
+    private volatile int maxIndexed = 2000;
+
+    public RelevanceIndex(DatabaseManager db) {
+        this.db = db;
+    }
+
+    /** @param maxIndexed messages read when a player's index is first built (the newest ones) */
+    public void configure(int maxIndexed) {
+        this.maxIndexed = Math.max(1, maxIndexed);
+    }
+
+    /**
+     * Up to k of the player's messages that best match 'prompt' and were created before
+     * 'beforeEpochSeconds' (0 = no limit), oldest first. Blocking; call on the database executor.
+     */
+    public List<DatabaseManager.StoredMessage> relevant(UUID uuid, String prompt, int k, long beforeEpochSeconds) throws SQLException {
+        Set<String> query = new LinkedHashSet<>(terms(prompt));
+        if (query.isEmpty() || k <= 0) return new ArrayList<>();
+        ConversationStore store = db.getStore();
+        PlayerIndex index = players.computeIfAbsent(uuid, u -> new PlayerIndex());
+        List<Long> ids;
+        synchronized (index) {
+            if (!index.loaded) {
+                index.lastId = store.idBeforeLatest(uuid, maxIndexed);
+                index.loaded = true;
+            }
+            // whatever was committed since the last query
+            while (true) {
+                List<DatabaseManager.StoredMessage> rows = store.getMessagesAfter(uuid, index.lastId, PAGE);
+                for (DatabaseManager.StoredMessage m : rows) index.add(m.id, m.createdAt, m.content);
+                if (rows.size() < PAGE) break;
+            }
+            ids = index.top(query, k, beforeEpochSeconds);
+        }
+        return store.getMessages(uuid, ids);
+    }
+
+    /** Drop a player's index (quit, clear); it is rebuilt on their next query. */
+    public void forget(UUID uuid) {
+        players.remove(uuid);
+    }
+
+    /** Lower-case words of at least two letters/digits, without common stopwords. */
+    static List<String> terms(String text) {
+        List<String> out = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= 2) {
+                    String t = lower.substring(start, i);
+                    if (!STOPWORDS.contains(t)) out.add(t);
+                }
+                start = -1;
+            }
+        }
+        return out;
+    }
+}
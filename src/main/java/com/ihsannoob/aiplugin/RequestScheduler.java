@@ -0,0 +1,331 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Shapes load in front of the Cerebras API.
+ * - Chat turns run one at a time per player (a mailbox), so replies never come back out of order.
+ * - At most maxInFlight turns run across all players; the rest wait in FIFO order.
+ * - Upstream calls pass a token bucket and are retried with backoff on 429/503, honouring Retry-After.
+ */
+public class RequestScheduler {
+
+    /** Thrown into a queued turn that was replaced by a newer message from the same player. */
+    public static class SupersededException extends RuntimeException {
+        public SupersededException() {
+            super("Superseded by a newer request");
+        }
+    }
+
+    /** Result of a submit: how many turns are ahead of this one, and the turn's outcome. */
+    public static class Ticket<T> {
+        public final int position;
+        public final CompletableFuture<T> result;
+
+        Ticket(int position, CompletableFuture<T> result) {
+            this.position = position;
+            this.result = result;
+        }
+    }
+
+    private static final class Job<T> {
+        final Supplier<CompletableFuture<T>> task;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Job(Supplier<CompletableFuture<T>> task) {
+            this.task = task;
+        }
+    }
+
+    private final Logger logger;
+    private final ScheduledExecutorService timer;
+
+    private final Object lock = new Object();
+    private final Map<UUID, Deque<Job<?>>> mailboxes = new HashMap<>();
+    private final Set<UUID> running = new HashSet<>();
+    private final Deque<UUID> ready = new ArrayDeque<>();
+    private int inFlight;
+
+    private volatile int maxInFlight;
+    private volatile boolean replaceQueued;
+    private volatile int maxRetries;
+    private volatile boolean stopping;
+    // calls waiting on the timer for a token or a retry
+    private final Set<CompletableFuture<?>> delayed = ConcurrentHashMap.newKeySet();
+
+    // token bucket state, guarded by "this"
+    private double ratePerSecond;
+    private double burst;
+    // starts full: the first configure() clamps it down to the burst size
+    private double tokens = Double.MAX_VALUE;
+    private long lastRefill = System.nanoTime();
+    // provider asked us to slow down until this instant (System.nanoTime based)
+    private long pausedUntil;
+
+    public RequestScheduler(Logger logger) {
+        this.logger = logger;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AICerebras-Scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Apply (or re-apply on reload) the limits. A rate of 0 or less disables the token bucket.
+     */
+    public void configure(int maxInFlight, boolean replaceQueued, double requestsPerSecond, int burst, int maxRetries) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.replaceQueued = replaceQueued;
+        this.maxRetries = Math.max(0, maxRetries);
+        synchronized (this) {
+            this.ratePerSecond = requestsPerSecond;
+            this.burst = Math.max(1, burst);
+            this.tokens = Math.min(this.tokens, this.burst);
+        }
+        pump();
+    }
+
+    /**
+     * Queue a chat turn for a player. The task starts once the player's earlier turns have finished
+     * and a global slot is free. Position 0 means it starts right away.
+     */
+    public <T> Ticket<T> submit(UUID player, Supplier<CompletableFuture<T>> task) {
+        Job<T> job = new Job<>(task);
+        List<Job<?>> superseded = new ArrayList<>();
+        int position;
+        synchronized (lock) {
+            Deque<Job<?>> box = mailboxes.computeIfAbsent(player, u -> new ArrayDeque<>());
+            if (replaceQueued) {
+                superseded.addAll(box);
+                box.clear();
+            }
+            box.add(job);
+
+            boolean isRunning = running.contains(player);
+            if (!isRunning && !ready.contains(player)) ready.add(player);
+
+            if (isRunning) {
+                // behind the player's own running + queued turns
+                position = box.size();
+            } else if (inFlight < maxInFlight && player.equals(ready.peekFirst())) {
+                position = 0;
+            } else {
+                position = indexOf(player) + 1;
+            }
+        }
+        for (Job<?> old : superseded) {
+            old.result.completeExceptionally(new SupersededException());
+        }
+        pump();
+        return new Ticket<>(position, job.result);
+    }
+
+    /**
+     * Run one upstream call through the token bucket, retrying on 429/503 with exponential backoff.
+     * A Retry-After header from the provider takes precedence and also pauses the other calls.
+     * Cancelling the result cancels the attempt in progress and stops further retries.
+     */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> upstream) {
+        CompletableFuture<T> out = new CompletableFuture<>();
+        attempt(upstream, out, 0);
+        return out;
+    }
+
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    public int getQueued() {
+        synchronized (lock) {
+            int n = 0;
+            for (Deque<Job<?>> box : mailboxes.values()) n += box.size();
+            return n;
+        }
+    }
+
+    /**
+     * Stop timers and fail anything still waiting for a slot, a token or a retry. Calls already
+     * sent upstream keep running (see InFlightRegistry.drain).
+     */
+    public void shutdown() {
+        stopping = true;
+        List<Job<?>> pending = new ArrayList<>();
+        synchronized (lock) {
+            for (Deque<Job<?>> box : mailboxes.values()) pending.addAll(box);
+            mailboxes.clear();
+            ready.clear();
+        }
+        for (Job<?> job : pending) {
+            job.result.completeExceptionally(new IllegalStateException("Plugin is shutting down"));
+        }
+        timer.shutdownNow();
+        // delayed sends and retries that will never run now
+        for (CompletableFuture<?> out : delayed) abandoned(out);
+        delayed.clear();
+    }
+
+    private int indexOf(UUID player) {
+        int i = 0;
+        for (UUID u : ready) {
+            if (u.equals(player)) return i;
+            i++;
+        }
+        return i;
+    }
+
+    private void pump() {
+        List<Map.Entry<UUID, Job<?>>> toStart = new ArrayList<>();
+        synchronized (lock) {
+            while (inFlight < maxInFlight && !ready.isEmpty()) {
+                UUID player = ready.poll();
+                Deque<Job<?>> box = mailboxes.get(player);
+                Job<?> job = box == null ? null : box.poll();
+                if (job == null) {
+                    mailboxes.remove(player);
+                    continue;
+                }
+                running.add(player);
+                inFlight++;
+                toStart.add(Map.entry(player, job));
+            }
+        }
+        for (Map.Entry<UUID, Job<?>> e : toStart) {
+            start(e.getKey(), e.getValue());
+        }
+    }
+
+    private <T> void start(UUID player, Job<T> job) {
+        CompletableFuture<T> f;
+        try {
+            f = job.task.get();
+        } catch (Throwable t) {
+            f = CompletableFuture.failedFuture(t);
+        }
+        f.whenComplete((r, ex) -> {
+            if (ex != null) job.result.completeExceptionally(ex);
+            else job.result.complete(r);
+            finished(player);
+        });
+    }
+
+    private void finished(UUID player) {
+        synchronized (lock) {
+            inFlight--;
+            running.remove(player);
+            Deque<Job<?>> box = mailboxes.get(player);
+            if (box != null && !box.isEmpty()) {
+                ready.add(player);
+            } else {
+                mailboxes.remove(player);
+            }
+        }
+        pump();
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> upstream, CompletableFuture<T> out, int retry) {
+        if (abandoned(out)) return;
+        long delay = reserve();
+        if (delay > 0) {
+            schedule(out, () -> send(upstream, out, retry), delay);
+        } else {
+            send(upstream, out, retry);
+        }
+    }
+
+    private <T> void send(Supplier<CompletableFuture<T>> upstream, CompletableFuture<T> out, int retry) {
+        if (abandoned(out)) return;
+        CompletableFuture<T> f;
+        try {
+            f = upstream.get();
+        } catch (Throwable t) {
+            f = CompletableFuture.failedFuture(t);
+        }
+        InFlightRegistry.cancelling(out, f);
+        f.whenComplete((r, ex) -> {
+            if (ex == null) {
+                out.complete(r);
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof CerebrasClient.ApiException
+                    && !out.isDone() && !stopping
+                    && ((CerebrasClient.ApiException) cause).isRetryable()
+                    && retry < maxRetries) {
+                long wait = backoffMillis((CerebrasClient.ApiException) cause, retry);
+                logger.info("Cerebras API returned " + ((CerebrasClient.ApiException) cause).status
+                        + ", retrying in " + wait + " ms (attempt " + (retry + 2) + ")");
+                pauseFor(wait);
+                schedule(out, () -> attempt(upstream, out, retry + 1), TimeUnit.MILLISECONDS.toNanos(wait));
+            } else {
+                out.completeExceptionally(cause);
+            }
+        });
+    }
+
+    // cancelled by the caller, or failed here because the plugin is stopping
+    private boolean abandoned(CompletableFuture<?> out) {
+        if (stopping) out.completeExceptionally(new IllegalStateException("Plugin is shutting down"));
+        return out.isDone();
+    }
+
+    private static long backoffMillis(CerebrasClient.ApiException ex, int retry) {
+        // 1s, 2s, 4s ... capped at 30s, with jitter so retries don't land together
+        long exp = Math.min(30_000L, 1000L << Math.min(retry, 5));
+        long jittered = exp / 2 + ThreadLocalRandom.current().nextLong(exp / 2 + 1);
+        return Math.max(jittered, ex.retryAfterMillis);
+    }
+
+    private void schedule(CompletableFuture<?> out, Runnable r, long delayNanos) {
+        delayed.add(out);
+        try {
+            timer.schedule(() -> {
+                delayed.remove(out);
+                r.run();
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (Exception ex) {
+            delayed.remove(out);
+            // timer is gone (shutdown); run inline so the caller's future still settles
+            r.run();
+        }
+    }
+
+    private synchronized void pauseFor(long millis) {
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Take one token, returning how long (in nanos) the caller has to wait for it.
+     * Tokens may go negative: waiting callers reserve future refills in arrival order.
+     */
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        long pause = Math.max(0, pausedUntil - now);
+        if (ratePerSecond <= 0) return pause;
+
+        tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+        lastRefill = now;
+        tokens -= 1;
+        long wait = tokens >= 0 ? 0 : (long) (-tokens / ratePerSecond * 1e9);
+        return Math.max(wait, pause);
+    }
+}
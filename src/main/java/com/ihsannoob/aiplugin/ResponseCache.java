@@ -0,0 +1,243 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Cache of assistant replies keyed on the normalised request (model + every message sent).
+ * Entries expire after a TTL and the least recently used are evicted above maxEntries.
+ *
+ * Identical requests that are already in flight share one upstream call (single-flight):
+ * the first caller loads, later callers get a copy of its future. Failed or empty replies
+ * are never stored.
+ */
+public class ResponseCache {
+
+    private static final class Entry {
+        final String reply;
+        final long storedAt;
+        // how long the upstream call took; credited as saved time on every hit
+        final long loadMillis;
+
+        Entry(String reply, long storedAt, long loadMillis) {
+            this.reply = reply;
+            this.storedAt = storedAt;
+            this.loadMillis = loadMillis;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder savedMillis = new LongAdder();
+
+    public ResponseCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = Math.max(1000, ttlMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Cache key for a request. Whitespace, case and trailing punctuation are normalised
+     * so "How do I claim land?" and "how do i  claim land" share an entry.
+     */
+    public static String key(String model, List<CerebrasClient.Message> messages) {
+        StringBuilder sb = new StringBuilder(model == null ? "" : model);
+        for (CerebrasClient.Message m : messages) {
+            sb.append('\u0000').append(m.role).append('\u0001').append(normalize(m.content));
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // every JRE ships SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String normalize(String text) {
+        if (text == null) return "";
+        String s = text.strip().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+        int end = s.length();
+        while (end > 0 && ".?!".indexOf(s.charAt(end - 1)) >= 0) end--;
+        return s.substring(0, end).strip();
+    }
+
+    /**
+     * Cached reply for 'key', the in-flight load for it, or a new load started with 'loader'.
+     */
+    public CompletableFuture<String> get(String key, Supplier<CompletableFuture<String>> loader) {
+        Entry e = lookup(key);
+        if (e != null) {
+            hits.increment();
+            savedMillis.add(e.loadMillis);
+            return CompletableFuture.completedFuture(e.reply);
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            // a copy, so one caller cancelling can't cancel the shared call
+            return running.copy();
+        }
+
+        misses.increment();
+        long start = System.nanoTime();
+        CompletableFuture<String> load;
+        try {
+            load = loader.get();
+        } catch (Throwable ex) {
+            load = CompletableFuture.failedFuture(ex);
+        }
+        load.whenComplete((reply, ex) -> {
+            if (ex == null && reply != null && !reply.isBlank()) {
+                put(key, new Entry(reply, System.currentTimeMillis(), (System.nanoTime() - start) / 1_000_000L));
+            }
+            inFlight.remove(key, mine);
+            if (ex != null) mine.completeExceptionally(ex);
+            else mine.complete(reply);
+        });
+        return mine;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getSavedMillis() {
+        return savedMillis.sum();
+    }
+
+    /** Share of requests answered without an upstream call of their own (hits + coalesced). */
+    public double getHitRate() {
+        long h = hits.sum() + coalesced.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Write unexpired entries to 'file' (via a temp file, so a crash never leaves half a cache).
+     */
+    public void save(File file) throws IOException {
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(entries.entrySet());
+        }
+        long now = System.currentTimeMillis();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+             JsonWriter jw = new JsonWriter(w)) {
+            jw.beginArray();
+            // least recently used first, so loading in order restores the LRU order
+            for (Map.Entry<String, Entry> me : snapshot) {
+                Entry e = me.getValue();
+                if (now - e.storedAt >= ttlMillis) continue;
+                jw.beginObject();
+                jw.name("key").value(me.getKey());
+                jw.name("reply").value(e.reply);
+                jw.name("storedAt").value(e.storedAt);
+                jw.name("loadMillis").value(e.loadMillis);
+                jw.endObject();
+            }
+            jw.endArray();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load entries written by {@link #save}; expired ones are skipped. Returns the number loaded.
+     */
+    public int load(File file) throws IOException {
+        if (!file.exists()) return 0;
+        long now = System.currentTimeMillis();
+        int n = 0;
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+             JsonReader jr = new JsonReader(r)) {
+            jr.beginArray();
+            while (jr.hasNext()) {
+                String key = null;
+                String reply = null;
+                long storedAt = 0;
+                long loadMillis = 0;
+                jr.beginObject();
+                while (jr.hasNext()) {
+                    switch (jr.nextName()) {
+                        case "key": key = jr.nextString(); break;
+                        case "reply": reply = jr.nextString(); break;
+                        case "storedAt": storedAt = jr.nextLong(); break;
+                        case "loadMillis": loadMillis = jr.nextLong(); break;
+                        default: jr.skipValue();
+                    }
+                }
+                jr.endObject();
+                if (key == null || reply == null || now - storedAt >= ttlMillis) continue;
+                put(key, new Entry(reply, storedAt, loadMillis));
+                n++;
+            }
+            jr.endArray();
+        }
+        return n;
+    }
+
+    private synchronized Entry lookup(String key) {
+        Entry e = entries.get(key);
+        if (e == null) return null;
+        if (System.currentTimeMillis() - e.storedAt >= ttlMillis) {
+            entries.remove(key);
+            return null;
+        }
+        return e;
+    }
+
+    private synchronized void put(String key, Entry e) {
+        entries.put(key, e);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Periodically enforces the retention policy: messages older than maxAge, or beyond the latest
+ * maxMessages of a player, are appended to the player's archive and deleted, after which the
+ * freed pages are handed back with incremental vacuum.
+ *
+ * Runs on one low-priority thread, a player at a time, in small batches with a pause in between,
+ * so chat reads and writes never wait long behind it.
+ */
+public class RetentionJob {
+
+    private final DatabaseManager db;
+    private final long maxAgeSeconds;
+    private final int maxMessages;
+    private final int batch;
+    private final long pauseMillis;
+    private final boolean archive;
+    private final Metrics metrics;
+    private final Logger logger;
+    private final ScheduledExecutorService timer;
+    private volatile boolean stopping;
+
+    /**
+     * @param maxAgeSeconds 0 = no age limit
+     * @param maxMessages   messages kept per player, 0 = no count limit
+     * @param archive       append expired messages to the archive before deleting them
+     */
+    public RetentionJob(DatabaseManager db, long maxAgeSeconds, int maxMessages, int batch, long pauseMillis, boolean archive, Metrics metrics, Logger logger) {
+        this.db = db;
+        this.maxAgeSeconds = Math.max(0, maxAgeSeconds);
+        this.maxMessages = Math.max(0, maxMessages);
+        this.batch = Math.max(1, batch);
+        this.pauseMillis = Math.max(0, pauseMillis);
+        this.archive = archive;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AICerebras-Retention");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    public void start(long initialDelayMillis, long intervalMillis) {
+        timer.scheduleWithFixedDelay(this::runSafely, initialDelayMillis, Math.max(60_000L, intervalMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop after the current batch; call before the database is closed. */
+    public void shutdown() {
+        stopping = true;
+        timer.shutdownNow();
+        try {
+            if (!timer.awaitTermination(5, TimeUnit.SECONDS)) logger.warning("Retention job did not stop in time.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSafely() {
+        try {
+            runOnce();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            logger.warning("Retention run failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * One pass over every stored player. Returns the number of messages removed.
+     */
+    public long runOnce() throws SQLException, InterruptedException {
+        if (maxAgeSeconds == 0 && maxMessages == 0) return 0;
+        long start = System.currentTimeMillis();
+        long cutoff = maxAgeSeconds > 0 ? start / 1000 - maxAgeSeconds : 0;
+        long removed = 0;
+        int players = 0;
+        for (UUID uuid : db.storedPlayers()) {
+            if (stopping) break;
+            try {
+                long n = db.expireMessages(uuid, cutoff, maxMessages, batch, pauseMillis, archive);
+                if (n > 0) {
+                    removed += n;
+                    players++;
+                    metrics.add("retention_messages_removed_total", n);
+                }
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                logger.warning("Retention failed for " + uuid + ": " + ex.getMessage());
+            }
+        }
+        if (removed > 0) {
+            logger.info("Retention: " + (archive ? "archived" : "deleted") + " " + removed + " messages of " + players
+                    + " players in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return removed;
+    }
+
+    /** Reads the next page of expired rows after an id. */
+    interface ExpiredPage {
+        List<DatabaseManager.StoredMessage> read(long afterId) throws SQLException;
+    }
+
+    /** Deletes expired rows up to an id; returns the count. */
+    interface DeleteUpTo {
+        int delete(long lastId) throws SQLException;
+    }
+
+    /**
+     * The loop every store runs: page through expired rows up to 'upTo', archive each page (when
+     * archive is non-null) before deleting it, and pause between pages.
+     * 'stop' is checked again under the archive's lock right before each append: a clear raises it
+     * before deleting the archive under that lock, so a page read before the clear is never written back.
+     */
+    static long expireBatches(UUID uuid, long upTo, long pauseMillis, MessageArchive archive, BooleanSupplier stop, ExpiredPage page, DeleteUpTo delete)
+            throws SQLException, IOException, InterruptedException {
+        long removed = 0;
+        long after = 0;
+        while (after < upTo && !stop.getAsBoolean()) {
+            List<DatabaseManager.StoredMessage> rows = page.read(after);
+            if (rows.isEmpty()) break;
+            if (archive != null) {
+                synchronized (archive) {
+                    if (stop.getAsBoolean()) break;
+                    archive.append(uuid, rows);
+                }
+            }
+            after = rows.get(rows.size() - 1).id;
+            removed += delete.delete(after);
+            if (after < upTo && pauseMillis > 0) Thread.sleep(pauseMillis);
+        }
+        return removed;
+    }
+
+    // ---- SQL shared by per-player files (playerUuid == null) and the shared/JDBC databases (table = their messages table) ----
+
+    /**
+     * Highest id that is expired: older than cutoff (0 = ignore age) or outside the latest 'keep'
+     * messages (0 = ignore count). 0 when nothing is expired. Ids grow with time, so every row at or
+     * below the result is expired too.
+     */
+    static long expiryBoundary(Connection conn, String table, String playerUuid, long cutoff, int keep) throws SQLException {
+        String player = playerUuid != null ? " AND player_uuid = ?" : "";
+        long bound = 0;
+        if (cutoff > 0) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT MAX(id) FROM " + table + " WHERE created_at < ?" + player)) {
+                ps.setLong(1, cutoff);
+                if (playerUuid != null) ps.setString(2, playerUuid);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) bound = rs.getLong(1);
+                }
+            }
+        }
+        if (keep > 0) {
+            String where = playerUuid != null ? " WHERE player_uuid = ?" : "";
+            try (PreparedStatement ps = conn.prepareStatement("SELECT id FROM " + table + where + " ORDER BY id DESC LIMIT 1 OFFSET ?")) {
+                int i = 1;
+                if (playerUuid != null) ps.setString(i++, playerUuid);
+                ps.setInt(i, keep);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) bound = Math.max(bound, rs.getLong(1));
+                }
+            }
+        }
+        return bound;
+    }
+
+    /** Up to 'limit' rows with afterId &lt; id &lt;= upTo, oldest first; 'codec' reads compressed content (null = plain only). */
+    static List<DatabaseManager.StoredMessage> page(Connection conn, String table, String playerUuid, long afterId, long upTo, int limit, MessageCodec codec) throws SQLException {
+        String player = playerUuid != null ? " AND player_uuid = ?" : "";
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT id, role, content, created_at FROM " + table + " WHERE id > ? AND id <= ?" + player + " ORDER BY id LIMIT ?")) {
+            int i = 1;
+            ps.setLong(i++, afterId);
+            ps.setLong(i++, upTo);
+            if (playerUuid != null) ps.setString(i++, playerUuid);
+            ps.setInt(i, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), codec != null ? codec.read(rs, 3) : rs.getString(3), rs.getLong(4)));
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Delete every row with id &lt;= upTo; returns the count. */
+    static int deleteUpTo(Connection conn, String table, String playerUuid, long upTo) throws SQLException {
+        String player = playerUuid != null ? " AND player_uuid = ?" : "";
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM " + table + " WHERE id <= ?" + player)) {
+            ps.setLong(1, upTo);
+            if (playerUuid != null) ps.setString(2, playerUuid);
+            return ps.executeUpdate();
+        }
+    }
+
+    /** PRAGMA auto_vacuum: 0 none, 1 full, 2 incremental. */
+    static int autoVacuumMode(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA auto_vacuum")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    static int freePages(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA freelist_count")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /** Return up to 'pages' free pages to the file system (all of them when pages &lt;= 0). */
+    static void incrementalVacuum(Connection conn, int pages) throws SQLException {
+        // one result row per freed page; the pragma only runs as far as it is stepped
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(pages > 0 ? "PRAGMA incremental_vacuum(" + pages + ")" : "PRAGMA incremental_vacuum")) {
+            while (rs.next()) {
+                // drain
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.ihsannoob.aiplugin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * SQLite FTS5 index over a database's messages table: messages_fts(content), rowid = message id.
+ *
+ * Triggers keep the index in sync with every insert and delete, whichever code path writes.
+ * Rows that already existed when the index was created are added afterwards by {@link #backfill},
+ * a small batch per transaction, with progress kept in search_state so it resumes after a restart.
+ * Used for both the per-player files and the shared database (which filters on player_uuid).
+ */
+public final class SearchIndex {
+
+    private SearchIndex() {
+    }
+
+    /**
+     * Create the index, its triggers and the backfill state if missing, in one transaction, so that
+     * every row is either covered by the triggers or below the recorded backfill target.
+     * Returns false when this SQLite build has no FTS5.
+     */
+    public static boolean install(Connection conn, Logger logger) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'messages_fts'")) {
+            if (rs.next()) return true;
+        }
+        boolean auto = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE VIRTUAL TABLE messages_fts USING fts5(content, tokenize = 'unicode61 remove_diacritics 2')");
+            st.executeUpdate("CREATE TRIGGER messages_fts_insert AFTER INSERT ON messages BEGIN INSERT INTO messages_fts (rowid, content) VALUES (new.id, new.content); END");
+            st.executeUpdate("CREATE TRIGGER messages_fts_delete AFTER DELETE ON messages BEGIN DELETE FROM messages_fts WHERE rowid = old.id; END");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS search_state (id INTEGER PRIMARY KEY CHECK (id = 1), indexed_upto INTEGER NOT NULL, backfill_target INTEGER NOT NULL)");
+            st.executeUpdate("INSERT OR REPLACE INTO search_state (id, indexed_upto, backfill_target) SELECT 1, 0, COALESCE(MAX(id), 0) FROM messages");
+            conn.commit();
+            return true;
+        } catch (SQLException ex) {
+            conn.rollback();
+            if (String.valueOf(ex.getMessage()).contains("no such module")) {
+                logger.warning("SQLite has no FTS5 support; /ai search is disabled.");
+                return false;
+            }
+            throw ex;
+        } finally {
+            conn.setAutoCommit(auto);
+        }
+    }
+
+    /**
+     * Index the next 'batch' pre-existing rows in one short transaction.
+     * Returns true when the backfill is complete.
+     */
+    public static boolean backfill(Connection conn, int batch) throws SQLException {
+        long[] state = state(conn);
+        if (state[0] >= state[1]) return true;
+        long from = state[0];
+        long to = state[1];
+        try (PreparedStatement ps = conn.prepareStatement("SELECT id FROM messages WHERE id > ? AND id <= ? ORDER BY id LIMIT 1 OFFSET ?")) {
+            ps.setLong(1, from);
+            ps.setLong(2, to);
+            ps.setInt(3, Math.max(1, batch) - 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) to = rs.getLong(1);
+            }
+        }
+        boolean auto = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO messages_fts (rowid, content) SELECT id, content FROM messages WHERE id > ? AND id <= ?");
+             PreparedStatement progress = conn.prepareStatement("UPDATE search_state SET indexed_upto = ? WHERE id = 1")) {
+            insert.setLong(1, from);
+            insert.setLong(2, to);
+            insert.executeUpdate();
+            progress.setLong(1, to);
+            progress.executeUpdate();
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(auto);
+        }
+        return to >= state[1];
+    }
+
+    /** {indexed_upto, backfill_target}; equal once every pre-existing row is indexed. */
+    public static long[] state(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT indexed_upto, backfill_target FROM search_state WHERE id = 1")) {
+            return rs.next() ? new long[]{rs.getLong(1), rs.getLong(2)} : new long[]{0, 0};
+        }
+    }
+
+    /** Whether every row is in the index (also true when there is no index at all). */
+    public static boolean isBackfilled(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'search_state'")) {
+            if (!rs.next()) return true;
+        }
+        long[] state = state(conn);
+        return state[0] >= state[1];
+    }
+
+    /**
+     * Turn what a player typed into an FTS5 query: every word must appear, the last one as a prefix.
+     * Words are quoted, so FTS5 operators and punctuation in the input are taken literally.
+     * Returns null when nothing searchable is left.
+     */
+    public static String matchQuery(String terms) {
+        List<String> words = new ArrayList<>();
+        for (String word : words(terms)) words.add("\"" + word + "\"");
+        if (words.isEmpty()) return null;
+        return String.join(" ", words) + "*";
+    }
+
+    /** The searchable words of what a player typed: split on whitespace, quotes dropped, at least one letter or digit. */
+    public static List<String> words(String terms) {
+        List<String> out = new ArrayList<>();
+        for (String w : terms.trim().split("\\s+")) {
+            String word = w.replace("\"", "");
+            if (word.codePoints().anyMatch(Character::isLetterOrDigit)) out.add(word);
+        }
+        return out;
+    }
+
+    /**
+     * Ranked (bm25, newest first on ties) page of matches. In the shared database 'uuid' restricts
+     * the search to one player; per-player files pass null. Fetches one extra row to tell whether
+     * another page exists.
+     */
+    public static List<DatabaseManager.SearchHit> search(Connection conn, String playerUuid, String match, int offset, int limit,
+                                                         String highlightStart, String highlightEnd) throws SQLException {
+        String sql = "SELECT m.id, m.role, m.created_at, snippet(messages_fts, 0, ?, ?, '...', 16)"
+                + " FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid"
+                + " WHERE messages_fts MATCH ?" + (playerUuid != null ? " AND m.player_uuid = ?" : "")
+                + " ORDER BY bm25(messages_fts), m.id DESC LIMIT ? OFFSET ?";
+        List<DatabaseManager.SearchHit> out = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int i = 1;
+            ps.setString(i++, highlightStart);
+            ps.setString(i++, highlightEnd);
+            ps.setString(i++, match);
+            if (playerUuid != null) ps.setString(i++, playerUuid);
+            ps.setInt(i++, limit + 1);
+            ps.setInt(i, Math.max(0, offset));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new DatabaseManager.SearchHit(rs.getLong(1), rs.getString(2), rs.getLong(3), rs.getString(4)));
+                }
+            }
+        }
+        return out;
+    }
+}
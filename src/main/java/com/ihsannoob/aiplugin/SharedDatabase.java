@@ -0,0 +1,643 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Single SQLite database (WAL mode) holding every player's messages.
+ * Table: messages(id, player_uuid, role, content, created_at) with an index on (player_uuid, id).
+ * Writes go through one writer connection; reads borrow from a small fixed pool of reader connections.
+ * Each connection keeps its prepared statements for its whole lifetime.
+ * Message text is also indexed for /ai search, see {@link SearchIndex}.
+ */
+public class SharedDatabase implements ConversationStore {
+
+    private static final String LEGACY_IMPORT_KEY = "legacy_import_done";
+
+    /** A pooled reader connection with its reusable statements. */
+    private static final class Reader {
+        final Connection conn;
+        final PreparedStatement recent;
+        final PreparedStatement page;
+        final PreparedStatement nthLatest;
+        final PreparedStatement summary;
+
+        Reader(Connection conn) throws SQLException {
+            this.conn = conn;
+            this.recent = conn.prepareStatement("SELECT id, role, content, created_at FROM messages WHERE player_uuid = ? ORDER BY id DESC LIMIT ?");
+            this.page = conn.prepareStatement("SELECT id, role, content, created_at FROM messages WHERE player_uuid = ? AND id > ? ORDER BY id LIMIT ?");
+            this.nthLatest = conn.prepareStatement("SELECT id FROM messages WHERE player_uuid = ? ORDER BY id DESC LIMIT 1 OFFSET ?");
+            this.summary = conn.prepareStatement("SELECT content, last_message_id, updated_at FROM summaries WHERE player_uuid = ?");
+        }
+    }
+
+    private final File file;
+    private final Logger logger;
+    private final Connection writer;
+    private final PreparedStatement insert;
+    private final PreparedStatement deleteAll;
+    private final PreparedStatement upsertSummary;
+    private final PreparedStatement deleteSummary;
+    private final BlockingQueue<Reader> readers;
+    private final List<Reader> allReaders = new ArrayList<>();
+    private final boolean searchable;
+    // no incremental auto-vacuum on this file; said once
+    private volatile boolean vacuumHintLogged;
+    // legacy per-player files not migrated yet (see prepareLegacyImport)
+    private final ConcurrentHashMap<UUID, File> legacyPending = new ConcurrentHashMap<>();
+    // striped by player: the background import vs. migrating a player on first use
+    private final Object[] legacyLocks = new Object[32];
+    private volatile MessageCodec legacyCodec;
+    // a file failed this run; the import is not marked done
+    private volatile boolean legacyFailed;
+
+    public SharedDatabase(File file, int readerCount, Logger logger) throws SQLException {
+        this.file = file;
+        this.logger = logger;
+        for (int i = 0; i < legacyLocks.length; i++) legacyLocks[i] = new Object();
+
+        this.writer = open();
+        try (Statement st = writer.createStatement()) {
+            // only takes effect while the file is new; lets retention hand freed pages back
+            st.executeUpdate("PRAGMA auto_vacuum=INCREMENTAL");
+            st.executeUpdate("PRAGMA journal_mode=WAL");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS messages (id INTEGER PRIMARY KEY AUTOINCREMENT, player_uuid TEXT NOT NULL, role TEXT NOT NULL, content TEXT NOT NULL, created_at INTEGER NOT NULL)");
+            st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_messages_player ON messages (player_uuid, id)");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS meta (key TEXT PRIMARY KEY, value TEXT NOT NULL)");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS summaries (player_uuid TEXT PRIMARY KEY, content TEXT NOT NULL, last_message_id INTEGER NOT NULL, updated_at INTEGER NOT NULL)");
+        }
+        this.searchable = SearchIndex.install(writer, logger);
+        this.insert = writer.prepareStatement("INSERT INTO messages (player_uuid, role, content, created_at) VALUES (?, ?, ?, ?)");
+        this.deleteAll = writer.prepareStatement("DELETE FROM messages WHERE player_uuid = ?");
+        this.upsertSummary = writer.prepareStatement("INSERT OR REPLACE INTO summaries (player_uuid, content, last_message_id, updated_at) VALUES (?, ?, ?, ?)");
+        this.deleteSummary = writer.prepareStatement("DELETE FROM summaries WHERE player_uuid = ?");
+
+        int n = Math.max(1, readerCount);
+        this.readers = new ArrayBlockingQueue<>(n);
+        for (int i = 0; i < n; i++) {
+            Reader r = new Reader(open());
+            allReaders.add(r);
+            readers.add(r);
+        }
+    }
+
+    private Connection open() throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        conn.setAutoCommit(true);
+        try (Statement st = conn.createStatement()) {
+            // WAL only needs a full sync at checkpoints; wait on the writer lock instead of failing with SQLITE_BUSY
+            st.executeUpdate("PRAGMA synchronous=NORMAL");
+            st.executeUpdate("PRAGMA busy_timeout=5000");
+        }
+        return conn;
+    }
+
+    @Override
+    public void addMessage(UUID uuid, String role, String content, long createdAt) throws SQLException {
+        ensureMigrated(uuid);
+        synchronized (writer) {
+            insert.setString(1, uuid.toString());
+            insert.setString(2, role);
+            insert.setString(3, content);
+            insert.setLong(4, createdAt);
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Insert a batch of queued messages in one transaction (write-behind group commit).
+     */
+    @Override
+    public void addMessages(List<WriteBehindQueue.PendingMessage> batch) throws SQLException {
+        if (!legacyPending.isEmpty()) {
+            for (WriteBehindQueue.PendingMessage m : batch) ensureMigrated(m.uuid);
+        }
+        synchronized (writer) {
+            writer.setAutoCommit(false);
+            try {
+                for (WriteBehindQueue.PendingMessage m : batch) {
+                    insert.setString(1, m.uuid.toString());
+                    insert.setString(2, m.role);
+                    insert.setString(3, m.content);
+                    insert.setLong(4, m.createdAt);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                writer.commit();
+            } catch (SQLException ex) {
+                writer.rollback();
+                throw ex;
+            } finally {
+                writer.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Latest 'limit' messages of a player, oldest first.
+     */
+    @Override
+    public List<DatabaseManager.StoredMessage> getConversation(UUID uuid, int limit) throws SQLException {
+        ensureMigrated(uuid);
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        Reader r = borrow();
+        try {
+            r.recent.setString(1, uuid.toString());
+            r.recent.setInt(2, Math.max(1, limit));
+            try (ResultSet rs = r.recent.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4)));
+                }
+            }
+        } finally {
+            readers.add(r);
+        }
+        Collections.reverse(out);
+        return out;
+    }
+
+    /**
+     * Page through a player's messages by id; the reader goes back to the pool between pages.
+     */
+    @Override
+    public List<DatabaseManager.StoredMessage> getMessages(UUID uuid, List<Long> ids) throws SQLException {
+        ensureMigrated(uuid);
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        if (ids.isEmpty()) return out;
+        Reader r = borrow();
+        try (PreparedStatement ps = r.conn.prepareStatement("SELECT id, role, content, created_at FROM messages WHERE player_uuid = ? AND id IN ("
+                + PlayerFileStore.placeholders(ids.size()) + ") ORDER BY id")) {
+            ps.setString(1, uuid.toString());
+            for (int i = 0; i < ids.size(); i++) ps.setLong(i + 2, ids.get(i));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4)));
+                }
+            }
+        } finally {
+            readers.add(r);
+        }
+        return out;
+    }
+
+    @Override
+    public long streamMessages(UUID uuid, long afterId, int pageSize, DatabaseManager.MessageVisitor visitor) throws SQLException, IOException {
+        ensureMigrated(uuid);
+        long count = 0;
+        long last = afterId;
+        int n = Math.max(1, pageSize);
+        while (true) {
+            int rows = 0;
+            Reader r = borrow();
+            try {
+                r.page.setString(1, uuid.toString());
+                r.page.setLong(2, last);
+                r.page.setInt(3, n);
+                try (ResultSet rs = r.page.executeQuery()) {
+                    while (rs.next()) {
+                        last = rs.getLong(1);
+                        visitor.visit(last, new DatabaseManager.StoredMessage(last, rs.getString(2), rs.getString(3), rs.getLong(4)));
+                        rows++;
+                    }
+                }
+            } finally {
+                readers.add(r);
+            }
+            count += rows;
+            if (rows < n) return count;
+        }
+    }
+
+    @Override
+    public long idBeforeLatest(UUID uuid, int count) throws SQLException {
+        ensureMigrated(uuid);
+        Reader r = borrow();
+        try {
+            r.nthLatest.setString(1, uuid.toString());
+            r.nthLatest.setInt(2, Math.max(0, count - 1));
+            try (ResultSet rs = r.nthLatest.executeQuery()) {
+                return rs.next() ? rs.getLong(1) - 1 : 0;
+            }
+        } finally {
+            readers.add(r);
+        }
+    }
+
+    /**
+     * Up to 'limit' messages with id greater than afterId, oldest first.
+     */
+    @Override
+    public List<DatabaseManager.StoredMessage> getMessagesAfter(UUID uuid, long afterId, int limit) throws SQLException {
+        ensureMigrated(uuid);
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        Reader r = borrow();
+        try {
+            r.page.setString(1, uuid.toString());
+            r.page.setLong(2, afterId);
+            r.page.setInt(3, Math.max(1, limit));
+            try (ResultSet rs = r.page.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new DatabaseManager.StoredMessage(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4)));
+                }
+            }
+        } finally {
+            readers.add(r);
+        }
+        return out;
+    }
+
+    @Override
+    public DatabaseManager.Summary getSummary(UUID uuid) throws SQLException {
+        ensureMigrated(uuid);
+        Reader r = borrow();
+        try {
+            r.summary.setString(1, uuid.toString());
+            try (ResultSet rs = r.summary.executeQuery()) {
+                return rs.next() ? new DatabaseManager.Summary(rs.getString(1), rs.getLong(2), rs.getLong(3)) : null;
+            }
+        } finally {
+            readers.add(r);
+        }
+    }
+
+    @Override
+    public void saveSummary(UUID uuid, DatabaseManager.Summary summary) throws SQLException {
+        ensureMigrated(uuid);
+        synchronized (writer) {
+            upsertSummary.setString(1, uuid.toString());
+            upsertSummary.setString(2, summary.content);
+            upsertSummary.setLong(3, summary.lastMessageId);
+            upsertSummary.setLong(4, summary.updatedAt);
+            upsertSummary.executeUpdate();
+        }
+    }
+
+    @Override
+    public boolean clearConversation(UUID uuid) throws SQLException {
+        ensureMigrated(uuid);
+        synchronized (writer) {
+            deleteAll.setString(1, uuid.toString());
+            deleteAll.executeUpdate();
+            deleteSummary.setString(1, uuid.toString());
+            deleteSummary.executeUpdate();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isSearchable() {
+        return searchable;
+    }
+
+    /**
+     * A page of one player's messages matching the words, best first (see {@link SearchIndex#search}).
+     */
+    @Override
+    public List<DatabaseManager.SearchHit> search(UUID uuid, String terms, int offset, int limit, String highlightStart, String highlightEnd) throws SQLException {
+        ensureMigrated(uuid);
+        Reader r = borrow();
+        try {
+            return SearchIndex.search(r.conn, uuid.toString(), SearchIndex.matchQuery(terms), offset, limit, highlightStart, highlightEnd);
+        } finally {
+            readers.add(r);
+        }
+    }
+
+    /**
+     * Index one batch of messages older than the search index (for every player at once);
+     * the writer lock is held only for that batch. Returns true when nothing is left to backfill.
+     */
+    @Override
+    public boolean backfillSearch(UUID uuid, int batch) throws SQLException {
+        if (!searchable) return true;
+        synchronized (writer) {
+            return SearchIndex.backfill(writer, batch);
+        }
+    }
+
+    @Override
+    public boolean isSearchComplete(UUID uuid) throws SQLException {
+        if (!searchable) return true;
+        Reader r = borrow();
+        try {
+            long[] state = SearchIndex.state(r.conn);
+            return state[0] >= state[1];
+        } finally {
+            readers.add(r);
+        }
+    }
+
+    @Override
+    public List<UUID> players() throws SQLException {
+        List<UUID> out = new ArrayList<>();
+        Reader r = borrow();
+        try (Statement st = r.conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT DISTINCT player_uuid FROM messages")) {
+            while (rs.next()) {
+                try {
+                    out.add(UUID.fromString(rs.getString(1)));
+                } catch (IllegalArgumentException ignore) {}
+            }
+        } finally {
+            readers.add(r);
+        }
+        // players whose legacy file is still waiting; using them migrates it
+        if (!legacyPending.isEmpty()) {
+            Set<UUID> stored = new HashSet<>(out);
+            for (UUID uuid : legacyPending.keySet()) {
+                if (stored.add(uuid)) out.add(uuid);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Expired rows are read through the reader pool; the writer lock is held only for each delete
+     * and each vacuum step of 'batch' pages.
+     */
+    @Override
+    public long expire(UUID uuid, long cutoffEpochSeconds, int keepLatest, int batch, long pauseMillis, MessageArchive archive, BooleanSupplier stop)
+            throws SQLException, IOException, InterruptedException {
+        ensureMigrated(uuid);
+        String player = uuid.toString();
+        long upTo;
+        Reader r = borrow();
+        try {
+            upTo = RetentionJob.expiryBoundary(r.conn, "messages", player, cutoffEpochSeconds, keepLatest);
+        } finally {
+            readers.add(r);
+        }
+        long removed = RetentionJob.expireBatches(uuid, upTo, pauseMillis, archive, stop,
+                after -> {
+                    Reader pr = borrow();
+                    try {
+                        return RetentionJob.page(pr.conn, "messages", player, after, upTo, batch, null);
+                    } finally {
+                        readers.add(pr);
+                    }
+                },
+                last -> {
+                    synchronized (writer) {
+                        return RetentionJob.deleteUpTo(writer, "messages", player, last);
+                    }
+                });
+        if (removed > 0) vacuum(batch, pauseMillis, stop);
+        return removed;
+    }
+
+    private void vacuum(int pages, long pauseMillis, BooleanSupplier stop) throws SQLException, InterruptedException {
+        while (!stop.getAsBoolean()) {
+            int left;
+            synchronized (writer) {
+                if (RetentionJob.autoVacuumMode(writer) != 2) {
+                    left = -1;
+                } else {
+                    RetentionJob.incrementalVacuum(writer, pages);
+                    left = RetentionJob.freePages(writer);
+                }
+            }
+            if (left < 0 && !vacuumHintLogged) {
+                vacuumHintLogged = true;
+                logger.info(file.getName() + " was created without incremental auto-vacuum: space freed by retention is reused"
+                        + " but the file will not shrink. Run 'PRAGMA auto_vacuum=INCREMENTAL; VACUUM;' on it while the server is stopped to enable it.");
+            }
+            if (left <= 0) return;
+            if (pauseMillis > 0) Thread.sleep(pauseMillis);
+        }
+    }
+
+    private Reader borrow() throws SQLException {
+        try {
+            Reader r = readers.poll(10, TimeUnit.SECONDS);
+            if (r == null) throw new SQLException("Timed out waiting for a reader connection");
+            return r;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a reader connection", ex);
+        }
+    }
+
+    /**
+     * Find the legacy per-player files (players/<uuid>.db) that still have to be migrated; only lists
+     * the folder, so it is cheap enough for startup. Until {@link #importLegacy} gets to a player's file,
+     * the first use of that player migrates it on the spot, so nobody sees their history missing.
+     * 'codec' reads messages the files hold compressed. Returns the number of files found.
+     */
+    public int prepareLegacyImport(File playersFolder, MessageCodec codec) throws SQLException {
+        if (isImportDone()) return 0;
+        legacyCodec = codec;
+        File[] files = playersFolder.listFiles((dir, name) -> name.endsWith(".db"));
+        if (files != null) {
+            for (File f : files) {
+                try {
+                    legacyPending.put(UUID.fromString(f.getName().substring(0, f.getName().length() - 3)), f);
+                } catch (IllegalArgumentException ignore) {}
+            }
+        }
+        if (legacyPending.isEmpty()) markImportDone();
+        return legacyPending.size();
+    }
+
+    /**
+     * Migrate every file found by {@link #prepareLegacyImport}. Blocking; run it off the main thread.
+     * Files are read in parallel; rows are inserted by the single writer, one transaction per player,
+     * in their original order. Migrated files are renamed to <uuid>.db.migrated. Runs until every file
+     * has been migrated: files that failed are tried again on the next start.
+     * Summaries are not carried over (their message ids don't match the new table); new ones are made as players chat.
+     */
+    public void importLegacy(int threads) {
+        if (legacyPending.isEmpty()) return;
+        logger.info("Migrating " + legacyPending.size() + " per-player databases into " + file.getName() + " in the background...");
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            CompletionService<LegacyFile> cs = new ExecutorCompletionService<>(pool);
+            int submitted = 0;
+            for (Map.Entry<UUID, File> e : legacyPending.entrySet()) {
+                UUID uuid = e.getKey();
+                File f = e.getValue();
+                cs.submit(() -> readLegacy(uuid, f, legacyCodec));
+                submitted++;
+            }
+
+            int migrated = 0;
+            long rows = 0;
+            for (int i = 0; i < submitted; i++) {
+                Future<LegacyFile> done = cs.take();
+                LegacyFile lf;
+                try {
+                    lf = done.get();
+                } catch (ExecutionException ex) {
+                    // the file name is not known here; the player stays pending and is tried on first use
+                    legacyFailed = true;
+                    logger.warning("Failed to read legacy database: " + (ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage()));
+                    continue;
+                }
+                synchronized (legacyLock(lf.uuid)) {
+                    try {
+                        if (!migrate(lf)) continue;
+                    } catch (SQLException ex) {
+                        legacyFailed(lf.uuid, ex);
+                        continue;
+                    }
+                }
+                migrated++;
+                rows += lf.messages.size();
+            }
+            if (!legacyFailed && legacyPending.isEmpty()) {
+                markImportDone();
+            } else {
+                logger.warning("Some legacy databases could not be migrated; they are tried again on next start.");
+            }
+            logger.info("Migrated " + migrated + " players (" + rows + " messages) in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.warning("Legacy migration interrupted; it will resume on next start.");
+        } catch (SQLException ex) {
+            logger.severe("Legacy migration failed: " + ex.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // before any use of a player: migrate their legacy file first if the background import hasn't yet
+    private void ensureMigrated(UUID uuid) {
+        if (legacyPending.isEmpty() || !legacyPending.containsKey(uuid)) return;
+        synchronized (legacyLock(uuid)) {
+            File f = legacyPending.get(uuid);
+            if (f == null) return;
+            try {
+                migrate(readLegacy(uuid, f, legacyCodec));
+            } catch (SQLException ex) {
+                legacyFailed(uuid, ex);
+            }
+        }
+    }
+
+    // call holding legacyLock(lf.uuid); false when the player was migrated meanwhile
+    private boolean migrate(LegacyFile lf) throws SQLException {
+        if (legacyPending.get(lf.uuid) != lf.file) return false;
+        writeLegacy(lf);
+        // the rename is what keeps a retry from importing the file twice
+        if (!lf.file.renameTo(new File(lf.file.getPath() + ".migrated")) && !lf.file.delete()) {
+            logger.severe("Migrated but could not rename or delete " + lf.file.getAbsolutePath()
+                    + "; remove it before the next start or its messages are imported again.");
+        }
+        legacyPending.remove(lf.uuid);
+        return true;
+    }
+
+    // not tried again until the next start, which also keeps the import from being marked done
+    private void legacyFailed(UUID uuid, SQLException ex) {
+        legacyFailed = true;
+        legacyPending.remove(uuid);
+        logger.warning("Failed to migrate legacy database of " + uuid + ": " + ex.getMessage());
+    }
+
+    private Object legacyLock(UUID uuid) {
+        return legacyLocks[(uuid.hashCode() & 0x7fffffff) % legacyLocks.length];
+    }
+
+    private static final class LegacyFile {
+        final UUID uuid;
+        final File file;
+        final List<DatabaseManager.StoredMessage> messages;
+
+        LegacyFile(UUID uuid, File file, List<DatabaseManager.StoredMessage> messages) {
+            this.uuid = uuid;
+            this.file = file;
+            this.messages = messages;
+        }
+    }
+
+    private static LegacyFile readLegacy(UUID uuid, File f, MessageCodec codec) throws SQLException {
+        List<DatabaseManager.StoredMessage> out = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + f.getAbsolutePath());
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT role, content, created_at FROM messages ORDER BY id")) {
+            while (rs.next()) {
+                out.add(new DatabaseManager.StoredMessage(rs.getString(1), codec.read(rs, 2), rs.getLong(3)));
+            }
+        } catch (SQLException ex) {
+            // a file without the table never had messages
+            if (!String.valueOf(ex.getMessage()).contains("no such table")) throw ex;
+        }
+        return new LegacyFile(uuid, f, out);
+    }
+
+    private void writeLegacy(LegacyFile lf) throws SQLException {
+        if (lf.messages.isEmpty()) return;
+        synchronized (writer) {
+            writer.setAutoCommit(false);
+            try {
+                for (DatabaseManager.StoredMessage m : lf.messages) {
+                    insert.setString(1, lf.uuid.toString());
+                    insert.setString(2, m.role);
+                    insert.setString(3, m.content);
+                    insert.setLong(4, m.createdAt);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                writer.commit();
+            } catch (SQLException ex) {
+                writer.rollback();
+                throw ex;
+            } finally {
+                writer.setAutoCommit(true);
+            }
+        }
+    }
+
+    private boolean isImportDone() throws SQLException {
+        try (PreparedStatement ps = writer.prepareStatement("SELECT value FROM meta WHERE key = ?")) {
+            ps.setString(1, LEGACY_IMPORT_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private void markImportDone() throws SQLException {
+        synchronized (writer) {
+            try (PreparedStatement ps = writer.prepareStatement("INSERT OR REPLACE INTO meta (key, value) VALUES (?, ?)")) {
+                ps.setString(1, LEGACY_IMPORT_KEY);
+                ps.setString(2, String.valueOf(System.currentTimeMillis() / 1000));
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Reader r : allReaders) {
+            try {
+                r.conn.close();
+            } catch (SQLException ignore) {}
+        }
+        synchronized (writer) {
+            try {
+                writer.close();
+            } catch (SQLException ignore) {}
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.function.Consumer;
+
+/**
+ * Collects streamed text deltas and emits them as readable pieces:
+ * every finished line, or a finished sentence once enough text has been buffered.
+ * Not thread-safe; one instance per stream.
+ */
+public class StreamSegmenter {
+
+    private static final int MIN_SENTENCE_CHARS = 40;
+    private static final int MAX_SEGMENT_CHARS = 256;
+
+    private final Consumer<String> sink;
+    private final StringBuilder buf = new StringBuilder();
+
+    public StreamSegmenter(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    public void accept(String delta) {
+        for (int i = 0; i < delta.length(); i++) {
+            char c = delta.charAt(i);
+            if (c == '\n') {
+                emit(buf.length());
+                continue;
+            }
+            if (c == '\r') continue;
+            // whitespace right after a sentence terminator closes the sentence
+            if (Character.isWhitespace(c) && buf.length() >= MIN_SENTENCE_CHARS && isSentenceEnd(buf.charAt(buf.length() - 1))) {
+                emit(buf.length());
+                continue;
+            }
+            buf.append(c);
+            if (buf.length() >= MAX_SEGMENT_CHARS) {
+                int cut = buf.lastIndexOf(" ");
+                emit(cut > 0 ? cut : buf.length());
+            }
+        }
+    }
+
+    /** Emit whatever is left once the stream has ended. */
+    public void flush() {
+        emit(buf.length());
+    }
+
+    private void emit(int end) {
+        String piece = buf.substring(0, end).strip();
+        // drop the piece plus the separator it was cut at
+        buf.delete(0, Math.min(buf.length(), end + 1));
+        if (!piece.isEmpty()) sink.accept(piece);
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return c == '.' || c == '!' || c == '?';
+    }
+}
@@ -0,0 +1,349 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Token usage per player and for the whole server, with daily and per-minute quotas.
+ *
+ * Every API request reports its prompt and completion tokens and its latency; counting is lock-free
+ * (LongAdders, updated on the HttpClient threads). The day's counters are written to usage/&lt;date&gt;.json
+ * by {@link #flush}, called periodically and on disable, and today's file is read back on start so
+ * quotas survive a restart. Days follow the server's clock.
+ */
+public class UsageTracker {
+
+    /** The quota a player ran into. */
+    public enum Limit { DAILY, MINUTE, GLOBAL_DAILY }
+
+    /** Fails a queued turn whose player ran out of quota while it waited. */
+    public static class QuotaExceededException extends RuntimeException {
+        public final Limit limit;
+
+        public QuotaExceededException(Limit limit) {
+            super("Token quota used up: " + limit);
+            this.limit = limit;
+        }
+    }
+
+    private static final class Counters {
+        volatile String name;
+        final LongAdder requests = new LongAdder();
+        final LongAdder promptTokens = new LongAdder();
+        final LongAdder completionTokens = new LongAdder();
+        final LongAdder latencyMillis = new LongAdder();
+        // tokens of the current clock minute; replaced, not reset, when the minute changes
+        final AtomicReference<Window> minute = new AtomicReference<>(new Window(0));
+
+        long tokens() {
+            return promptTokens.sum() + completionTokens.sum();
+        }
+
+        Snapshot snapshot(UUID uuid) {
+            return new Snapshot(uuid, name, requests.sum(), promptTokens.sum(), completionTokens.sum(), latencyMillis.sum());
+        }
+    }
+
+    private static final class Window {
+        final long minute;
+        final LongAdder tokens = new LongAdder();
+
+        Window(long minute) {
+            this.minute = minute;
+        }
+    }
+
+    private static final class Day {
+        final LocalDate date;
+        final Counters total = new Counters();
+        final ConcurrentHashMap<UUID, Counters> players = new ConcurrentHashMap<>();
+
+        Day(LocalDate date) {
+            this.date = date;
+        }
+    }
+
+    /** Usage of one player (uuid set) or of everyone (uuid null) on one day. */
+    public static final class Snapshot {
+        public final UUID uuid;
+        // last known player name, null when never seen with one
+        public final String name;
+        public final long requests;
+        public final long promptTokens;
+        public final long completionTokens;
+        public final long latencyMillis;
+
+        Snapshot(UUID uuid, String name, long requests, long promptTokens, long completionTokens, long latencyMillis) {
+            this.uuid = uuid;
+            this.name = name;
+            this.requests = requests;
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public long tokens() {
+            return promptTokens + completionTokens;
+        }
+
+        public long averageLatencyMillis() {
+            return requests == 0 ? 0 : latencyMillis / requests;
+        }
+    }
+
+    private final File folder;
+    private final Metrics metrics;
+    private final Logger logger;
+    private volatile Day today;
+    // the day before a rollover, until flush() has written it one last time
+    private volatile Day finished;
+    // not the tracker's own monitor, so a slow write never holds up a midnight rollover
+    private final Object flushLock = new Object();
+    // total request count at the last flush; nothing is written while it is unchanged
+    private long flushedRequests = -1;
+
+    private volatile long dailyTokens;
+    private volatile long tokensPerMinute;
+    private volatile long globalDailyTokens;
+
+    public UsageTracker(File folder, Metrics metrics, Logger logger) {
+        this.folder = folder;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.today = new Day(LocalDate.now());
+    }
+
+    /** Quotas in tokens (prompt + completion); 0 = unlimited. */
+    public void configure(long dailyTokens, long tokensPerMinute, long globalDailyTokens) {
+        this.dailyTokens = Math.max(0, dailyTokens);
+        this.tokensPerMinute = Math.max(0, tokensPerMinute);
+        this.globalDailyTokens = Math.max(0, globalDailyTokens);
+    }
+
+    public long getDailyTokens() {
+        return dailyTokens;
+    }
+
+    public long getTokensPerMinute() {
+        return tokensPerMinute;
+    }
+
+    public long getGlobalDailyTokens() {
+        return globalDailyTokens;
+    }
+
+    /**
+     * Count one API request. 'name' may be null (e.g. summary refreshes); the last known name is kept.
+     */
+    public void record(UUID uuid, String name, CerebrasClient.Usage usage) {
+        Day day = current();
+        Counters c = day.players.computeIfAbsent(uuid, u -> new Counters());
+        if (name != null) c.name = name;
+        add(c, usage);
+        add(day.total, usage);
+        metrics.add("usage_prompt_tokens_total", usage.promptTokens);
+        metrics.add("usage_completion_tokens_total", usage.completionTokens);
+        if (usage.estimated) metrics.increment("usage_estimated_total");
+    }
+
+    private static void add(Counters c, CerebrasClient.Usage usage) {
+        c.requests.increment();
+        c.promptTokens.add(usage.promptTokens);
+        c.completionTokens.add(usage.completionTokens);
+        c.latencyMillis.add(usage.latencyMillis);
+        long now = System.currentTimeMillis() / 60_000L;
+        Window w = c.minute.get();
+        if (w.minute != now) {
+            // a request racing the swap may land in the old window; quotas are approximate anyway
+            c.minute.compareAndSet(w, new Window(now));
+            w = c.minute.get();
+        }
+        w.tokens.add(usage.promptTokens + usage.completionTokens);
+    }
+
+    /**
+     * The quota 'uuid' has used up, or null when they may send another request.
+     * Only finished requests count, so a request already running is never refused halfway.
+     */
+    public Limit check(UUID uuid) {
+        Day day = current();
+        Limit limit = null;
+        if (globalDailyTokens > 0 && day.total.tokens() >= globalDailyTokens) {
+            limit = Limit.GLOBAL_DAILY;
+        } else {
+            Counters c = day.players.get(uuid);
+            if (c != null) {
+                if (dailyTokens > 0 && c.tokens() >= dailyTokens) {
+                    limit = Limit.DAILY;
+                } else if (tokensPerMinute > 0) {
+                    Window w = c.minute.get();
+                    if (w.minute == System.currentTimeMillis() / 60_000L && w.tokens.sum() >= tokensPerMinute) limit = Limit.MINUTE;
+                }
+            }
+        }
+        if (limit != null) metrics.increment(Metrics.labelled("usage_quota_denied_total", "quota", limit.name().toLowerCase(Locale.ROOT)));
+        return limit;
+    }
+
+    /** Today's totals over all players. */
+    public Snapshot total() {
+        return current().total.snapshot(null);
+    }
+
+    /** Today's usage of one player (all zero when they sent nothing). */
+    public Snapshot of(UUID uuid) {
+        Counters c = current().players.get(uuid);
+        return c == null ? new Snapshot(uuid, null, 0, 0, 0, 0) : c.snapshot(uuid);
+    }
+
+    /** Today's 'n' biggest consumers by tokens, largest first. */
+    public List<Snapshot> top(int n) {
+        List<Snapshot> all = new ArrayList<>();
+        for (Map.Entry<UUID, Counters> e : current().players.entrySet()) all.add(e.getValue().snapshot(e.getKey()));
+        all.sort((a, b) -> Long.compare(b.tokens(), a.tokens()));
+        return all.size() > n ? new ArrayList<>(all.subList(0, Math.max(0, n))) : all;
+    }
+
+    // today's counters, starting a new day when the date changed
+    private Day current() {
+        Day day = today;
+        if (day.date.equals(LocalDate.now())) return day;
+        synchronized (this) {
+            LocalDate now = LocalDate.now();
+            if (!today.date.equals(now)) {
+                finished = today;
+                today = new Day(now);
+            }
+            return today;
+        }
+    }
+
+    /**
+     * Read today's file, if a previous run wrote one. Call once, before any request is recorded.
+     */
+    public void load() throws IOException {
+        Day day = today;
+        File file = fileOf(day.date);
+        if (!file.exists()) return;
+        try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+             JsonReader jr = new JsonReader(r)) {
+            jr.beginObject();
+            while (jr.hasNext()) {
+                String field = jr.nextName();
+                if (field.equals("total")) {
+                    readCounters(jr, day.total);
+                } else if (field.equals("players")) {
+                    jr.beginObject();
+                    while (jr.hasNext()) {
+                        UUID uuid;
+                        try {
+                            uuid = UUID.fromString(jr.nextName());
+                        } catch (IllegalArgumentException ex) {
+                            jr.skipValue();
+                            continue;
+                        }
+                        readCounters(jr, day.players.computeIfAbsent(uuid, u -> new Counters()));
+                    }
+                    jr.endObject();
+                } else {
+                    jr.skipValue();
+                }
+            }
+            jr.endObject();
+        }
+        synchronized (flushLock) {
+            flushedRequests = day.total.requests.sum();
+        }
+        logger.info("Loaded today's token usage: " + day.total.tokens() + " tokens by " + day.players.size() + " players.");
+    }
+
+    private static void readCounters(JsonReader jr, Counters c) throws IOException {
+        jr.beginObject();
+        while (jr.hasNext()) {
+            switch (jr.nextName()) {
+                case "name": c.name = jr.nextString(); break;
+                case "requests": c.requests.add(jr.nextLong()); break;
+                case "prompt_tokens": c.promptTokens.add(jr.nextLong()); break;
+                case "completion_tokens": c.completionTokens.add(jr.nextLong()); break;
+                case "latency_ms": c.latencyMillis.add(jr.nextLong()); break;
+                default: jr.skipValue();
+            }
+        }
+        jr.endObject();
+    }
+
+    /**
+     * Write the day's counters (and the previous day's after midnight) when anything changed since the last flush.
+     * Blocking; call off the main thread, and once more on disable.
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            Day day = current();
+            Day done = finished;
+            if (done != null) {
+                write(done);
+                finished = null;
+                flushedRequests = -1;
+            }
+            long requests = day.total.requests.sum();
+            if (requests == flushedRequests) return;
+            write(day);
+            flushedRequests = requests;
+        }
+    }
+
+    // via a temp file, so a crash never leaves half a day
+    private void write(Day day) throws IOException {
+        if (!folder.exists()) folder.mkdirs();
+        File file = fileOf(day.date);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8);
+             JsonWriter jw = new JsonWriter(w)) {
+            jw.beginObject();
+            jw.name("date").value(day.date.toString());
+            jw.name("total");
+            writeCounters(jw, day.total);
+            jw.name("players").beginObject();
+            for (Map.Entry<UUID, Counters> e : day.players.entrySet()) {
+                jw.name(e.getKey().toString());
+                writeCounters(jw, e.getValue());
+            }
+            jw.endObject();
+            jw.endObject();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeCounters(JsonWriter jw, Counters c) throws IOException {
+        jw.beginObject();
+        String name = c.name;
+        if (name != null) jw.name("name").value(name);
+        jw.name("requests").value(c.requests.sum());
+        jw.name("prompt_tokens").value(c.promptTokens.sum());
+        jw.name("completion_tokens").value(c.completionTokens.sum());
+        jw.name("latency_ms").value(c.latencyMillis.sum());
+        jw.endObject();
+    }
+
+    private File fileOf(LocalDate date) {
+        return new File(folder, date + ".json");
+    }
+}
@@ -0,0 +1,256 @@
+package com.ihsannoob.aiplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind buffer for new messages.
+ * addMessage only enqueues; one writer thread drains the bounded queue and hands batches to the sink,
+ * which commits them in a single transaction (one fsync per batch instead of one per message).
+ * A batch is flushed when it reaches batchSize or flushIntervalMs after its first message, whichever comes first.
+ * Messages stay visible through {@link #pending(UUID)} until their batch has been committed.
+ * Taking messages off the queue and committing them is serialized, so rows are always committed in queue order.
+ */
+public class WriteBehindQueue {
+
+    public static class PendingMessage {
+        public final UUID uuid;
+        public final String role;
+        public final String content;
+        public final long createdAt;
+        // set by discard(): the player's history was cleared before this was written
+        volatile boolean dropped;
+
+        PendingMessage(UUID uuid, String role, String content, long createdAt) {
+            this.uuid = uuid;
+            this.role = role;
+            this.content = content;
+            this.createdAt = createdAt;
+        }
+    }
+
+    public interface Sink {
+        void write(List<PendingMessage> batch) throws Exception;
+    }
+
+    private final Sink sink;
+    private final Logger logger;
+    private final BlockingQueue<PendingMessage> queue;
+    private final ConcurrentHashMap<UUID, ConcurrentLinkedDeque<PendingMessage>> byPlayer = new ConcurrentHashMap<>();
+    // readers hold the read lock across "read committed rows + read pending"; a commit holds the write lock
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    // held from taking a batch off the queue until it is committed, by the writer and by flush();
+    // fair, so a waiting flush() gets it before the writer's next batch
+    private final ReentrantLock drainLock = new ReentrantLock(true);
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+
+    public WriteBehindQueue(Sink sink, int capacity, int batchSize, long flushIntervalMs, Logger logger) {
+        this.sink = sink;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMs));
+        this.writer = new Thread(this::run, "AICerebras-WriteBehind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Enqueue a message. Blocks when the queue is full, which pushes back on the producers
+     * instead of growing without bound.
+     */
+    public void add(UUID uuid, String role, String content, long createdAt) {
+        PendingMessage m = new PendingMessage(uuid, role, content, createdAt);
+        byPlayer.compute(uuid, (u, q) -> {
+            if (q == null) q = new ConcurrentLinkedDeque<>();
+            q.add(m);
+            return q;
+        });
+        try {
+            queue.put(m);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            forget(m);
+            logger.warning("Interrupted while queueing message for " + uuid + "; message dropped.");
+        }
+    }
+
+    /**
+     * Not-yet-committed messages of a player, oldest first.
+     * Call inside {@link #readLock()} together with the database read to get a consistent view.
+     */
+    public List<PendingMessage> pending(UUID uuid) {
+        ConcurrentLinkedDeque<PendingMessage> q = byPlayer.get(uuid);
+        return q == null ? List.of() : new ArrayList<>(q);
+    }
+
+    public ReentrantReadWriteLock.ReadLock readLock() {
+        return commitLock.readLock();
+    }
+
+    /**
+     * Forget the pending messages of a player (history is being cleared).
+     */
+    public void discard(UUID uuid) {
+        commitLock.writeLock().lock();
+        try {
+            ConcurrentLinkedDeque<PendingMessage> q = byPlayer.remove(uuid);
+            if (q != null) {
+                for (PendingMessage m : q) m.dropped = true;
+            }
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write everything queued so far on the calling thread.
+     * Waits for a batch the writer is filling to be committed first, so nothing queued later overtakes it.
+     */
+    public void flush() {
+        List<PendingMessage> batch = new ArrayList<>();
+        drainLock.lock();
+        try {
+            while (queue.drainTo(batch, batchSize) > 0) {
+                commit(batch);
+                batch.clear();
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the writer thread and flush what is left. Used on plugin disable.
+     */
+    public void shutdown() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public double getAverageFlushMillis() {
+        long n = flushes.get();
+        return n == 0 ? 0 : totalFlushNanos.get() / 1e6 / n;
+    }
+
+    public double getLastFlushMillis() {
+        return lastFlushNanos / 1e6;
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    private void run() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                drainLock.lockInterruptibly();
+            } catch (InterruptedException ex) {
+                // shutting down: shutdown() flushes what is left
+                return;
+            }
+            try {
+                // polled under the lock, or a flush() could commit later messages before this one;
+                // an idle wait only keeps a flush() waiting for one flush interval
+                PendingMessage first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    PendingMessage next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                commit(batch);
+                batch.clear();
+            } catch (InterruptedException ex) {
+                // shutting down: write this partial batch, shutdown() flushes the rest
+                commit(batch);
+                return;
+            } finally {
+                drainLock.unlock();
+            }
+        }
+    }
+
+    private void commit(List<PendingMessage> batch) {
+        long start = System.nanoTime();
+        List<PendingMessage> live = new ArrayList<>(batch.size());
+        commitLock.writeLock().lock();
+        try {
+            // checked under the lock so a concurrent discard() can't slip in between
+            for (PendingMessage m : batch) {
+                if (!m.dropped) live.add(m);
+            }
+            if (live.isEmpty()) return;
+            sink.write(live);
+            written.addAndGet(live.size());
+        } catch (Exception ex) {
+            failed.addAndGet(live.size());
+            logger.severe("Failed to write " + live.size() + " queued messages: " + ex.getMessage());
+        } finally {
+            // committed (or given up on): no longer pending
+            for (PendingMessage m : live) forget(m);
+            commitLock.writeLock().unlock();
+        }
+
+        long took = System.nanoTime() - start;
+        flushes.incrementAndGet();
+        totalFlushNanos.addAndGet(took);
+        lastFlushNanos = took;
+        maxFlushNanos.accumulateAndGet(took, Math::max);
+    }
+
+    private void forget(PendingMessage m) {
+        byPlayer.computeIfPresent(m.uuid, (u, q) -> {
+            q.remove(m);
+            return q.isEmpty() ? null : q;
+        });
+    }
+}
@@ -0,0 +1,100 @@
+package com.ihsannoob.aiplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Shared fixtures for the benchmarks: temp folders, canned text and a silent logger.
+ */
+final class BenchSupport {
+
+    static final String USER_TEXT = "How do I claim land near spawn and add my friends to the claim?";
+    static final String ASSISTANT_TEXT = text(600);
+
+    private BenchSupport() {
+    }
+
+    static Logger quietLogger() {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.OFF);
+        return logger;
+    }
+
+    static File tempFolder() throws IOException {
+        return Files.createTempDirectory("aicerebras-bench").toFile();
+    }
+
+    static void delete(File folder) throws IOException {
+        if (folder == null || !folder.exists()) return;
+        try (Stream<java.nio.file.Path> paths = Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Write 'count' alternating user/assistant messages for a player. Goes through a write-behind
+     * manager so large histories are committed in a few transactions instead of one per row.
+     */
+    static void fill(File folder, boolean shared, UUID uuid, int count) {
+        DatabaseManager db = new DatabaseManager(folder, quietLogger(), 1, shared, 1);
+        db.enableWriteBehind(Math.max(1024, count), 512, 50);
+        for (int i = 0; i < count; i++) {
+            db.addMessage(uuid, i % 2 == 0 ? "user" : "assistant", i % 2 == 0 ? USER_TEXT : ASSISTANT_TEXT);
+        }
+        db.flushPending();
+        db.closeAll();
+    }
+
+    private static final String[] SENTENCES = {
+            "Sure! Here's how you can do that.",
+            "Great question! Let me explain step by step.",
+            "First, make sure you have enough resources before you start.",
+            "You can craft a diamond pickaxe with three diamonds and two sticks on a crafting table.",
+            "To claim land, hold a golden shovel and right-click two opposite corners of the area.",
+            "Use /trust <player> inside your claim to let a friend build there.",
+            "Villagers restock their trades a few times per day when they can reach their workstation.",
+            "Iron farms work best when the villagers cannot see the zombie directly.",
+            "Remember to place torches so that mobs don't spawn inside your base.",
+            "The Nether is dangerous, so bring fire resistance potions and a shield.",
+            "Enchanting tables need fifteen bookshelves around them for level thirty enchantments.",
+            "If you get lost, you can use /spawn to return to the server spawn point.",
+            "Redstone repeaters add a delay of one to four ticks to a signal.",
+            "Let me know if you have any other questions!",
+            "I hope this helps, and have fun on the server!",
+            "Note that some commands may be disabled depending on the server configuration.",
+            "Emeralds are the main currency for trading with villagers.",
+            "You can breed animals by feeding them their favourite food, for example wheat for cows.",
+            "Mending repairs your tools with experience orbs you pick up while holding them.",
+            "Here are a few tips:",
+    };
+
+    /**
+     * A made-up assistant reply of a few sentences in random order, with a number here and there,
+     * closer to real history than repeated text when measuring compression.
+     */
+    static String reply(java.util.Random random) {
+        StringBuilder sb = new StringBuilder();
+        int n = 3 + random.nextInt(8);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(random.nextInt(4) == 0 ? "\n- " : " ");
+            sb.append(SENTENCES[random.nextInt(SENTENCES.length)]);
+            if (random.nextInt(3) == 0) sb.append(" (about ").append(random.nextInt(500)).append(" blocks)");
+        }
+        return sb.toString();
+    }
+
+    /** Roughly 'chars' characters of English-looking text. */
+    static String text(int chars) {
+        String words = "the quick brown fox jumps over the lazy dog while players build farms and trade emeralds ";
+        StringBuilder sb = new StringBuilder(chars + words.length());
+        while (sb.length() < chars) sb.append(words);
+        return sb.substring(0, chars);
+    }
+}
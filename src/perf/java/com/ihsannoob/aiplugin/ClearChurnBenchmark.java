@@ -0,0 +1,70 @@
+package com.ihsannoob.aiplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * clearConversation followed by the first read afterwards, which in per-player mode
+ * reopens (and recreates) the player's database file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClearChurnBenchmark {
+
+    @Param({"per-player", "shared"})
+    public String mode;
+
+    @Param({"10", "100"})
+    public int messages;
+
+    private File folder;
+    private DatabaseManager db;
+    private UUID uuid;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = BenchSupport.tempFolder();
+        uuid = UUID.randomUUID();
+        db = new DatabaseManager(folder, BenchSupport.quietLogger(), 2, "shared".equals(mode), 4);
+    }
+
+    @Setup(Level.Invocation)
+    public void refill() {
+        for (int i = 0; i < messages; i++) {
+            db.addMessage(uuid, i % 2 == 0 ? "user" : "assistant", i % 2 == 0 ? BenchSupport.USER_TEXT : BenchSupport.ASSISTANT_TEXT);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.closeAll();
+        BenchSupport.delete(folder);
+    }
+
+    @Benchmark
+    public List<DatabaseManager.StoredMessage> clearAndReopen() {
+        db.clearConversation(uuid);
+        return db.getConversation(uuid, 8);
+    }
+}
@@ -0,0 +1,92 @@
+package com.ihsannoob.aiplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of a per-player file holding historySize varied messages, as plain text and after the
+ * CompressionJob converted it. The file size before and after is printed during setup; the
+ * benchmarks measure what decompression costs on reads while the file is in the page cache
+ * (a cold read of the smaller file is cheaper still).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1000", "10000"})
+    public int historySize;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private File folder;
+    private DatabaseManager db;
+    private UUID uuid;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        folder = BenchSupport.tempFolder();
+        uuid = UUID.randomUUID();
+        DatabaseManager fill = new DatabaseManager(folder, BenchSupport.quietLogger(), 1, false, 1);
+        fill.enableWriteBehind(Math.max(1024, historySize), 512, 50);
+        Random random = new Random(42);
+        for (int i = 0; i < historySize; i++) {
+            fill.addMessage(uuid, i % 2 == 0 ? "user" : "assistant", i % 2 == 0 ? BenchSupport.USER_TEXT : BenchSupport.reply(random));
+        }
+        fill.flushPending();
+        fill.closeAll();
+
+        File file = new File(folder, "players/" + uuid + ".db");
+        long before = file.length();
+        db = new DatabaseManager(folder, BenchSupport.quietLogger(), 2, false, 4);
+        if (compressed) {
+            CompressionJob job = new CompressionJob((PlayerFileStore) db.getStore(), db.getCodec(), 200, 2000, 32 * 1024, 500, 0,
+                    new Metrics(), BenchSupport.quietLogger());
+            job.runOnce();
+            job.shutdown();
+        }
+        System.out.println("\nfile size: " + before + " bytes plain, " + file.length() + " bytes " + (compressed ? "compressed" : "unchanged"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.closeAll();
+        BenchSupport.delete(folder);
+    }
+
+    /** History read done by /ai view (view_messages default), without the cache. */
+    @Benchmark
+    public List<DatabaseManager.StoredMessage> getConversationView() {
+        return db.getConversation(uuid, 200);
+    }
+
+    /** Every message of the player, as an export reads them. */
+    @Benchmark
+    public long streamAll() throws Exception {
+        long[] chars = new long[1];
+        db.streamMessages(uuid, 0, 500, (id, m) -> chars[0] += m.content.length());
+        return chars[0];
+    }
+}
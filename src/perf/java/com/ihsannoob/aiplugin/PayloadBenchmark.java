@@ -0,0 +1,55 @@
+package com.ihsannoob.aiplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request building done by generate: JSON payload plus HttpRequest, for prompts of different lengths.
+ * No request is sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+    /** Messages in the prompt: new message only, default context (8 + 1), a full cache ring (32 + 1). */
+    @Param({"1", "9", "33"})
+    public int messages;
+
+    private CerebrasClient client;
+    private List<CerebrasClient.Message> prompt;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        client = new CerebrasClient("bench-key", "http://localhost:1/v1/chat/completions", "llama-3.3-70b", 512, 30,
+                BenchSupport.quietLogger(), new Metrics());
+        prompt = new ArrayList<>(messages);
+        for (int i = 0; i < messages - 1; i++) {
+            prompt.add(new CerebrasClient.Message(i % 2 == 0 ? "user" : "assistant", i % 2 == 0 ? BenchSupport.USER_TEXT : BenchSupport.ASSISTANT_TEXT));
+        }
+        prompt.add(new CerebrasClient.Message("user", BenchSupport.USER_TEXT));
+    }
+
+    @Benchmark
+    public HttpRequest buildRequest() {
+        return client.buildRequest(prompt, false);
+    }
+}
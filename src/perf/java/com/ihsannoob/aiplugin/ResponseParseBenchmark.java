@@ -0,0 +1,104 @@
+package com.ihsannoob.aiplugin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of every response shape generate understands, from canned bodies.
+ * The bodies carry a usage block after the text, like real responses, which the remembered-shape path never reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParseBenchmark {
+
+    @Param({"choices.message", "choices.text", "output", "generated_text"})
+    public String shape;
+
+    private CerebrasClient client;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Gson gson = new Gson();
+        client = new CerebrasClient("bench-key", "http://localhost:1/v1/chat/completions", "llama-3.3-70b", 512, 30,
+                BenchSupport.quietLogger(), new Metrics());
+        body = gson.toJson(response(shape, BenchSupport.ASSISTANT_TEXT));
+    }
+
+    /** Steady state: the endpoint's shape is remembered, so only its path is read. */
+    @Benchmark
+    public String parse() {
+        return client.parseBody(body);
+    }
+
+    /** First response from an endpoint: every known shape is probed. */
+    @Benchmark
+    public String parseUnknownShape() throws IOException {
+        return ContentExtractor.extractAny(body);
+    }
+
+    static JsonObject response(String shape, String text) {
+        JsonObject root = new JsonObject();
+        root.addProperty("id", "chatcmpl-bench");
+        root.addProperty("model", "llama-3.3-70b");
+        switch (shape) {
+            case "choices.message": {
+                JsonObject msg = new JsonObject();
+                msg.addProperty("role", "assistant");
+                msg.addProperty("content", text);
+                JsonObject choice = new JsonObject();
+                choice.addProperty("index", 0);
+                choice.add("message", msg);
+                choice.addProperty("finish_reason", "stop");
+                JsonArray choices = new JsonArray();
+                choices.add(choice);
+                root.add("choices", choices);
+                break;
+            }
+            case "choices.text": {
+                JsonObject choice = new JsonObject();
+                choice.addProperty("index", 0);
+                choice.addProperty("text", text);
+                JsonArray choices = new JsonArray();
+                choices.add(choice);
+                root.add("choices", choices);
+                break;
+            }
+            case "output": {
+                JsonObject first = new JsonObject();
+                first.addProperty("content", text);
+                JsonArray output = new JsonArray();
+                output.add(first);
+                root.add("output", output);
+                break;
+            }
+            default:
+                root.addProperty("generated_text", text);
+        }
+        JsonObject usage = new JsonObject();
+        usage.addProperty("prompt_tokens", 120);
+        usage.addProperty("completion_tokens", 150);
+        root.add("usage", usage);
+        return root;
+    }
+}
@@ -0,0 +1,80 @@
+package com.ihsannoob.aiplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * addMessage / getConversation against a player with historySize existing messages,
+ * in both storage modes, with and without the recent-history cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int historySize;
+
+    @Param({"per-player", "shared"})
+    public String mode;
+
+    @Param({"false", "true"})
+    public boolean cache;
+
+    private File folder;
+    private DatabaseManager db;
+    private UUID uuid;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = BenchSupport.tempFolder();
+        uuid = UUID.randomUUID();
+        BenchSupport.fill(folder, "shared".equals(mode), uuid, historySize);
+        db = new DatabaseManager(folder, BenchSupport.quietLogger(), 2, "shared".equals(mode), 4);
+        if (cache) db.enableCache(32, 32L * 1024L * 1024L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.closeAll();
+        BenchSupport.delete(folder);
+    }
+
+    /** One autocommitted insert (the history keeps growing during the run, as it does in game). */
+    @Benchmark
+    public void addMessage() {
+        db.addMessage(uuid, "user", BenchSupport.USER_TEXT);
+    }
+
+    /** History read done for every chat turn (context_messages default). */
+    @Benchmark
+    public List<DatabaseManager.StoredMessage> getConversationContext() {
+        return db.getConversation(uuid, 8);
+    }
+
+    /** History read done by /ai view (view_messages default). */
+    @Benchmark
+    public List<DatabaseManager.StoredMessage> getConversationView() {
+        return db.getConversation(uuid, 200);
+    }
+}
@@ -0,0 +1,58 @@
+package com.ihsannoob.aiplugin;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageDispatcherTest {
+
+    @Test
+    void shortTextIsOneLine() {
+        assertEquals(List.of("hello world"), MessageDispatcher.wrap("hello world\n\n", 16));
+    }
+
+    @Test
+    void splitsAtNewlinesAndLastSpaceThatFits() {
+        assertEquals(List.of("one two three", "four", "five"), MessageDispatcher.wrap("one two three four\nfive", 16));
+    }
+
+    @Test
+    void cutsWordsLongerThanALine() {
+        assertEquals(List.of("abcdefghijklmnop", "qrst"), MessageDispatcher.wrap("abcdefghijklmnopqrst", 16));
+    }
+
+    @Test
+    void repeatsFormatOnContinuationLines() {
+        List<String> lines = MessageDispatcher.wrap("§a§lgreen bold words here", 16);
+        assertEquals("§a§lgreen bold", lines.get(0));
+        assertEquals("§a§lwords here", lines.get(1));
+    }
+
+    @Test
+    void neverSplitsAColourCodeFromItsCharacter() {
+        List<String> lines = MessageDispatcher.wrap("abcdefghijklmno§cred", 16);
+        assertEquals("abcdefghijklmno", lines.get(0));
+        assertEquals("§cred", lines.get(1));
+    }
+
+    @Test
+    void sectionSignBeforeTheOnlySpaceStillMakesProgress() {
+        String text = "§ " + "y".repeat(40);
+        List<String> lines = assertTimeoutPreemptively(Duration.ofSeconds(2), () -> MessageDispatcher.wrap(text, 16));
+        assertEquals(text.replace(" ", ""), String.join("", lines).replace(" ", ""));
+        for (String line : lines) assertTrue(line.length() <= 16, line);
+    }
+
+    @Test
+    void everyLineFitsWithLongFormatCarry() {
+        String text = "§c§l§n§o§m" + "z".repeat(100);
+        List<String> lines = assertTimeoutPreemptively(Duration.ofSeconds(2), () -> MessageDispatcher.wrap(text, 16));
+        for (String line : lines) assertTrue(line.length() <= 16, line);
+        assertTrue(lines.size() > 1);
+    }
+}